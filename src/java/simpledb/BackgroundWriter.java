@@ -0,0 +1,200 @@
+package simpledb;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * BackgroundWriter is a daemon thread that writes dirty pages of a
+ * BufferPool to disk ahead of eviction, so that a page fault rarely has to
+ * write a dirty victim before it can read the page it needs.
+ * <p>
+ * The writer is driven by the fraction of resident pages that are dirty.
+ * Once it rises above the high watermark the writer starts cleaning and
+ * keeps going until it drops below the low watermark. Pages are written in
+ * file order, sweeping circularly from where the previous round stopped, so
+ * runs of adjacent pages are merged into single writes and every dirty page
+ * is reached eventually. Writes go through {@link BufferPool#writePages},
+ * which forces the log before any page is written. Pages of transactions
+ * that have not committed yet are written as well; an abort, or
+ * {@link LogFile#recover} after a crash, restores them from the before
+ * images in the log.
+ * <p>
+ * The writer wakes up periodically and whenever eviction had to write a
+ * dirty victim itself.
+ *
+ * @see BufferPool#getBackgroundWriter
+ */
+public class BackgroundWriter extends Thread {
+
+    /** Default dirty ratio below which the writer stops cleaning. */
+    public static final double DEFAULT_LOW_WATERMARK = 0.05;
+
+    /** Default dirty ratio above which the writer starts cleaning. */
+    public static final double DEFAULT_HIGH_WATERMARK = 0.20;
+
+    /** Default time between two checks of the dirty ratio, in ms. */
+    public static final long DEFAULT_INTERVAL = 200;
+
+    /** Default maximum number of pages written per write call. */
+    public static final int DEFAULT_BATCH_SIZE = 64;
+
+    private final BufferPool pool;
+
+    private volatile double lowWatermark = DEFAULT_LOW_WATERMARK;
+    private volatile double highWatermark = DEFAULT_HIGH_WATERMARK;
+    private volatile long interval = DEFAULT_INTERVAL;
+    private volatile int batchSize = DEFAULT_BATCH_SIZE;
+
+    private volatile boolean running = true;
+    private boolean wakeupPending = false;
+
+    /** Last page written; the next sweep starts after it. */
+    private PageId cursor = null;
+
+    private final AtomicLong pagesWritten = new AtomicLong();
+    private final AtomicLong writeCalls = new AtomicLong();
+    private final AtomicLong rounds = new AtomicLong();
+
+    public BackgroundWriter(BufferPool pool) {
+        super("BufferPool background writer");
+        this.pool = pool;
+        setDaemon(true);
+    }
+
+    /**
+     * Sets the dirty ratios between which the writer keeps cleaning.
+     *
+     * @throws IllegalArgumentException unless 0 <= low <= high <= 1
+     */
+    public void setWatermarks(double low, double high) {
+        if (low < 0 || low > high || high > 1)
+            throw new IllegalArgumentException("invalid watermarks " + low + ", " + high);
+        this.lowWatermark = low;
+        this.highWatermark = high;
+    }
+
+    public double getLowWatermark() {
+        return lowWatermark;
+    }
+
+    public double getHighWatermark() {
+        return highWatermark;
+    }
+
+    /** Sets the time between two checks of the dirty ratio, in ms. */
+    public void setInterval(long ms) {
+        if (ms <= 0)
+            throw new IllegalArgumentException("invalid interval " + ms);
+        this.interval = ms;
+    }
+
+    /** Sets the maximum number of pages written per write call. */
+    public void setBatchSize(int pages) {
+        if (pages <= 0)
+            throw new IllegalArgumentException("invalid batch size " + pages);
+        this.batchSize = pages;
+    }
+
+    /** @return the number of pages written by this thread */
+    public long getPagesWritten() {
+        return pagesWritten.get();
+    }
+
+    /** @return the number of batches handed to the pool for writing */
+    public long getWriteCalls() {
+        return writeCalls.get();
+    }
+
+    /** @return the number of rounds in which the writer cleaned pages */
+    public long getRounds() {
+        return rounds.get();
+    }
+
+    /** Asks the writer to check the dirty ratio now. */
+    public synchronized void wakeup() {
+        wakeupPending = true;
+        notifyAll();
+    }
+
+    /** Stops the writer and waits for it to finish its current batch. */
+    public void shutdown() {
+        running = false;
+        wakeup();
+        if (Thread.currentThread() != this) {
+            try {
+                join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    public void run() {
+        while (running) {
+            synchronized (this) {
+                if (!wakeupPending) {
+                    try {
+                        wait(interval);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                wakeupPending = false;
+            }
+            if (!running)
+                return;
+            try {
+                clean();
+            } catch (IOException e) {
+                // the pages stay dirty; eviction or the next round retries
+                System.err.println("background writer: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Writes dirty pages until the dirty ratio drops below the low
+     * watermark, provided it was above the high watermark.
+     */
+    void clean() throws IOException {
+        // relative to the resident pages, not the capacity: in a pool that
+        // is still filling up, the next evictions are as likely to be dirty
+        int resident = pool.getNumResidentPages();
+        List<Page> dirty = pool.getDirtyPages(null);
+        if (dirty.size() <= highWatermark * resident)
+            return;
+        rounds.incrementAndGet();
+        int target = (int) (lowWatermark * resident);
+        int excess = dirty.size() - target;
+        List<Page> sweep = sweepOrder(dirty);
+        int i = 0;
+        while (running && excess > 0 && i < sweep.size()) {
+            int n = Math.min(Math.min(batchSize, excess), sweep.size() - i);
+            List<Page> batch = sweep.subList(i, i + n);
+            int written = pool.writePages(batch, true);
+            writeCalls.incrementAndGet();
+            pagesWritten.addAndGet(written);
+            cursor = batch.get(n - 1).getId();
+            excess -= n;
+            i += n;
+        }
+    }
+
+    /**
+     * @return the pages in file order, rotated to start after the cursor
+     */
+    private List<Page> sweepOrder(List<Page> dirty) {
+        Page[] sorted = dirty.toArray(new Page[dirty.size()]);
+        Arrays.sort(sorted, BufferPool.FILE_ORDER);
+        int start = 0;
+        if (cursor != null) {
+            while (start < sorted.length && BufferPool.PAGE_ID_ORDER.compare(sorted[start].getId(), cursor) <= 0)
+                start++;
+        }
+        ArrayList<Page> rotated = new ArrayList<Page>(sorted.length);
+        for (int i = 0; i < sorted.length; i++)
+            rotated.add(sorted[(start + i) % sorted.length]);
+        return rotated;
+    }
+}
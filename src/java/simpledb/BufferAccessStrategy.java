@@ -0,0 +1,85 @@
+package simpledb;
+
+/**
+ * A BufferAccessStrategy lets a single access method, typically a large
+ * sequential scan, use only a small ring of BufferPool frames instead of the
+ * whole pool (the "bulk read" strategy, as in PostgreSQL's buffer rings).
+ * <p>
+ * Every page the scan has to read from disk is remembered in the ring. Once
+ * the ring is full, the page loaded ringSize misses ago is given up to make
+ * room for the next one, so the scan keeps recycling its own frames and the
+ * rest of the pool -- the hot working set of other transactions -- is left
+ * alone. Pages that were already resident when the scan reached them, or
+ * that somebody else used while they were in the ring, are never recycled.
+ * <p>
+ * A strategy belongs to one iterator and is only touched by the BufferPool
+ * while it handles that iterator's requests. Its pages may live in any
+ * shard of the pool.
+ *
+ * @see BufferPool#getPage(TransactionId, PageId, Permissions, BufferAccessStrategy)
+ * @see BufferPool#getBulkReadStrategy
+ */
+public class BufferAccessStrategy {
+
+    /** Memory a bulk read ring occupies by default, 256 KB as in PostgreSQL. */
+    public static final int DEFAULT_RING_BYTES = 256 * 1024;
+
+    private final PageId[] ring;
+
+    /** Index of the ring slot that will be reused next. */
+    private int current;
+
+    /** Page pushed out of the ring by {@link #adopt}, not recycled yet. */
+    private PageId displaced;
+
+    /**
+     * Creates a strategy cycling through ringSize frames.
+     */
+    public BufferAccessStrategy(int ringSize) {
+        if (ringSize < 1)
+            throw new IllegalArgumentException("ring must hold at least one page");
+        this.ring = new PageId[ringSize];
+        this.current = 0;
+    }
+
+    /** @return the number of frames this strategy may occupy. */
+    public int getRingSize() {
+        return ring.length;
+    }
+
+    /**
+     * @return the page loaded into the slot that is about to be reused, or
+     *   null if the ring has not wrapped around yet.
+     */
+    PageId nextVictim() {
+        return ring[current];
+    }
+
+    /**
+     * Records that pid was read from disk on behalf of this strategy, taking
+     * the place of the page returned by {@link #nextVictim}.
+     */
+    void pageLoaded(PageId pid) {
+        ring[current] = pid;
+        current = (current + 1) % ring.length;
+    }
+
+    /**
+     * Takes a page that was read ahead of this strategy's scan into the
+     * ring. The page it displaces is kept until {@link #takeDisplaced}.
+     */
+    void adopt(PageId pid) {
+        displaced = ring[current];
+        pageLoaded(pid);
+    }
+
+    /**
+     * @return the page most recently displaced by {@link #adopt}, or null;
+     *   the caller is responsible for recycling it.
+     */
+    PageId takeDisplaced() {
+        PageId pid = displaced;
+        displaced = null;
+        return pid;
+    }
+}
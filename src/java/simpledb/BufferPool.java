@@ -1,6 +1,10 @@
 package simpledb;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * BufferPool manages the reading and writing of pages into memory from
@@ -12,29 +16,314 @@ import java.io.*;
  * locks to read/write the page.
  */
 public class BufferPool {
-    /** Bytes per page, including header. */
+    /** Bytes per page, including header, of files that do not choose a
+    page size of their own. */
     public static final int PAGE_SIZE = 4096;
 
+    /** Smallest and largest page size a DbFile may have. */
+    public static final int MIN_PAGE_SIZE = 4096;
+    public static final int MAX_PAGE_SIZE = 64 * 1024;
+
     /** Default number of pages passed to the constructor. This is used by
     other classes. BufferPool should use the numPages argument to the
     constructor instead. */
     public static final int DEFAULT_PAGES = 50;
+
+    /** Default for {@link #setBulkReadThreshold}: a scan switches to a ring
+    once the table does not fit in the pool anymore. */
+    public static final double DEFAULT_BULK_READ_THRESHOLD = 1.0;
     
-    private final int numPages;
-    
-    private int numValidPages;		// ¼Ŀǰҳ
-    
-    private Page[] pages;
+    /** Smallest number of frames worth giving a shard of its own. */
+    public static final int MIN_FRAMES_PER_SHARD = 64;
+
+    /** Default upper bound on the number of shards of a pool. */
+    public static final int DEFAULT_MAX_SHARDS =
+        Math.max(16, 2 * Runtime.getRuntime().availableProcessors());
+
+    private volatile int numPages;
+
+    private final ReplacementPolicyType policyType;
+
+    /** The frames of this pool, partitioned by PageId hash. */
+    private final BufferPoolShard[] shards;
+
+    private double bulkReadThreshold;
+
+    private final ReadAhead readAhead;
+
+    private final BackgroundWriter backgroundWriter;
+
+    /** True if the shards keep page bytes in off-heap arenas rather than
+        decoded on the Java heap. */
+    private final boolean offHeap;
+
+    /** Pages evicted per shard and step while shrinking. */
+    private static final int SHRINK_BATCH=16;
+
+    /** Thread evicting the surplus pages of a shrink, or null. */
+    private Thread shrinker;
+
+    /** Heap bytes the cached pages may occupy, 0 for no limit. */
+    private long memoryBudget=0;
+
+    /** Page locks of transactions; shared with the named pools, so that a
+        transaction locks a page no matter which pool caches it. */
+    private LockManager lockManager=new LockManager();
+
+    /** Number of page reads on behalf of requests in progress; background
+        warm-up reads wait for them. */
+    private final AtomicInteger foregroundReads=new AtomicInteger();
+
+    /** Threads waiting in awaitNoForegroundReads; the last foreground read
+        to finish notifies them on foregroundReads. */
+    private final AtomicInteger idleWaiters=new AtomicInteger();
+
+    private final BufferPoolStats stats=new BufferPoolStats();
+
+    /** Pools created by {@link #createPool}, by name. Requests for pages of
+        tables the Catalog binds to one of them are passed on to it. */
+    private final ConcurrentHashMap<String,BufferPool> namedPools=
+        new ConcurrentHashMap<String,BufferPool>();
     
     /**
-     * Creates a BufferPool that caches up to numPages pages.
+     * Creates a BufferPool that caches up to numPages pages, using the
+     * default replacement policy.
      *
      * @param numPages maximum number of pages in this buffer pool.
      */
     public BufferPool(int numPages) {
+        this(numPages, ReplacementPolicyType.DEFAULT);
+    }
+
+    /**
+     * Creates a BufferPool that caches up to numPages pages, split into as
+     * many shards as its size warrants.
+     *
+     * @param numPages maximum number of pages in this buffer pool.
+     * @param policyType the page replacement policy to evict pages with.
+     */
+    public BufferPool(int numPages, ReplacementPolicyType policyType) {
+        this(numPages, policyType, false);
+    }
+
+    /**
+     * Creates a BufferPool that caches up to numPages pages, split into as
+     * many shards as its size warrants.
+     *
+     * @param numPages maximum number of pages in this buffer pool.
+     * @param policyType the page replacement policy to evict pages with.
+     * @param offHeap true to store page bytes in an off-heap arena
+     * @see #BufferPool(int, ReplacementPolicyType, int, boolean)
+     */
+    public BufferPool(int numPages, ReplacementPolicyType policyType, boolean offHeap) {
+        this(numPages, policyType,
+                Math.min(DEFAULT_MAX_SHARDS, numPages / MIN_FRAMES_PER_SHARD), offHeap);
+    }
+
+    /**
+     * Creates a BufferPool that caches up to numPages pages.
+     * <p>
+     * Every page can only be cached in the shard its PageId hashes to, and
+     * each shard runs its own replacement policy on its own frames; a pool
+     * may therefore evict pages before all numPages frames are in use when
+     * pages do not spread evenly over the shards.
+     *
+     * @param numPages maximum number of pages in this buffer pool.
+     * @param policyType the page replacement policy to evict pages with.
+     * @param numShards the number of independently latched shards.
+     */
+    public BufferPool(int numPages, ReplacementPolicyType policyType, int numShards) {
+        this(numPages, policyType, numShards, false);
+    }
+
+    /**
+     * Creates a BufferPool that caches up to numPages pages, optionally
+     * keeping the bytes of HeapPages in an off-heap {@link FrameArena}.
+     * Resident HeapPages are then views that decode tuples on demand, and
+     * the Java heap only holds a small object per resident page. Callers
+     * that keep using a page while other pages are read should pin it: an
+     * unpinned view that is evicted is copied back onto the heap.
+     * <p>
+     * Tables may have different page sizes. numPages counts pages of any
+     * size; pages of PAGE_SIZE bytes are kept in an arena with one frame
+     * per page of the pool, pages of other sizes in arenas of their size
+     * that grow and shrink with the number of such pages resident.
+     *
+     * @param numPages maximum number of pages in this buffer pool.
+     * @param policyType the page replacement policy to evict pages with.
+     * @param numShards the number of independently latched shards.
+     * @param offHeap true to store page bytes in an off-heap arena
+     */
+    public BufferPool(int numPages, ReplacementPolicyType policyType, int numShards,
+            boolean offHeap) {
+        numShards=Math.max(1,Math.min(numShards,numPages));
         this.numPages=numPages;
-        this.numValidPages=0;
-        this.pages=new Page[numPages];
+        this.policyType=policyType;
+        this.offHeap=offHeap;
+        this.shards=new BufferPoolShard[numShards];
+        for(int i=0;i<numShards;i++){
+        	shards[i]=new BufferPoolShard(this,framesOfShard(i,numPages),policyType,offHeap);
+        }
+        this.bulkReadThreshold=DEFAULT_BULK_READ_THRESHOLD;
+        this.readAhead=new ReadAhead(this);
+        this.backgroundWriter=new BackgroundWriter(this);
+        this.backgroundWriter.start();
+    }
+
+    /** @return the counters of this pool, per table */
+    public BufferPoolStats getStats() {
+        return stats;
+    }
+
+    /** @return true if this pool keeps page bytes in off-heap arenas */
+    public boolean isOffHeap() {
+        return offHeap;
+    }
+
+    /** @return the number of bytes of off-heap memory held by this pool */
+    public long getOffHeapBytes() {
+        long n=0;
+        for(BufferPoolShard shard : shards){
+        	n+=shard.getOffHeapBytes();
+        }
+        return n;
+    }
+
+    /** @return the share of numPages frames that shard i gets */
+    private int framesOfShard(int i, int numPages) {
+        return numPages/shards.length+(i<numPages%shards.length?1:0);
+    }
+
+    /**
+     * Limits the Java heap the cached pages may occupy, in addition to the
+     * number of pages. Pages differ a lot in footprint: a decoded HeapPage
+     * holds Tuple and Field objects for every record plus a copy of its
+     * before image, depending on the schema several times the size of the
+     * page on disk, while an off-heap view costs little heap. Every
+     * resident page's footprint is estimated (see
+     * {@link HeapPage#getMemoryFootprint}) and pages are evicted until the
+     * pool fits. Like the frames, the budget is split evenly over the
+     * shards. Pinned pages and pages being written cannot be evicted and
+     * may keep the pool above the budget until they are released.
+     *
+     * @param bytes the budget, 0 to only limit the number of pages
+     * @throws IllegalArgumentException if bytes is negative
+     * @throws DbException if an evicted dirty page could not be written
+     */
+    public synchronized void setMemoryBudget(long bytes) throws DbException {
+        if(bytes<0){
+        	throw new IllegalArgumentException("invalid memory budget "+bytes);
+        }
+        memoryBudget=bytes;
+        for(int i=0;i<shards.length;i++){
+        	long share=bytes/shards.length+(i<bytes%shards.length?1:0);
+        	ArrayList<Page> evicted=new ArrayList<Page>();
+        	shards[i].setByteBudget(bytes==0?Long.MAX_VALUE:share,evicted);
+        	writeBack(evicted);
+        }
+    }
+
+    /** @return the heap bytes the cached pages may occupy, 0 for no limit */
+    public synchronized long getMemoryBudget() {
+        return memoryBudget;
+    }
+
+    /** @return the estimated heap bytes of all cached pages */
+    public long getMemoryUsed() {
+        long n=0;
+        for(BufferPoolShard shard : shards){
+        	n+=shard.getBytesUsed();
+        }
+        return n;
+    }
+
+    /**
+     * Changes the number of pages this pool caches while it is in use,
+     * keeping the cached pages. Growing takes effect immediately. When
+     * shrinking, new pages only go to the frames that remain, and a
+     * background thread evicts the pages of the surplus frames a few at a
+     * time, writing dirty ones first; readers are never blocked for more
+     * than one such step. Pinned pages stay until they are unpinned.
+     *
+     * @param numPages the new number of pages
+     * @throws IllegalArgumentException if numPages is smaller than the
+     *   number of shards
+     * @see #awaitResize
+     */
+    public synchronized void resize(int numPages) {
+        if(numPages<shards.length){
+        	throw new IllegalArgumentException("a pool of "+shards.length
+        			+" shards needs at least as many pages, not "+numPages);
+        }
+        boolean shrinking=false;
+        for(int i=0;i<shards.length;i++){
+        	shrinking|=shards[i].resize(framesOfShard(i,numPages));
+        }
+        this.numPages=numPages;
+        if(shrinking&&shrinker==null){
+        	shrinker=new Thread("BufferPool shrink") {
+        		public void run() {
+        			shrink();
+        		}
+        	};
+        	shrinker.setDaemon(true);
+        	shrinker.start();
+        }
+    }
+
+    /** Evicts the surplus pages of all shards, then ends the shrinker. */
+    private void shrink() {
+        while(true){
+        	boolean done=true;
+        	for(BufferPoolShard shard : shards){
+        		ArrayList<Page> evicted=new ArrayList<Page>();
+        		done&=shard.shrinkStep(SHRINK_BATCH,evicted);
+        		try{
+        			writeBack(evicted);
+        		}catch(DbException e){
+        			// the pages stay dirty in flight; retried by flushes
+        			System.err.println("shrink: "+e.getMessage());
+        		}
+        	}
+        	if(done){
+        		synchronized(this){
+        			// a resize may have started another shrink meanwhile
+        			boolean complete=true;
+        			for(BufferPoolShard shard : shards){
+        				complete&=shard.shrinkStep(0,null);
+        			}
+        			if(complete){
+        				shrinker=null;
+        				notifyAll();
+        				return;
+        			}
+        		}
+        	}
+        	try{
+        		Thread.sleep(1);
+        	}catch(InterruptedException e){
+        		synchronized(this){
+        			shrinker=null;
+        			notifyAll();
+        		}
+        		return;
+        	}
+        }
+    }
+
+    /**
+     * Waits until a shrink started by {@link #resize} has evicted all
+     * surplus pages.
+     */
+    public synchronized void awaitResize() throws InterruptedException {
+        while(shrinker!=null){
+        	wait();
+        }
+    }
+
+    /** @return the shard that caches the specified page */
+    private BufferPoolShard shardFor(PageId pid) {
+        return shards[(pid.hashCode()&0x7fffffff)%shards.length];
     }
 
     /**
@@ -47,31 +336,612 @@ public class BufferPool {
      * be added to the buffer pool and returned.  **If there is insufficient
      * space in the buffer pool, an page should be evicted and the new page
      * should be added in its place.
+     * <p>
+     * READ_ONLY takes a shared lock, READ_WRITE an exclusive one; both are
+     * held until the transaction completes.
      *
-     * @param tid the ID of the transaction requesting the page
+     * @param tid the ID of the transaction requesting the page, or null to
+     *   read the page without locking it
      * @param pid the ID of the requested page
      * @param perm the requested permissions on the page
      */
     public  Page getPage(TransactionId tid, PageId pid, Permissions perm)
         throws TransactionAbortedException, DbException {
-        for(int i=0;i < numPages;i++){
-            if (pages[i] != null) {
-                if (pages[i].getId().equals(pid)) {  
-                    System.out.println("ɹreturn");
-                    return pages[i];
-                }
-            } else {	// ҳûбʼ
-            	continue;
-            }
+        return getPage(tid, pid, perm, null);
+    }
+
+    /**
+     * Retrieve the specified page with the associated permissions, reading
+     * it through the specified access strategy if it is not resident.
+     * Pages loaded through a strategy only ever take the place of earlier
+     * pages of the same strategy's ring once the ring is full.
+     *
+     * @param tid the ID of the transaction requesting the page
+     * @param pid the ID of the requested page
+     * @param perm the requested permissions on the page
+     * @param strategy the ring to load the page into, or null to use the
+     *   whole pool
+     * @see #getPage(TransactionId, PageId, Permissions)
+     */
+    public  Page getPage(TransactionId tid, PageId pid, Permissions perm,
+            BufferAccessStrategy strategy)
+        throws TransactionAbortedException, DbException {
+        return fetchPage(tid,pid,perm,strategy,false);
+    }
+
+    /**
+     * Retrieve the specified page like getPage and pin it. A pinned page
+     * stays resident, and is therefore never read or decoded again, until
+     * every pin on it is released with {@link #unpinPage}. Iterators pin
+     * the page they are positioned on and unpin it when they move on or
+     * are closed.
+     *
+     * @param tid the ID of the transaction requesting the page
+     * @param pid the ID of the requested page
+     * @param perm the requested permissions on the page
+     * @param strategy the ring to load the page into, or null to use the
+     *   whole pool
+     * @see #getPage(TransactionId, PageId, Permissions, BufferAccessStrategy)
+     */
+    public  Page pinPage(TransactionId tid, PageId pid, Permissions perm,
+            BufferAccessStrategy strategy)
+        throws TransactionAbortedException, DbException {
+        return fetchPage(tid,pid,perm,strategy,true);
+    }
+
+    /**
+     * Releases one pin on a page taken by {@link #pinPage}.
+     *
+     * @param page the page pinPage returned; if it was discarded meanwhile,
+     *   its pins are gone and nothing happens, even if the page was read
+     *   again since
+     * @throws IllegalStateException if the page is resident but not pinned
+     */
+    public  void unpinPage(Page page) {
+        PageId pid=page.getId();
+        getPoolForTable(pid.getTableId()).shardFor(pid).unpin(page);
+    }
+
+    /**
+     * Creates a pool that caches the pages of the tables the Catalog binds
+     * to name, separately from the pages of all other tables. Requests made
+     * through this pool for pages of such tables are passed on to the named
+     * pool, so callers keep using {@link Database#getBufferPool}.
+     *
+     * @param name the name tables are bound to with
+     *   {@link Catalog#setBufferPool}
+     * @param numPages the number of pages the new pool caches
+     * @param policyType the replacement policy of the new pool
+     * @return the new pool
+     * @throws IllegalArgumentException if a pool with that name exists
+     */
+    public BufferPool createPool(String name, int numPages, ReplacementPolicyType policyType) {
+        BufferPool pool=new BufferPool(numPages,policyType,offHeap);
+        pool.lockManager=lockManager;
+        if(namedPools.putIfAbsent(name,pool)!=null){
+        	pool.close();
+        	throw new IllegalArgumentException("buffer pool "+name+" exists");
+        }
+        return pool;
+    }
+
+    /** @return the pool created with the specified name, or null */
+    public BufferPool getPool(String name) {
+        return namedPools.get(name);
+    }
+
+    /** @return the names of the pools created by {@link #createPool} */
+    public Set<String> getPoolNames() {
+        return new TreeSet<String>(namedPools.keySet());
+    }
+
+    /**
+     * Writes the dirty pages of a named pool to disk and removes it. Tables
+     * bound to it are cached in this pool from then on.
+     */
+    public synchronized void dropPool(String name) throws IOException {
+        BufferPool pool=namedPools.remove(name);
+        if(pool!=null){
+        	pool.flushAllPages();
+        	pool.close();
         }
-        if(numValidPages<numPages){
-        	pages[numValidPages]=Database.getCatalog().getDbFile(pid.getTableId()).readPage(pid);
-        	numValidPages++;
-        	return pages[numValidPages-1];
+    }
+
+    /**
+     * @return the pool that caches the pages of the specified table: the
+     *   named pool the Catalog binds it to if that pool exists, this pool
+     *   otherwise
+     */
+    public BufferPool getPoolForTable(int tableId) {
+        if(namedPools.isEmpty()){
+        	return this;
+        }
+        String name=Database.getCatalog().getBufferPoolName(tableId);
+        BufferPool pool=name==null?null:namedPools.get(name);
+        return pool==null?this:pool;
+    }
+
+    private Page fetchPage(TransactionId tid, PageId pid, Permissions perm,
+            BufferAccessStrategy strategy, boolean pin)
+        throws TransactionAbortedException, DbException {
+        if(tid!=null){
+        	lockManager.acquire(tid,pid,perm==Permissions.READ_WRITE);
+        }
+        BufferPool owner=getPoolForTable(pid.getTableId());
+        if(owner!=this){
+        	return owner.fetchPage(tid,pid,perm,strategy,pin);
         }
-        else{
-        	throw new DbException("BufferPool Overflow");
+        BufferPoolShard shard=shardFor(pid);
+        Page page=shard.lookup(pid,strategy,pin);
+        boolean hit=page!=null;
+        if(page==null){
+        	stats.recordMiss(pid.getTableId());
+        	// read outside of the shard latch so that hits are not held up
+        	foregroundReads.incrementAndGet();
+        	try{
+        		page=readPage(pid);
+        	}catch(UncheckedIOException e){
+        		shard.readDone(pid);
+        		DbException failed=new DbException(e.getMessage());
+        		failed.initCause(e.getCause());
+        		throw failed;
+        	}catch(RuntimeException e){
+        		shard.readDone(pid);
+        		throw e;
+        	}finally{
+        		if(foregroundReads.decrementAndGet()==0&&idleWaiters.get()>0){
+        			synchronized(foregroundReads){
+        				foregroundReads.notifyAll();
+        			}
+        		}
+        	}
+        	ArrayList<Page> evicted=new ArrayList<Page>(2);
+        	Page installed=null;
+        	try{
+        		if(strategy!=null){
+        			recycle(strategy.nextVictim(),evicted);
+        		}
+        		installed=shard.install(page,strategy!=null,false,evicted,pin);
+        	}finally{
+        		try{
+        			writeBack(evicted);
+        		}catch(DbException e){
+        			if(installed!=null&&pin){
+        				shard.unpin(installed);
+        			}
+        			throw e;
+        		}
+        	}
+        	page=installed;
+        	if(strategy!=null){
+        		strategy.pageLoaded(pid);
+        	}
+        }else{
+        	stats.recordHit(pid.getTableId());
+        	PageId displaced=strategy!=null?strategy.takeDisplaced():null;
+        	if(displaced!=null){
+        		ArrayList<Page> evicted=new ArrayList<Page>(1);
+        		recycle(displaced,evicted);
+        		writeBack(evicted);
+        	}
         }
+        readAhead.pageRequested(pid,strategy,hit);
+        return page;
+    }
+
+    /**
+     * Loads a page into a free frame on behalf of a warm-up after restart.
+     * Nothing is evicted; the page is skipped if it is resident already or
+     * its shard is full.
+     *
+     * @return true if the page was loaded
+     */
+    boolean warmUpPage(PageId pid) {
+        BufferPool owner=getPoolForTable(pid.getTableId());
+        if(owner!=this){
+        	return owner.warmUpPage(pid);
+        }
+        BufferPoolShard shard=shardFor(pid);
+        if(!shard.startWarmUp(pid)){
+        	return false;
+        }
+        Page page;
+        try{
+        	page=readPage(pid);
+        }catch(RuntimeException e){
+        	// the table was dropped or truncated since the pages were saved
+        	shard.readDone(pid);
+        	return false;
+        }
+        ArrayList<Page> evicted=new ArrayList<Page>(1);
+        try{
+        	boolean loaded=shard.install(page,false,false,evicted,false)==page;
+        	writeBack(evicted);
+        	return loaded;
+        }catch(DbException e){
+        	return false;
+        }
+    }
+
+    /** @return the number of page reads on behalf of requests that are in
+        progress right now */
+    int getForegroundReads() {
+        return foregroundReads.get();
+    }
+
+    /**
+     * Waits until no request is reading a page in this pool or in any of
+     * its named pools.
+     */
+    void awaitNoForegroundReads() throws InterruptedException {
+        idleWaiters.incrementAndGet();
+        try{
+        	synchronized(foregroundReads){
+        		while(foregroundReads.get()>0){
+        			foregroundReads.wait();
+        		}
+        	}
+        }finally{
+        	idleWaiters.decrementAndGet();
+        }
+        for(BufferPool pool : namedPools.values()){
+        	pool.awaitNoForegroundReads();
+        }
+    }
+
+    /**
+     * Saves the ids of the resident pages of this pool and its named pools
+     * to a file, most recently used first, so that {@link #warmUp} can
+     * load them again after a restart.
+     */
+    public void saveResidentPages(File f) throws IOException {
+        ArrayList<BufferPoolWarmer.Entry> entries=new ArrayList<BufferPoolWarmer.Entry>();
+        collectAccessOrder(entries);
+        BufferPoolWarmer.save(entries,f);
+    }
+
+    private void collectAccessOrder(List<BufferPoolWarmer.Entry> entries) {
+        for(BufferPoolShard shard : shards){
+        	shard.collectAccessOrder(entries);
+        }
+        for(BufferPool pool : namedPools.values()){
+        	pool.collectAccessOrder(entries);
+        }
+    }
+
+    /**
+     * Starts loading the pages saved by {@link #saveResidentPages} in the
+     * background. Every page goes to the pool that caches its table, so
+     * the named pools and the tables bound to them must be set up first.
+     * The most recently used pages that fit into the free frames of their
+     * pools are read in file order on a low priority thread that gives way
+     * to page reads of requests. Pages that were not saved are never
+     * evicted to make room.
+     *
+     * @return the running warm-up thread
+     * @throws IOException if f cannot be read
+     */
+    public BufferPoolWarmer warmUp(File f) throws IOException {
+        BufferPoolWarmer warmer=new BufferPoolWarmer(this,BufferPoolWarmer.load(f));
+        warmer.start();
+        return warmer;
+    }
+
+    /** Reads a page from its DbFile. */
+    private Page readPage(PageId pid) {
+        return readPages(pid,1).get(0);
+    }
+
+    /**
+     * Reads count consecutive pages from their DbFile, more than one with a
+     * single call. With off-heap arenas, HeapPages are read without
+     * decoding them, as they are copied into the arena anyway; a
+     * memory-mapped HeapFile hands out views that need no copy of their own.
+     */
+    private List<Page> readPages(PageId first, int count) {
+        DbFile file=Database.getCatalog().getDbFile(first.getTableId());
+        long start=System.nanoTime();
+        List<Page> pages;
+        if(offHeap&&file instanceof HeapFile&&!((HeapFile)file).isMemoryMapped()){
+        	byte[] run=((HeapFile)file).readPagesData(first,count);
+        	int pageSize=file.getPageSize();
+        	pages=new ArrayList<Page>(count);
+        	for(int i=0;i<count;i++){
+        		pages.add(new HeapPage(new HeapPageId(first.getTableId(),first.pageNumber()+i),
+        				ByteBuffer.wrap(run,i*pageSize,pageSize).slice()));
+        	}
+        }else if(count==1){
+        	pages=Collections.singletonList(file.readPage(first));
+        }else{
+        	pages=file.readPages(first,count);
+        }
+        long nanos=System.nanoTime()-start;
+        for(int i=0;i<count;i++){
+        	stats.recordRead(first.getTableId(),nanos/count);
+        }
+        return pages;
+    }
+
+    /**
+     * Frees the frame of a page that left a bulk read ring, provided it
+     * still belongs to the ring alone.
+     */
+    private void recycle(PageId pid, List<Page> evicted) {
+        if(pid!=null){
+        	shardFor(pid).recycle(pid,evicted);
+        }
+    }
+
+    /**
+     * Writes dirty pages that were evicted from their shard and lets
+     * readers waiting for them proceed.
+     */
+    private void writeBack(List<Page> evicted) throws DbException {
+        if(evicted.isEmpty()){
+        	return;
+        }
+        try{
+        	writePages(evicted,false);
+        }catch(IOException e){
+        	throw new DbException("could not write back evicted page: "+e.getMessage());
+        }finally{
+        	for(Page p : evicted){
+        		shardFor(p.getId()).readDone(p.getId());
+        	}
+        }
+        backgroundWriter.wakeup();
+    }
+
+    /**
+     * Loads consecutive pages of a HeapFile into the pool on behalf of
+     * read-ahead, skipping those already resident, being read, or already
+     * passed by the scan they were scheduled for. Each run of pages that
+     * remains is read with a single call. Errors are not reported:
+     * read-ahead is only a hint, a page will be read again when it is
+     * requested.
+     *
+     * @param forRing true if the pages are read ahead of a scan that uses
+     *   a bulk read ring; such pages are adopted by the ring on first use
+     */
+    void prefetchPages(int tableId, int from, int count, boolean forRing) {
+        readRuns(tableId,from,count,forRing,true);
+    }
+
+    /**
+     * Loads consecutive pages of a table like {@link #prefetchPages}, but
+     * whether or not the read-ahead stream of the table has passed them.
+     * Parallel scans use this to read the pages of their partitions in
+     * runs: their workers do not form one sequential stream.
+     */
+    void loadPages(int tableId, int from, int count, boolean forRing) {
+        BufferPool owner=getPoolForTable(tableId);
+        if(owner!=this){
+        	owner.loadPages(tableId,from,count,forRing);
+        	return;
+        }
+        readRuns(tableId,from,count,forRing,false);
+    }
+
+    private void readRuns(int tableId, int from, int count, boolean forRing,
+            boolean unlessStale) {
+        int i=0;
+        while(i<count){
+        	int start=i;
+        	while(i<count&&shardFor(new HeapPageId(tableId,from+i))
+        			.startPrefetch(new HeapPageId(tableId,from+i),unlessStale)){
+        		i++;
+        	}
+        	if(i>start){
+        		prefetchRun(new HeapPageId(tableId,from+start),i-start,forRing);
+        	}else{
+        		i++;
+        	}
+        }
+    }
+
+    /** Reads and installs a run of pages reserved with startPrefetch. */
+    private void prefetchRun(PageId first, int count, boolean forRing) {
+        List<Page> pages=null;
+        try{
+        	pages=readPages(first,count);
+        }catch(RuntimeException e){
+        	// the table was dropped or truncated meanwhile
+        }
+        if(pages==null){
+        	for(int i=0;i<count;i++){
+        		PageId pid=new HeapPageId(first.getTableId(),first.pageNumber()+i);
+        		shardFor(pid).readDone(pid);
+        	}
+        	return;
+        }
+        for(Page page : pages){
+        	ArrayList<Page> evicted=new ArrayList<Page>(1);
+        	try{
+        		if(shardFor(page.getId()).install(page,forRing,true,evicted,false)==page){
+        			readAhead.recordPrefetched();
+        		}
+        		writeBack(evicted);
+        	}catch(DbException e){
+        		// no frame could be freed or written; skip this page
+        	}
+        }
+    }
+
+    /** @return the background writer of this pool, to tune it or read its
+        counters */
+    public BackgroundWriter getBackgroundWriter() {
+        return backgroundWriter;
+    }
+
+    /**
+     * Stops the background threads of this pool. Dirty pages are not
+     * flushed; call {@link #flushAllPages} first if they should be.
+     */
+    public void close() {
+        backgroundWriter.shutdown();
+        for(BufferPool pool : namedPools.values()){
+        	pool.close();
+        }
+    }
+
+    /** @return the read-ahead component of this pool, to tune it or read
+        its counters */
+    public ReadAhead getReadAhead() {
+        return readAhead;
+    }
+
+    /**
+     * Sets how large a table has to be, as a fraction of the number of
+     * pages in this pool, before sequential scans over it switch to a
+     * bulk read ring. Use a value of 0 to let all scans use rings.
+     */
+    public void setBulkReadThreshold(double fraction) {
+        if(fraction<0){
+        	throw new IllegalArgumentException("negative bulk read threshold");
+        }
+        this.bulkReadThreshold=fraction;
+    }
+
+    public double getBulkReadThreshold() {
+        return bulkReadThreshold;
+    }
+
+    /**
+     * Returns the access strategy a sequential scan over a table of
+     * tablePages pages should use: a bulk read ring if the table is larger
+     * than the bulk read threshold, or null to use the whole pool.
+     */
+    public BufferAccessStrategy getBulkReadStrategy(int tablePages) {
+        return getBulkReadStrategy(tablePages,PAGE_SIZE);
+    }
+
+    /**
+     * Returns the access strategy for a scan over a table whose pages
+     * have pageSize bytes; the ring holds the same number of bytes whatever
+     * the page size.
+     */
+    public BufferAccessStrategy getBulkReadStrategy(int tablePages, int pageSize) {
+        if(tablePages<=bulkReadThreshold*numPages){
+        	return null;
+        }
+        // never let the ring take more than an eighth of the pool
+        int ringSize=Math.min(Math.max(1,BufferAccessStrategy.DEFAULT_RING_BYTES/pageSize),
+        		Math.max(1,numPages/8));
+        return new BufferAccessStrategy(ringSize);
+    }
+
+    /**
+     * Checks that a DbFile may use pages of the specified size: a power of
+     * two from MIN_PAGE_SIZE to MAX_PAGE_SIZE.
+     *
+     * @throws IllegalArgumentException if it may not
+     */
+    public static void checkPageSize(int pageSize) {
+        if(pageSize<MIN_PAGE_SIZE||pageSize>MAX_PAGE_SIZE||Integer.bitCount(pageSize)!=1){
+        	throw new IllegalArgumentException("invalid page size "+pageSize);
+        }
+    }
+
+    /** @return the maximum number of pages this pool caches */
+    public int getNumPages() {
+        return numPages;
+    }
+
+    /** @return the number of independently latched shards of this pool */
+    public int getNumShards() {
+        return shards.length;
+    }
+
+    /** @return the number of pages currently cached */
+    public int getNumResidentPages() {
+        int n=0;
+        for(BufferPoolShard shard : shards){
+        	n+=shard.getNumValidPages();
+        }
+        return n;
+    }
+
+    /** @return the replacement policy type the shards of this pool use */
+    public ReplacementPolicyType getReplacementPolicyType() {
+        return policyType;
+    }
+
+    /** @return the number of page requests served from the pool, as
+        counted by {@link #getStats} */
+    public long getHits() {
+        return stats.getTotalHits();
+    }
+
+    /** @return the number of page requests that read their page from
+        disk; pages loaded by read-ahead or warm-up are not counted */
+    public long getMisses() {
+        return stats.getTotalMisses();
+    }
+
+    /** @return hits / (hits + misses) over all tables */
+    public double getHitRate() {
+        long hits=getHits();
+        long total=hits+getMisses();
+        return total==0?0.0:(double)hits/total;
+    }
+
+    /** @return true if the page is cached by this pool or the pool of its
+        table */
+    public boolean isResident(PageId pid) {
+        return getPoolForTable(pid.getTableId()).shardFor(pid).isResident(pid);
+    }
+
+    /** @return the number of pins currently held on the page */
+    public int getPinCount(PageId pid) {
+        return getPoolForTable(pid.getTableId()).shardFor(pid).getPinCount(pid);
+    }
+
+    /** @return the number of resident pages that are pinned right now */
+    public int getNumPinnedPages() {
+        int n=0;
+        for(BufferPoolShard shard : shards){
+        	n+=shard.getNumPinnedFrames();
+        }
+        return n;
+    }
+
+    /** @return the number of pins taken so far */
+    public long getTotalPins() {
+        long n=0;
+        for(BufferPoolShard shard : shards){
+        	n+=shard.getTotalPins();
+        }
+        return n;
+    }
+
+    /** @return the number of completed periods during which a page was
+        pinned, from its first pin until its last pin was released */
+    public long getPinHoldCount() {
+        long n=0;
+        for(BufferPoolShard shard : shards){
+        	n+=shard.getPinHoldCount();
+        }
+        return n;
+    }
+
+    /** @return the mean length of the completed pin periods in nanoseconds,
+        0 if there were none */
+    public long getMeanPinHoldNanos() {
+        long count=0,total=0;
+        for(BufferPoolShard shard : shards){
+        	count+=shard.getPinHoldCount();
+        	total+=shard.getPinHoldNanos();
+        }
+        return count==0?0:total/count;
+    }
+
+    /** @return the longest completed pin period in nanoseconds */
+    public long getMaxPinHoldNanos() {
+        long max=0;
+        for(BufferPoolShard shard : shards){
+        	max=Math.max(max,shard.getMaxPinHoldNanos());
+        }
+        return max;
     }
 
     /**
@@ -84,8 +954,7 @@ public class BufferPool {
      * @param pid the ID of the page to unlock
      */
     public  void releasePage(TransactionId tid, PageId pid) {
-        // some code goes here
-        // not necessary for lab1|lab2
+        lockManager.release(tid,pid);
     }
 
     /**
@@ -94,28 +963,83 @@ public class BufferPool {
      * @param tid the ID of the transaction requesting the unlock
      */
     public void transactionComplete(TransactionId tid) throws IOException {
-        // some code goes here
-        // not necessary for lab1|lab2
+        transactionComplete(tid,true);
     }
 
     /** Return true if the specified transaction has a lock on the specified page */
     public boolean holdsLock(TransactionId tid, PageId p) {
-        // some code goes here
-        // not necessary for lab1|lab2
-        return false;
+        return lockManager.holdsLock(tid,p);
+    }
+
+    /** @return the lock manager that grants the page locks of this pool */
+    public LockManager getLockManager() {
+        return lockManager;
     }
 
     /**
      * Commit or abort a given transaction; release all locks associated to
      * the transaction.
+     * <p>
+     * A commit writes the pages the transaction dirtied to disk, makes
+     * their current contents the before image and logs the commit; the
+     * log forces of concurrent commits are shared (group commit). An
+     * abort discards the resident pages the transaction locked
+     * exclusively, so that they are read again from disk, and
+     * {@link LogFile#logAbort} restores the disk copies of those already
+     * written from the before images in the log. The locks are released
+     * in both cases, also if writing fails.
      *
      * @param tid the ID of the transaction requesting the unlock
      * @param commit a flag indicating whether we should commit or abort
      */
     public void transactionComplete(TransactionId tid, boolean commit)
         throws IOException {
-        // some code goes here
-        // not necessary for lab1|lab2
+        try{
+        	if(commit){
+        		Set<PageId> locked=lockManager.getLockedPages(tid);
+        		// not flushPages, whose pool monitor would keep concurrent
+        		// commits from sharing log forces; only the pages locked
+        		// exclusively can be dirty, so no other frame is looked at
+        		Map<BufferPool,List<Page>> dirty=new LinkedHashMap<BufferPool,List<Page>>();
+        		for(PageId pid : lockManager.getExclusivePages(tid)){
+        			BufferPool owner=getPoolForTable(pid.getTableId());
+        			Page p=owner.shardFor(pid).getResidentPage(pid);
+        			if(p!=null&&p.isDirty()!=null&&tid.equals(p.isDirty())){
+        				List<Page> pages=dirty.get(owner);
+        				if(pages==null){
+        					pages=new ArrayList<Page>();
+        					dirty.put(owner,pages);
+        				}
+        				pages.add(p);
+        			}
+        		}
+        		for(Map.Entry<BufferPool,List<Page>> e : dirty.entrySet()){
+        			e.getKey().writePages(e.getValue(),true);
+        		}
+        		for(PageId pid : locked){
+        			Page p=getPoolForTable(pid.getTableId()).shardFor(pid).getResidentPage(pid);
+        			if(p!=null){
+        				p.setBeforeImage();
+        			}
+        		}
+        		Database.getLogFile().logCommit(tid);
+        	}else{
+        		// every page tid could change goes, dirty or not: a page the
+        		// background writer or an eviction wrote is clean but still
+        		// holds the changes, which rollback then undoes on disk
+        		List<PageId> exclusive=lockManager.getExclusivePages(tid);
+        		for(PageId pid : exclusive){
+        			getPoolForTable(pid.getTableId()).shardFor(pid).discardWhenIdle(pid);
+        		}
+        		Database.getLogFile().logAbort(tid);
+        		// and copies read meanwhile, before the disk was restored
+        		for(PageId pid : exclusive){
+        			getPoolForTable(pid.getTableId()).shardFor(pid).discardWhenIdle(pid);
+        		}
+        	}
+        }finally{
+        	lockManager.releaseAll(tid);
+        }
     }
 
     /**
@@ -134,8 +1058,10 @@ public class BufferPool {
      */
     public void insertTuple(TransactionId tid, int tableId, Tuple t)
         throws DbException, IOException, TransactionAbortedException {
-        // some code goes here
-        // not necessary for lab1
+        DbFile file=Database.getCatalog().getDbFile(tableId);
+        for(Page p : file.insertTuple(tid,t)){
+        	p.markDirty(true,tid);
+        }
     }
 
     /**
@@ -153,8 +1079,11 @@ public class BufferPool {
      */
     public  void deleteTuple(TransactionId tid, Tuple t)
         throws DbException, TransactionAbortedException {
-        // some code goes here
-        // not necessary for lab1
+        if(t.getRecordId()==null){
+        	throw new DbException("tuple is not stored in any table");
+        }
+        DbFile file=Database.getCatalog().getDbFile(t.getRecordId().getPageId().getTableId());
+        file.deleteTuple(tid,t).markDirty(true,tid);
     }
 
     /**
@@ -163,9 +1092,10 @@ public class BufferPool {
      *     break simpledb if running in NO STEAL mode.
      */
     public synchronized void flushAllPages() throws IOException {
-        // some code goes here
-        // not necessary for lab1
-
+        writePages(getDirtyPages(null),true);
+        for(BufferPool pool : namedPools.values()){
+        	pool.flushAllPages();
+        }
     }
 
     /** Remove the specific page id from the buffer pool.
@@ -173,9 +1103,8 @@ public class BufferPool {
         buffer pool doesn't keep a rolled back page in its
         cache.
     */
-    public synchronized void discardPage(PageId pid) {
-        // some code goes here
-        // only necessary for lab5
+    public void discardPage(PageId pid) {
+        getPoolForTable(pid.getTableId()).shardFor(pid).discard(pid);
     }
 
     /**
@@ -183,24 +1112,158 @@ public class BufferPool {
      * @param pid an ID indicating the page to flush
      */
     private synchronized  void flushPage(PageId pid) throws IOException {
-        // some code goes here
-        // not necessary for lab1
+        BufferPool owner=getPoolForTable(pid.getTableId());
+        Page page=owner.shardFor(pid).getResidentPage(pid);
+        if(page!=null){
+        	owner.writePages(Collections.singletonList(page),true);
+        }
     }
 
     /** Write all pages of the specified transaction to disk.
      */
     public synchronized  void flushPages(TransactionId tid) throws IOException {
-        // some code goes here
-        // not necessary for lab1|lab2
+        writePages(getDirtyPages(tid),true);
+        for(BufferPool pool : namedPools.values()){
+        	pool.flushPages(tid);
+        }
+    }
+
+    /**
+     * @param tid only return pages dirtied by this transaction, or null to
+     *   return all dirty pages
+     * @return the dirty pages currently resident in this pool
+     */
+    List<Page> getDirtyPages(TransactionId tid) {
+        ArrayList<Page> dirty=new ArrayList<Page>();
+        for(BufferPoolShard shard : shards){
+        	shard.collectDirtyPages(tid,dirty);
+        }
+        return dirty;
     }
 
+    /** Orders page ids by table and page number, i.e. by position on disk. */
+    static final Comparator<PageId> PAGE_ID_ORDER=new Comparator<PageId>() {
+        public int compare(PageId x, PageId y) {
+            if(x.getTableId()!=y.getTableId()){
+            	return x.getTableId()<y.getTableId()?-1:1;
+            }
+            return x.pageNumber()-y.pageNumber();
+        }
+    };
+
+    /** Orders pages by their ids, see {@link #PAGE_ID_ORDER}. */
+    static final Comparator<Page> FILE_ORDER=new Comparator<Page>() {
+        public int compare(Page a, Page b) {
+            return PAGE_ID_ORDER.compare(a.getId(),b.getId());
+        }
+    };
+
     /**
-     * Discards a page from the buffer pool.
-     * Flushes the page to disk to ensure dirty pages are updated on disk.
+     * Writes the dirty ones among the specified pages to disk, in file
+     * order, merging runs of adjacent pages of a HeapFile into a single
+     * write.
+     * <p>
+     * Write-ahead logging is respected: an UPDATE record holding the before
+     * and after image of every page is appended and the log is forced
+     * before any page is written, sharing the force with concurrent commits
+     * (see {@link LogFile#forceUpTo}). The LogFile monitor is always taken
+     * before the monitor of a page; a page is serialized, logged and marked
+     * clean under its own monitor, which is what code modifying a page has
+     * to hold as well.
+     *
+     * @param pages the pages to write; clean pages are skipped
+     * @param resident true if the pages are resident and must be protected
+     *   from eviction while they are written, false for pages that have
+     *   already been evicted
+     * @return the number of pages written
      */
-    private synchronized  void evictPage() throws DbException {
-        // some code goes here
-        // not necessary for lab1
+    int writePages(List<Page> pages, boolean resident) throws IOException {
+        ArrayList<Page> candidates=new ArrayList<Page>(pages.size());
+        ArrayList<Page> written=new ArrayList<Page>(pages.size());
+        HashMap<PageId,byte[]> images=new HashMap<PageId,byte[]>();
+        HashMap<PageId,TransactionId> dirtiers=new HashMap<PageId,TransactionId>();
+        long logged;
+        try{
+        	// claimed in file order and outside the log monitor: a writer
+        	// only waits for claims on pages after those it holds, and the
+        	// holder of a claim may need the monitor to force the log
+        	ArrayList<Page> ordered=new ArrayList<Page>(pages);
+        	Collections.sort(ordered,FILE_ORDER);
+        	for(Page p : ordered){
+        		if(!resident||shardFor(p.getId()).beginWrite(p.getId())){
+        			candidates.add(p);
+        		}
+        	}
+        	LogFile log=Database.getLogFile();
+        	synchronized(log){
+        		for(Page p : candidates){
+        			synchronized(p){
+        				TransactionId dirtier=p.isDirty();
+        				if(dirtier==null){
+        					continue;
+        				}
+        				images.put(p.getId(),p.getPageData());
+        				dirtiers.put(p.getId(),dirtier);
+        				log.logWrite(dirtier,p.getBeforeImage(),p);
+        				p.markDirty(false,null);
+        				written.add(p);
+        			}
+        		}
+        		logged=log.getAppendSequence();
+        	}
+        	if(!written.isEmpty()){
+        		// forced outside the monitor, together with concurrent commits
+        		log.forceUpTo(logged);
+        	}
+        	int i=0;
+        	while(i<written.size()){
+        		int j=i+1;
+        		PageId first=written.get(i).getId();
+        		DbFile file=Database.getCatalog().getDbFile(first.getTableId());
+        		long start=System.nanoTime();
+        		if(file instanceof HeapFile||file instanceof CompressedHeapFile){
+        			while(j<written.size()
+        					&&written.get(j).getId().getTableId()==first.getTableId()
+        					&&written.get(j).getId().pageNumber()==first.pageNumber()+(j-i)){
+        				j++;
+        			}
+        			ArrayList<byte[]> run=new ArrayList<byte[]>(j-i);
+        			for(int k=i;k<j;k++){
+        				run.add(images.get(written.get(k).getId()));
+        			}
+        			if(file instanceof HeapFile){
+        				((HeapFile)file).writePages(first.pageNumber(),run);
+        			}else{
+        				((CompressedHeapFile)file).writePages(first.pageNumber(),run);
+        			}
+        		}else{
+        			file.writePage(written.get(i));
+        		}
+        		stats.recordWrite(first.getTableId(),j-i,System.nanoTime()-start);
+        		for(int k=i;k<j;k++){
+        			dirtiers.remove(written.get(k).getId());
+        		}
+        		i=j;
+        	}
+        	return written.size();
+        }finally{
+        	// pages that could not be written are still dirty
+        	for(Page p : written){
+        		TransactionId dirtier=dirtiers.get(p.getId());
+        		if(dirtier!=null){
+        			synchronized(p){
+        				if(p.isDirty()==null){
+        					p.markDirty(true,dirtier);
+        				}
+        			}
+        		}
+        	}
+        	if(resident){
+        		for(Page p : candidates){
+        			shardFor(p.getId()).endWrite(p.getId());
+        		}
+        	}
+        }
     }
 
 }
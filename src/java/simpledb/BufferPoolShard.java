@@ -0,0 +1,716 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * A BufferPoolShard owns a subset of the frames of a BufferPool
+ * together with everything needed to manage them: the page table mapping
+ * its pages to frames, the free list, its own replacement policy and the
+ * set of pages currently being read into it. The BufferPool assigns every
+ * page to exactly one shard by hashing its PageId.
+ * <p>
+ * Each shard is latched by its own monitor, so lookups and evictions on
+ * different shards never contend. A shard latch is never held while
+ * acquiring another shard's latch, the BufferPool's monitor or the
+ * LogFile, and no I/O is done under it. The monitor of a page is only
+ * taken under the latch to move the page into or out of the arena.
+ * <p>
+ * The number of frames can be changed while the shard is in use. Growing
+ * takes effect at once. Shrinking first stops handing out the surplus
+ * frames at the end of the frame arrays; {@link #shrinkStep} then evicts
+ * their pages a few at a time, and once they are all empty the arrays are
+ * cut down.
+ * <p>
+ * A frame may hold a page of any page size. Off-heap, pages of
+ * BufferPool.PAGE_SIZE bytes live in an arena with one frame per frame of
+ * the shard; pages of other sizes get frames from an arena per size that
+ * is allocated while pages of that size are resident.
+ * <p>
+ * Besides the number of frames, the pages of a shard may be limited by a
+ * budget of heap bytes. The footprint of every resident page is estimated
+ * when it is installed and measured again when it is requested or written,
+ * since modifications change it. Pages are evicted until the shard fits
+ * into its budget; only pinned pages and pages being written may keep it
+ * above the budget for a while.
+ *
+ * @see BufferPool
+ */
+class BufferPoolShard {
+
+    private final BufferPool pool;
+
+    private final ReplacementPolicyType policyType;
+
+    /** Number of frames this shard may use; frames at or beyond it are
+        being vacated by a shrink. */
+    private int numFrames;
+
+    /** The arena holding the bytes of resident HeapPages of
+        BufferPool.PAGE_SIZE bytes, or null if the shard is on the heap. */
+    private final FrameArena arena;
+
+    /** Arenas of pages of other sizes, by page size. */
+    private final HashMap<Integer,FrameArena> sizedArenas;
+
+    /** Bytes of the segments of the arenas in sizedArenas. */
+    private static final int SIZED_SEGMENT_BYTES = 1 << 20;
+
+    /** For frames holding a view of a frame of one of sizedArenas, the
+        index of that frame; -1 for all other frames. */
+    private int[] sizedFrames;
+
+    private int numValidPages;
+
+    /** The frames; may be longer than numFrames while shrinking. */
+    private Page[] pages;
+
+    /** Maps every resident page to the index of the frame holding it. */
+    private final HashMap<PageId,Integer> pageTable;
+
+    /** Indexes of frames that currently hold no page. */
+    private final LinkedList<Integer> freeFrames;
+
+    /** Decides which frame to give up when no frame is free. */
+    private ReplacementPolicy policy;
+
+    /** True for frames whose page was read by a BufferAccessStrategy and
+        has not been used outside of it since; only those may be recycled
+        by the strategy's ring. */
+    private boolean[] ringOwned;
+
+    /** True for frames loaded by read-ahead that were not requested yet. */
+    private boolean[] prefetched;
+
+    /** Pages that some thread is currently reading from disk, or that
+        were evicted dirty and are still being written back. */
+    private final HashSet<PageId> inFlight;
+
+    /** Resident pages that are being written to disk right now. */
+    private final HashSet<PageId> writing;
+
+    /** Number of unreleased pins on every frame; pinned frames are never
+        evicted. */
+    private int[] pins;
+
+    /** System.nanoTime() at which a pinned frame got its first pin. */
+    private long[] pinnedSince;
+
+    /** System.nanoTime() of the last request of every frame's page, 0 for
+        pages read ahead that were never requested. */
+    private long[] lastAccess;
+
+    /** Heap bytes the pages of this shard may occupy. */
+    private long byteBudget = Long.MAX_VALUE;
+
+    /** Estimated heap bytes of the page in every frame. */
+    private long[] footprints;
+
+    /** Sum of footprints. */
+    private long bytesUsed;
+
+    /** Frame that eviction must not choose, or -1. */
+    private int keepFrame = -1;
+
+    private long pinCount;
+    private long pinHoldCount;
+    private long pinHoldNanos;
+    private long maxPinHoldNanos;
+
+    /** Frames that can be given up without writing anything. */
+    private final ReplacementPolicy.FrameFilter clean =
+        new ReplacementPolicy.FrameFilter() {
+            public boolean isEvictable(int frame) {
+                return pins[frame] == 0 && frame != keepFrame
+                    && pages[frame].isDirty() == null
+                    && !writing.contains(pages[frame].getId());
+            }
+        };
+
+    /** Frames that can be given up once their page is written back. */
+    private final ReplacementPolicy.FrameFilter evictable =
+        new ReplacementPolicy.FrameFilter() {
+            public boolean isEvictable(int frame) {
+                return pins[frame] == 0 && frame != keepFrame
+                    && !writing.contains(pages[frame].getId());
+            }
+        };
+
+    /**
+     * @param offHeap true to keep the bytes of HeapPages in a FrameArena
+     */
+    BufferPoolShard(BufferPool pool, int numFrames, ReplacementPolicyType policyType,
+            boolean offHeap) {
+        this.pool = pool;
+        this.policyType = policyType;
+        this.arena = offHeap
+            ? new FrameArena(numFrames, BufferPool.PAGE_SIZE, FrameArena.SHARD_SEGMENT_FRAMES)
+            : null;
+        this.sizedArenas = new HashMap<Integer,FrameArena>();
+        this.numFrames = numFrames;
+        this.numValidPages = 0;
+        this.pages = new Page[numFrames];
+        this.pageTable = new HashMap<PageId,Integer>(numFrames * 4 / 3 + 1);
+        this.freeFrames = new LinkedList<Integer>();
+        for (int i = 0; i < numFrames; i++)
+            freeFrames.add(i);
+        this.policy = policyType.create(numFrames);
+        this.ringOwned = new boolean[numFrames];
+        this.prefetched = new boolean[numFrames];
+        this.inFlight = new HashSet<PageId>();
+        this.writing = new HashSet<PageId>();
+        this.pins = new int[numFrames];
+        this.pinnedSince = new long[numFrames];
+        this.lastAccess = new long[numFrames];
+        this.footprints = new long[numFrames];
+        this.sizedFrames = new int[numFrames];
+        Arrays.fill(sizedFrames, -1);
+    }
+
+    synchronized int getNumFrames() {
+        return numFrames;
+    }
+
+    synchronized int getNumValidPages() {
+        return numValidPages;
+    }
+
+    /** @return the number of bytes of off-heap memory held, 0 if none */
+    synchronized long getOffHeapBytes() {
+        if (arena == null)
+            return 0;
+        long n = arena.getCapacity();
+        for (FrameArena a : sizedArenas.values())
+            n += a.getCapacity();
+        return n;
+    }
+
+    /** @return the estimated heap bytes of the resident pages */
+    synchronized long getBytesUsed() {
+        return bytesUsed;
+    }
+
+    /**
+     * Limits the heap bytes of the resident pages and evicts pages until
+     * they fit.
+     *
+     * @param bytes the budget, Long.MAX_VALUE for none
+     * @param writeBack receives evicted pages that were dirty; the caller
+     *   must write them with {@link BufferPool#writeBack}
+     */
+    synchronized void setByteBudget(long bytes, List<Page> writeBack) {
+        byteBudget = bytes;
+        fitBudget(-1, writeBack);
+    }
+
+    /** @return the estimated heap bytes of a page */
+    static long footprintOf(Page page) {
+        if (page instanceof HeapPage)
+            return ((HeapPage) page).getMemoryFootprint();
+        // page bytes and before image, assuming the default page size
+        return 2L * BufferPool.PAGE_SIZE;
+    }
+
+    /** Updates the footprint of the page in frame after it may have
+        changed. */
+    private void remeasure(int frame) {
+        long size = footprintOf(pages[frame]);
+        bytesUsed += size - footprints[frame];
+        footprints[frame] = size;
+    }
+
+    /**
+     * Evicts pages other than the one in frame keep until this shard fits
+     * into its byte budget or no page can be evicted.
+     *
+     * @param writeBack receives evicted pages that were dirty; if null,
+     *   only clean pages are evicted
+     */
+    private void fitBudget(int keep, List<Page> writeBack) {
+        keepFrame = keep;
+        try {
+            while (bytesUsed > byteBudget) {
+                int frame = policy.chooseVictim(clean);
+                if (frame < 0 && writeBack != null)
+                    frame = policy.chooseVictim(evictable);
+                if (frame < 0)
+                    return;
+                evictFrame(frame, writeBack);
+            }
+        } finally {
+            keepFrame = -1;
+        }
+    }
+
+    /**
+     * Changes the number of frames of this shard. Growing takes effect at
+     * once. When shrinking, frames beyond the new size are no longer used
+     * for new pages, but their pages stay resident until
+     * {@link #shrinkStep} evicts them.
+     *
+     * @return true if pages have to be evicted to complete a shrink
+     */
+    synchronized boolean resize(int frames) {
+        if (frames > pages.length)
+            reallocate(frames);
+        // frames between the old and the new limit become usable or surplus
+        for (int f = Math.min(numFrames, frames); f < Math.max(numFrames, frames); f++) {
+            if (pages[f] != null)
+                continue;
+            if (f < frames)
+                freeFrames.add(f);
+            else
+                freeFrames.remove((Integer) f);
+        }
+        numFrames = frames;
+        return !finishShrink();
+    }
+
+    /**
+     * Evicts up to max pages from frames beyond the size set by
+     * {@link #resize}. Pinned pages and pages being written are skipped
+     * and retried by later steps.
+     *
+     * @param writeBack receives evicted pages that were dirty; the caller
+     *   must write them with {@link BufferPool#writeBack}
+     * @return true if the shrink is complete
+     */
+    synchronized boolean shrinkStep(int max, List<Page> writeBack) {
+        for (int f = numFrames; f < pages.length && max > 0; f++) {
+            if (pages[f] != null && pins[f] == 0 && !writing.contains(pages[f].getId())) {
+                evictFrame(f, writeBack);
+                max--;
+            }
+        }
+        return finishShrink();
+    }
+
+    /**
+     * Cuts the frame arrays down to numFrames if all surplus frames are
+     * empty.
+     *
+     * @return true if no surplus frames are left
+     */
+    private boolean finishShrink() {
+        if (pages.length == numFrames)
+            return true;
+        for (int f = numFrames; f < pages.length; f++)
+            if (pages[f] != null)
+                return false;
+        reallocate(numFrames);
+        return true;
+    }
+
+    /**
+     * Copies the frame arrays into arrays of the specified length, which
+     * must cover all occupied frames, and rebuilds the replacement policy
+     * for it. The access history of the old policy is lost.
+     */
+    private void reallocate(int length) {
+        pages = Arrays.copyOf(pages, length);
+        ringOwned = Arrays.copyOf(ringOwned, length);
+        prefetched = Arrays.copyOf(prefetched, length);
+        pins = Arrays.copyOf(pins, length);
+        pinnedSince = Arrays.copyOf(pinnedSince, length);
+        lastAccess = Arrays.copyOf(lastAccess, length);
+        footprints = Arrays.copyOf(footprints, length);
+        int old = sizedFrames.length;
+        sizedFrames = Arrays.copyOf(sizedFrames, length);
+        if (length > old)
+            Arrays.fill(sizedFrames, old, length, -1);
+        if (arena != null)
+            arena.resize(length);
+        policy = policyType.create(length);
+        for (Map.Entry<PageId,Integer> e : pageTable.entrySet())
+            policy.pageLoaded(e.getValue(), e.getKey());
+    }
+
+    /**
+     * Returns the page if it is resident, waiting for any thread that is
+     * reading it right now. Otherwise marks the page as being read by the
+     * caller, who must then call {@link #install} or {@link #readDone}, and
+     * returns null.
+     * <p>
+     * If the page was read ahead of a scan using a bulk read ring, it is
+     * adopted by the strategy's ring; the page this displaces from the ring
+     * is left in strategy.takeDisplaced() for the caller to recycle.
+     *
+     * @param pin true to pin the page if it is resident
+     */
+    synchronized Page lookup(PageId pid, BufferAccessStrategy strategy,
+            boolean pin) throws DbException {
+        while (inFlight.contains(pid)) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                throw new DbException("interrupted while waiting for page " + pid);
+            }
+        }
+        Integer frame = pageTable.get(pid);
+        if (frame == null) {
+            inFlight.add(pid);
+            return null;
+        }
+        if (prefetched[frame]) {
+            prefetched[frame] = false;
+            pool.getReadAhead().recordUsed();
+            if (strategy != null && ringOwned[frame])
+                strategy.adopt(pid);
+        }
+        if (strategy == null)
+            ringOwned[frame] = false;
+        policy.pageAccessed(frame);
+        lastAccess[frame] = System.nanoTime();
+        if (pin)
+            pin(frame);
+        remeasure(frame);
+        fitBudget(frame, null);
+        return pages[frame];
+    }
+
+    /**
+     * Marks the page as no longer being read, waking up threads that wait
+     * for it in {@link #lookup}. Only needed if the read failed; a
+     * successful read ends with {@link #install}.
+     */
+    synchronized void readDone(PageId pid) {
+        inFlight.remove(pid);
+        notifyAll();
+    }
+
+    /**
+     * Reserves pid for a warm-up read unless it is resident, already being
+     * read, or this shard has no free frame or bytes left; warm-up never
+     * evicts.
+     *
+     * @return true if the caller should read the page and then call
+     *   {@link #install} or {@link #readDone}
+     */
+    synchronized boolean startWarmUp(PageId pid) {
+        if (freeFrames.isEmpty() || bytesUsed >= byteBudget
+                || pageTable.containsKey(pid) || inFlight.contains(pid))
+            return false;
+        inFlight.add(pid);
+        return true;
+    }
+
+    /**
+     * Adds the pages of this shard that are worth restoring after a
+     * restart to out. Pages only used by a bulk read ring are left out.
+     */
+    synchronized void collectAccessOrder(List<BufferPoolWarmer.Entry> out) {
+        for (Map.Entry<PageId,Integer> e : pageTable.entrySet()) {
+            int frame = e.getValue();
+            if (!ringOwned[frame])
+                out.add(new BufferPoolWarmer.Entry(e.getKey(), lastAccess[frame]));
+        }
+    }
+
+    /**
+     * Reserves pid for a background read unless it is resident, already
+     * being read, or already passed by the scan it was scheduled for. The
+     * last check must happen under the latch: a ring may only have
+     * recycled the page after the scan moved past it.
+     *
+     * @param unlessStale false to skip the last check, for reads on behalf
+     *   of a scan that does not use the read-ahead stream
+     * @return true if the caller should read the page and then call
+     *   {@link #install} or {@link #readDone}
+     */
+    synchronized boolean startPrefetch(PageId pid, boolean unlessStale) {
+        if (pageTable.containsKey(pid) || inFlight.contains(pid)
+                || (unlessStale && pool.getReadAhead().isStale(pid)))
+            return false;
+        inFlight.add(pid);
+        return true;
+    }
+
+    /**
+     * Puts a page that was just read from disk into a frame, evicting
+     * another page of this shard if necessary, and ends the read started by
+     * {@link #lookup} or {@link #startPrefetch}. If another thread installed
+     * the same page in the meantime, that copy wins and is returned instead.
+     *
+     * @param ringOwned true if the page is read for a bulk read ring
+     * @param isPrefetch true if the page is read by read-ahead
+     * @param writeBack receives the page evicted to make room if it was
+     *   dirty; the caller must write it with {@link BufferPool#writeBack}
+     * @param pin true to pin the installed page
+     */
+    synchronized Page install(Page page, boolean ringOwned, boolean isPrefetch,
+            List<Page> writeBack, boolean pin) throws DbException {
+        try {
+            Page installed = doInstall(page, ringOwned, isPrefetch, writeBack);
+            int frame = pageTable.get(page.getId());
+            if (pin)
+                pin(frame);
+            fitBudget(frame, writeBack);
+            return installed;
+        } finally {
+            readDone(page.getId());
+        }
+    }
+
+    private Page doInstall(Page page, boolean ringOwned, boolean isPrefetch,
+            List<Page> writeBack) throws DbException {
+        PageId pid = page.getId();
+        Integer frame = pageTable.get(pid);
+        if (frame != null)
+            return pages[frame];
+        // evicting a surplus frame of a shrink frees nothing
+        while (freeFrames.isEmpty())
+            evict(writeBack);
+        frame = freeFrames.removeFirst();
+        if (arena != null && page instanceof HeapPage)
+            attach((HeapPage) page, frame);
+        pages[frame] = page;
+        pageTable.put(pid, frame);
+        numValidPages++;
+        policy.pageLoaded(frame, pid);
+        this.ringOwned[frame] = ringOwned;
+        prefetched[frame] = isPrefetch;
+        lastAccess[frame] = isPrefetch ? 0 : System.nanoTime();
+        remeasure(frame);
+        return page;
+    }
+
+    /** Moves a HeapPage into the arena of its page size. */
+    private void attach(HeapPage page, int frame) {
+        int size = page.getPageSize();
+        if (size == arena.getFrameSize()) {
+            page.attach(arena.frame(frame));
+            return;
+        }
+        FrameArena a = sizedArenas.get(size);
+        if (a == null) {
+            a = new FrameArena(0, size, SIZED_SEGMENT_BYTES / size);
+            sizedArenas.put(size, a);
+        }
+        sizedFrames[frame] = a.allocate();
+        page.attach(a.frame(sizedFrames[frame]));
+    }
+
+    /**
+     * Evicts the page if it is still resident and belongs to a bulk read
+     * ring alone.
+     *
+     * @param writeBack receives the page if it was dirty
+     */
+    synchronized void recycle(PageId pid, List<Page> writeBack) {
+        Integer frame = pageTable.get(pid);
+        if (frame == null || !ringOwned[frame] || pins[frame] > 0
+                || writing.contains(pid))
+            return;
+        evictFrame(frame, writeBack);
+    }
+
+    /**
+     * Adds the resident dirty pages of this shard to out.
+     *
+     * @param tid only collect pages dirtied by this transaction, or null
+     *   to collect all dirty pages
+     */
+    synchronized void collectDirtyPages(TransactionId tid, List<Page> out) {
+        for (Integer frame : pageTable.values()) {
+            TransactionId dirtier = pages[frame].isDirty();
+            if (dirtier != null && (tid == null || tid.equals(dirtier)))
+                out.add(pages[frame]);
+        }
+    }
+
+    /** @return the resident page with the specified id, or null */
+    synchronized Page getResidentPage(PageId pid) {
+        Integer frame = pageTable.get(pid);
+        return frame == null ? null : pages[frame];
+    }
+
+    /**
+     * Protects the page from eviction while it is written to disk. Waits
+     * for a write of the page that is already in progress, so that a flush
+     * does not return before the page is on disk.
+     *
+     * @return false if the page is not resident (anymore)
+     */
+    synchronized boolean beginWrite(PageId pid) {
+        boolean interrupted = false;
+        while (writing.contains(pid)) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted)
+            Thread.currentThread().interrupt();
+        if (!pageTable.containsKey(pid))
+            return false;
+        writing.add(pid);
+        return true;
+    }
+
+    synchronized void endWrite(PageId pid) {
+        writing.remove(pid);
+        notifyAll();
+        Integer frame = pageTable.get(pid);
+        if (frame != null) {
+            remeasure(frame);
+            fitBudget(-1, null);
+        }
+    }
+
+    private void pin(int frame) {
+        if (pins[frame]++ == 0)
+            pinnedSince[frame] = System.nanoTime();
+        pinCount++;
+    }
+
+    /**
+     * Releases one pin of a page; the hold time is recorded when the last
+     * pin goes away. The pin is identified by the page object that was
+     * pinned: nothing happens if that page was discarded, which drops its
+     * pins, even if the page was read again into another frame since.
+     *
+     * @throws IllegalStateException if the page is resident but not pinned
+     */
+    synchronized void unpin(Page page) {
+        Integer frame = pageTable.get(page.getId());
+        if (frame == null || pages[frame] != page)
+            return;
+        if (pins[frame] == 0)
+            throw new IllegalStateException("page " + page.getId() + " is not pinned");
+        if (--pins[frame] == 0)
+            recordPinHold(frame);
+    }
+
+    private void recordPinHold(int frame) {
+        long held = System.nanoTime() - pinnedSince[frame];
+        pinHoldCount++;
+        pinHoldNanos += held;
+        if (held > maxPinHoldNanos)
+            maxPinHoldNanos = held;
+    }
+
+    synchronized boolean isResident(PageId pid) {
+        return pageTable.containsKey(pid);
+    }
+
+    /** @return the number of pins on the page, 0 if it is not resident */
+    synchronized int getPinCount(PageId pid) {
+        Integer frame = pageTable.get(pid);
+        return frame == null ? 0 : pins[frame];
+    }
+
+    synchronized int getNumPinnedFrames() {
+        int n = 0;
+        for (int i = 0; i < pins.length; i++)
+            if (pins[i] > 0)
+                n++;
+        return n;
+    }
+
+    /** @return the number of pins taken since the shard was created */
+    synchronized long getTotalPins() {
+        return pinCount;
+    }
+
+    /** @return the number of periods during which a frame was pinned */
+    synchronized long getPinHoldCount() {
+        return pinHoldCount;
+    }
+
+    synchronized long getPinHoldNanos() {
+        return pinHoldNanos;
+    }
+
+    synchronized long getMaxPinHoldNanos() {
+        return maxPinHoldNanos;
+    }
+
+    /**
+     * Removes the page without writing it, if it is resident. Pins on the
+     * page are dropped; callers discard pages that nobody may use anymore.
+     */
+    synchronized void discard(PageId pid) {
+        Integer frame = pageTable.get(pid);
+        if (frame != null)
+            removeFrame(frame);
+    }
+
+    /**
+     * Removes the page like {@link #discard}, after waiting for reads and
+     * writes of it that are in progress: the copy a write puts on disk, or
+     * a read puts into the pool, would otherwise outlive the discard.
+     */
+    synchronized void discardWhenIdle(PageId pid) {
+        boolean interrupted = false;
+        while (writing.contains(pid) || inFlight.contains(pid)) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted)
+            Thread.currentThread().interrupt();
+        discard(pid);
+    }
+
+    /**
+     * Discards a page of this shard chosen by the replacement policy,
+     * preferring pages that are clean. A dirty victim is handed to the
+     * caller to be written back outside of the latch; until then it stays
+     * in flight so that nobody reads the stale copy from disk.
+     */
+    private void evict(List<Page> writeBack) throws DbException {
+        int frame = policy.chooseVictim(clean);
+        if (frame < 0)
+            frame = policy.chooseVictim(evictable);
+        if (frame < 0)
+            throw new DbException("BufferPool Overflow: no page can be evicted");
+        evictFrame(frame, writeBack);
+    }
+
+    private void evictFrame(int frame, List<Page> writeBack) {
+        Page page = pages[frame];
+        removeFrame(frame);
+        pool.getStats().recordEviction(page.getId().getTableId());
+        if (page.isDirty() != null) {
+            inFlight.add(page.getId());
+            writeBack.add(page);
+        }
+    }
+
+    /**
+     * Takes the page out of the specified frame and returns the frame to
+     * the free list unless it is surplus. Does not write the page.
+     */
+    private void removeFrame(int frame) {
+        PageId pid = pages[frame].getId();
+        if (arena != null && pages[frame] instanceof HeapPage)
+            ((HeapPage) pages[frame]).detach();
+        if (sizedFrames[frame] >= 0) {
+            int size = ((HeapPage) pages[frame]).getPageSize();
+            FrameArena a = sizedArenas.get(size);
+            a.free(sizedFrames[frame]);
+            if (a.getNumAllocated() == 0)
+                sizedArenas.remove(size);
+            sizedFrames[frame] = -1;
+        }
+        pageTable.remove(pid);
+        pages[frame] = null;
+        ringOwned[frame] = false;
+        if (pins[frame] > 0) {
+            pins[frame] = 0;
+            recordPinHold(frame);
+        }
+        if (prefetched[frame]) {
+            prefetched[frame] = false;
+            pool.getReadAhead().recordWasted();
+        }
+        numValidPages--;
+        bytesUsed -= footprints[frame];
+        footprints[frame] = 0;
+        policy.pageRemoved(frame, pid);
+        if (frame < numFrames)
+            freeFrames.add(frame);
+    }
+}
@@ -0,0 +1,186 @@
+package simpledb;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * BufferPoolStats counts what a BufferPool does, broken down by table id:
+ * page requests that hit or missed, evictions, dirty pages written, and
+ * histograms of the time disk reads and writes took. Reads include those
+ * done by read-ahead and warm-up, hits and misses only count requests.
+ * <p>
+ * All counters are LongAdders in a concurrent map, so recording costs a
+ * hash lookup and an increment, never blocks, and does not make threads
+ * hitting the same hot table write to one shared cache line. These are
+ * the only hit and miss counts of a pool.
+ *
+ * @see BufferPool#getStats
+ */
+public class BufferPoolStats {
+
+    /** The counters of a single table. */
+    public static class TableStats {
+        private final LongAdder hits = new LongAdder();
+        private final LongAdder misses = new LongAdder();
+        private final LongAdder evictions = new LongAdder();
+        private final LongAdder dirtyWrites = new LongAdder();
+        private final LatencyHistogram readLatency = new LatencyHistogram();
+        private final LatencyHistogram writeLatency = new LatencyHistogram();
+
+        public long getHits() {
+            return hits.sum();
+        }
+
+        public long getMisses() {
+            return misses.sum();
+        }
+
+        /** @return hits / (hits + misses), 0 if there were no requests */
+        public double getHitRate() {
+            long h = hits.sum();
+            long total = h + misses.sum();
+            return total == 0 ? 0.0 : (double) h / total;
+        }
+
+        /** @return the number of pages evicted to make room for others */
+        public long getEvictions() {
+            return evictions.sum();
+        }
+
+        /** @return the number of dirty pages written to disk */
+        public long getDirtyWrites() {
+            return dirtyWrites.sum();
+        }
+
+        /** @return the latencies of page reads from disk */
+        public LatencyHistogram getReadLatency() {
+            return readLatency;
+        }
+
+        /** @return the latencies of page writes, per page written */
+        public LatencyHistogram getWriteLatency() {
+            return writeLatency;
+        }
+
+        void add(TableStats other) {
+            hits.add(other.hits.sum());
+            misses.add(other.misses.sum());
+            evictions.add(other.evictions.sum());
+            dirtyWrites.add(other.dirtyWrites.sum());
+            readLatency.add(other.readLatency);
+            writeLatency.add(other.writeLatency);
+        }
+    }
+
+    private final ConcurrentHashMap<Integer,TableStats> tables =
+        new ConcurrentHashMap<Integer,TableStats>();
+
+    private TableStats forTable(int tableId) {
+        TableStats s = tables.get(tableId);
+        if (s == null) {
+            TableStats created = new TableStats();
+            s = tables.putIfAbsent(tableId, created);
+            if (s == null)
+                s = created;
+        }
+        return s;
+    }
+
+    void recordHit(int tableId) {
+        forTable(tableId).hits.increment();
+    }
+
+    void recordMiss(int tableId) {
+        forTable(tableId).misses.increment();
+    }
+
+    void recordRead(int tableId, long nanos) {
+        forTable(tableId).readLatency.record(nanos);
+    }
+
+    void recordEviction(int tableId) {
+        forTable(tableId).evictions.increment();
+    }
+
+    /** Records a write of pages pages of a table that took nanos in all. */
+    void recordWrite(int tableId, int pages, long nanos) {
+        TableStats s = forTable(tableId);
+        s.dirtyWrites.add(pages);
+        for (int i = 0; i < pages; i++)
+            s.writeLatency.record(nanos / pages);
+    }
+
+    /** @return the ids of all tables something was recorded for, sorted */
+    public List<Integer> getTableIds() {
+        ArrayList<Integer> ids = new ArrayList<Integer>(tables.keySet());
+        Collections.sort(ids);
+        return ids;
+    }
+
+    /** @return the counters of the specified table, all 0 if nothing was
+        recorded for it */
+    public TableStats getTable(int tableId) {
+        TableStats s = tables.get(tableId);
+        return s == null ? new TableStats() : s;
+    }
+
+    /** @return the number of requests that found their page resident,
+        summed over all tables */
+    public long getTotalHits() {
+        long n = 0;
+        for (TableStats s : tables.values())
+            n += s.getHits();
+        return n;
+    }
+
+    /** @return the number of requests that had to read their page, summed
+        over all tables */
+    public long getTotalMisses() {
+        long n = 0;
+        for (TableStats s : tables.values())
+            n += s.getMisses();
+        return n;
+    }
+
+    /** @return a snapshot of the counters summed over all tables */
+    public TableStats getTotal() {
+        TableStats total = new TableStats();
+        for (TableStats s : tables.values())
+            total.add(s);
+        return total;
+    }
+
+    /** Forgets everything recorded so far. */
+    public void reset() {
+        tables.clear();
+    }
+
+    /**
+     * @return a report with one line per table, named through the Catalog
+     *   where possible, and a line with the totals
+     */
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format("%-20s %10s %10s %7s %10s %10s  %s%n", "table", "hits",
+                "misses", "hit%", "evictions", "writes", "read latency"));
+        for (int id : getTableIds())
+            append(sb, tableName(id), getTable(id));
+        append(sb, "TOTAL", getTotal());
+        return sb.toString();
+    }
+
+    private static String tableName(int tableId) {
+        try {
+            return Database.getCatalog().getTableName(tableId);
+        } catch (NoSuchElementException e) {
+            return Integer.toString(tableId);
+        }
+    }
+
+    private static void append(StringBuilder sb, String name, TableStats s) {
+        sb.append(String.format("%-20s %10d %10d %6.1f%% %10d %10d  %s%n", name, s.getHits(),
+                s.getMisses(), 100 * s.getHitRate(), s.getEvictions(), s.getDirtyWrites(),
+                s.getReadLatency()));
+    }
+}
@@ -0,0 +1,146 @@
+package simpledb;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * BufferPoolWarmer reloads the pages that were resident in a BufferPool
+ * before a restart, so that the first requests after the restart do not
+ * all run against a cold pool.
+ * <p>
+ * {@link BufferPool#saveResidentPages} writes the resident page ids most
+ * recently used first, including those of named pools. On startup
+ * {@link BufferPool#warmUp} keeps as many of the hottest ids as there are
+ * free frames in the pool each page belongs to, sorts them in file order
+ * and reads them on this thread. The thread runs at the lowest priority
+ * and waits whenever a request is reading a page, so that warming up never
+ * delays requests by more than a single page read; it never evicts a page
+ * either.
+ * <p>
+ * The file stores the table id and page number of every page, so only
+ * HeapPageIds are restored.
+ */
+public class BufferPoolWarmer extends Thread {
+
+    /** Identifies files written by {@link #save}. */
+    private static final int MAGIC = 0x57524d31;
+
+    /** A resident page and the time of its last request. */
+    static class Entry {
+        final PageId pid;
+        final long lastAccess;
+
+        Entry(PageId pid, long lastAccess) {
+            this.pid = pid;
+            this.lastAccess = lastAccess;
+        }
+    }
+
+    private final BufferPool pool;
+
+    /** Saved page ids, most recently used first. */
+    private final List<PageId> saved;
+
+    private volatile boolean cancelled = false;
+
+    private volatile int loaded = 0;
+    private volatile int skipped = 0;
+
+    BufferPoolWarmer(BufferPool pool, List<PageId> saved) {
+        super("BufferPool warm-up");
+        this.pool = pool;
+        this.saved = saved;
+        setDaemon(true);
+        setPriority(Thread.MIN_PRIORITY);
+    }
+
+    /** Writes the entries to f, most recently used first. */
+    static void save(List<Entry> entries, File f) throws IOException {
+        Collections.sort(entries, new Comparator<Entry>() {
+            public int compare(Entry a, Entry b) {
+                return a.lastAccess > b.lastAccess ? -1 : a.lastAccess < b.lastAccess ? 1 : 0;
+            }
+        });
+        DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(f)));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(entries.size());
+            for (Entry e : entries) {
+                out.writeInt(e.pid.getTableId());
+                out.writeInt(e.pid.pageNumber());
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    /** @return the page ids saved in f, most recently used first */
+    static List<PageId> load(File f) throws IOException {
+        DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(f)));
+        try {
+            if (in.readInt() != MAGIC)
+                throw new IOException(f + " is not a saved page list");
+            int n = in.readInt();
+            ArrayList<PageId> pids = new ArrayList<PageId>(n);
+            for (int i = 0; i < n; i++) {
+                int tableId = in.readInt();
+                pids.add(new HeapPageId(tableId, in.readInt()));
+            }
+            return pids;
+        } finally {
+            in.close();
+        }
+    }
+
+    /** Stops loading pages as soon as possible. */
+    public void cancel() {
+        cancelled = true;
+        interrupt();
+    }
+
+    /** @return the number of pages loaded so far */
+    public int getLoadedCount() {
+        return loaded;
+    }
+
+    /** @return the number of saved pages that were not loaded because they
+        were resident already, no longer exist, or did not fit */
+    public int getSkippedCount() {
+        return skipped;
+    }
+
+    public void run() {
+        // the free frames left in every pool the saved pages go to
+        IdentityHashMap<BufferPool,int[]> room = new IdentityHashMap<BufferPool,int[]>();
+        List<PageId> hottest = new ArrayList<PageId>();
+        for (PageId pid : saved) {
+            BufferPool owner = pool.getPoolForTable(pid.getTableId());
+            int[] left = room.get(owner);
+            if (left == null) {
+                left = new int[] { Math.max(0, owner.getNumPages() - owner.getNumResidentPages()) };
+                room.put(owner, left);
+            }
+            if (left[0] > 0) {
+                left[0]--;
+                hottest.add(pid);
+            }
+        }
+        skipped = saved.size() - hottest.size();
+        Collections.sort(hottest, BufferPool.PAGE_ID_ORDER);
+        for (PageId pid : hottest) {
+            try {
+                pool.awaitNoForegroundReads();
+            } catch (InterruptedException e) {
+                return;
+            }
+            if (cancelled)
+                return;
+            if (!pool.warmUpPage(pid))
+                skipped++;
+            else
+                loaded++;
+        }
+    }
+}
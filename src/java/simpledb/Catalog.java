@@ -6,6 +6,8 @@ import java.io.FileReader;
 import java.io.IOException;
 import java.util.*;
 
+import com.jcraft.jzlib.JZlib;
+
 /**
  * The Catalog keeps track of all available tables in the database and their
  * associated schemas.
@@ -20,6 +22,7 @@ public class Catalog {	// 
 	private HashMap<Integer,String> idToName;
 	private HashMap<Integer,DbFile> idToDbFile;
 	private HashMap<Integer,String> idToPmk;
+	private HashMap<Integer,String> idToPool;
 
     /**
      * Constructor.
@@ -33,6 +36,7 @@ public class Catalog {	// 
     	idToName=new HashMap<Integer,String> ();
     	idToDbFile=new HashMap<Integer,DbFile> ();
     	idToPmk=new HashMap<Integer,String> ();
+    	idToPool=new HashMap<Integer,String> ();
     }
 
     /**
@@ -104,6 +108,14 @@ public class Catalog {	// 
           }
     }
 
+    /**
+     * Returns the size of the pages of the specified table in bytes.
+     * @throws NoSuchElementException if the table doesn't exist
+     */
+    public int getPageSize(int tableid) throws NoSuchElementException {
+        return getDbFile(tableid).getPageSize();
+    }
+
     public String getPrimaryKey(int tableid) {
     	if(idToPmk.get(tableid)==null)throw new NoSuchElementException();
         else{
@@ -122,12 +134,35 @@ public class Catalog {	// 
         }
     }
     
+    /**
+     * Bind a table to a named buffer pool, so that its pages are cached
+     * there instead of in the default pool.
+     * @param tableid the id of the table
+     * @param poolName the name of a pool created with
+     *   {@link BufferPool#createPool}, or null for the default pool
+     * @throws NoSuchElementException if the table doesn't exist
+     */
+    public void setBufferPool(int tableid, String poolName) throws NoSuchElementException {
+        if(!idToDbFile.containsKey(tableid))throw new NoSuchElementException();
+        if(poolName==null)idToPool.remove(tableid);
+        else idToPool.put(tableid, poolName);
+    }
+
+    /**
+     * @return the name of the buffer pool the table is bound to, or null if
+     *   it uses the default pool
+     */
+    public String getBufferPoolName(int tableid) {
+        return idToPool.get(tableid);
+    }
+
     /** Delete all tables from the catalog */
     public void clear() {
         idToName.clear();
         nameToId.clear();
         idToDbFile.clear();
         idToPmk.clear();
+        idToPool.clear();
     }
     
     /**
@@ -169,12 +204,45 @@ public class Catalog {	// 
                         }
                     }
                 }
+                //optional "pool <name>" after the fields binds the table to a buffer pool,
+                //"mmap" reads the table through a memory mapping, "checksum" marks a
+                //file whose pages carry checksums, "compressed" stores the table as a
+                //CompressedHeapFile, "pagesize <bytes>" gives the page size the file was
+                //created with
+                String[] options = line.substring(line.indexOf(")") + 1).trim().split("\\s+");
+                String pool = null;
+                boolean mmap = false;
+                boolean checksum = false;
+                boolean compressed = false;
+                int pageSize = BufferPool.PAGE_SIZE;
+                for (int i = 0; i < options.length; i++) {
+                    if (options[i].equals("pool") && i + 1 < options.length)
+                        pool = options[++i];
+                    else if (options[i].equals("mmap"))
+                        mmap = true;
+                    else if (options[i].equals("checksum"))
+                        checksum = true;
+                    else if (options[i].equals("compressed"))
+                        compressed = true;
+                    else if (options[i].equals("pagesize") && i + 1 < options.length)
+                        pageSize = Integer.parseInt(options[++i]);
+                    else if (options[i].length() > 0) {
+                        System.out.println("Unknown table option " + options[i]);
+                        System.exit(0);
+                    }
+                }
                 Type[] typeAr = types.toArray(new Type[0]);
                 String[] namesAr = names.toArray(new String[0]);
                 TupleDesc t = new TupleDesc(typeAr, namesAr);
-                HeapFile tabHf = new HeapFile(new File(baseFolder+"/"+name + ".dat"), t);
+                File f = new File(baseFolder+"/"+name + ".dat");
+                DbFile tabHf = compressed
+                        ? new CompressedHeapFile(f, t, JZlib.Z_DEFAULT_COMPRESSION, pageSize)
+                        : new HeapFile(f, t, mmap, checksum, pageSize);
                 addTable(tabHf,name,primaryKey);
-                System.out.println("Added table : " + name + " with schema " + t);
+                if (pool != null)
+                    setBufferPool(tabHf.getId(), pool);
+                System.out.println("Added table : " + name + " with schema " + t
+                        + (pageSize != BufferPool.PAGE_SIZE ? ", pages of " + pageSize + " bytes" : ""));
             }
         } catch (IOException e) {
             e.printStackTrace();
@@ -182,6 +250,9 @@ public class Catalog {	// 
         } catch (IndexOutOfBoundsException e) {
             System.out.println ("Invalid catalog entry : " + line);
             System.exit(0);
+        } catch (IllegalArgumentException e) {
+            System.out.println ("Invalid catalog entry : " + line + " (" + e.getMessage() + ")");
+            System.exit(0);
         }
     }
 }
@@ -0,0 +1,55 @@
+package simpledb;
+
+/**
+ * CLOCK (second chance) replacement. Every resident frame has a reference
+ * bit that is set on each access; the clock hand sweeps the frames, clearing
+ * set bits and evicting the first frame whose bit is already clear.
+ */
+public class ClockPolicy implements ReplacementPolicy {
+
+    private final int numFrames;
+
+    private final boolean[] resident;
+
+    private final boolean[] referenced;
+
+    private int hand;
+
+    public ClockPolicy(int numFrames) {
+        this.numFrames = numFrames;
+        this.resident = new boolean[numFrames];
+        this.referenced = new boolean[numFrames];
+        this.hand = 0;
+    }
+
+    public void pageLoaded(int frame, PageId pid) {
+        resident[frame] = true;
+        referenced[frame] = true;
+    }
+
+    public void pageAccessed(int frame) {
+        referenced[frame] = true;
+    }
+
+    public void pageRemoved(int frame, PageId pid) {
+        resident[frame] = false;
+        referenced[frame] = false;
+    }
+
+    public int chooseVictim(FrameFilter filter) {
+        // two full sweeps: the first may only clear reference bits
+        for (int i = 0; i < 2 * numFrames; i++) {
+            int frame = hand;
+            hand = (hand + 1) % numFrames;
+            if (!resident[frame] || !filter.isEvictable(frame)) {
+                continue;
+            }
+            if (referenced[frame]) {
+                referenced[frame] = false;
+                continue;
+            }
+            return frame;
+        }
+        return -1;
+    }
+}
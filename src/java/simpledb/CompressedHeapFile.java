@@ -0,0 +1,560 @@
+package simpledb;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.*;
+
+import com.jcraft.jzlib.JZlib;
+import com.jcraft.jzlib.ZStream;
+
+/**
+ * CompressedHeapFile is a DbFile for cold tables that stores HeapPages
+ * deflated with jzlib. Pages are decompressed when they are read, so the
+ * BufferPool caches and operators see ordinary HeapPages; the layout of a
+ * page is the same as in a HeapFile.
+ * <p>
+ * The file is append-only: it starts with a short file header recording
+ * the page size, followed
+ * by one record per page write holding the page number, the length of the
+ * image and the deflated image itself, or the plain image if it does not
+ * compress. A page that is written again gets a new record at the end, and
+ * an in-memory directory maps every page number to its latest record.
+ * Superseded records stay in the file until {@link #compact} rewrites it.
+ * <p>
+ * The directory is saved next to the file, with ".dir" appended to its
+ * name, when the file is closed. If it is missing or does not match the
+ * file, e.g. after a crash, it is rebuilt by reading the record headers;
+ * a record cut short at the end of the file is ignored.
+ * <p>
+ * Consecutive pages whose records are adjacent, as written by a bulk load
+ * or {@link #compress}, are read with a single call, so a scan of a cold
+ * table reads a fraction of the bytes of a HeapFile in large I/Os and
+ * spends its time inflating pages rather than waiting for the disk.
+ *
+ * @see HeapFile
+ */
+public class CompressedHeapFile implements DbFile {
+
+    /** Identifies compressed table files and their directories. */
+    private static final int MAGIC = 0x53444243;
+    private static final int DIRECTORY_MAGIC = 0x53444244;
+
+    /** Bytes before the first record. */
+    private static final int FILE_HEADER = 8;
+
+    /** Bytes of a record before the image: page number and length. */
+    private static final int RECORD_HEADER = 8;
+
+    /** Largest number of bytes read at once by readPages. */
+    private static final int MAX_READ = 1 << 20;
+
+    private final File file;
+
+    private final TupleDesc td;
+
+    private final int level;
+
+    private final int pageSize;
+
+    /** The open file, or null until first used and after close(). */
+    private transient RandomAccessFile raf;
+
+    private transient FileChannel channel;
+
+    /** Offset of the latest record of every page, -1 for a page that was
+        allocated but never written. Guarded by the monitor. */
+    private transient long[] offsets;
+
+    /** Length of the image of the latest record of every page; pageSize
+        if the image is stored plain. */
+    private transient int[] lengths;
+
+    private transient int numPages;
+
+    /** Where the next record goes. */
+    private transient long end;
+
+    private transient boolean directoryChanged;
+
+    /**
+     * Opens a compressed table, creating an empty one if f does not exist.
+     * Pages are deflated with the default compression level of zlib.
+     */
+    public CompressedHeapFile(File f, TupleDesc td) {
+        this(f, td, JZlib.Z_DEFAULT_COMPRESSION);
+    }
+
+    /**
+     * @param level the zlib compression level of pages written, from
+     *   JZlib.Z_BEST_SPEED to JZlib.Z_BEST_COMPRESSION
+     */
+    public CompressedHeapFile(File f, TupleDesc td, int level) {
+        this(f, td, level, BufferPool.PAGE_SIZE);
+    }
+
+    /**
+     * @param level the zlib compression level of pages written
+     * @param pageSize the bytes per page of the table; a file that exists
+     *   must have been created with the same page size
+     * @throws IllegalArgumentException if pageSize is not a valid page size
+     */
+    public CompressedHeapFile(File f, TupleDesc td, int level, int pageSize) {
+        BufferPool.checkPageSize(pageSize);
+        this.file = f;
+        this.td = td;
+        this.level = level;
+        this.pageSize = pageSize;
+    }
+
+    // see DbFile.java for javadocs
+    public int getPageSize() {
+        return pageSize;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    public int getId() {
+        return file.getAbsoluteFile().hashCode();
+    }
+
+    public TupleDesc getTupleDesc() {
+        return td;
+    }
+
+    /** @return the channel to the file, opening it and loading the
+        directory if necessary */
+    private synchronized FileChannel channel() throws IOException {
+        if (channel == null) {
+            boolean created = !file.exists() || file.length() == 0;
+            raf = new RandomAccessFile(file, "rw");
+            channel = raf.getChannel();
+            ByteBuffer header = ByteBuffer.allocate(FILE_HEADER);
+            if (created) {
+                header.putInt(MAGIC).putInt(pageSize).flip();
+                writeFully(header, 0);
+                directoryFile().delete();
+            } else {
+                readFully(channel, header, 0);
+                if (header.getInt(0) != MAGIC)
+                    throw new IOException(file + " is not a compressed table");
+                if (header.getInt(4) != pageSize)
+                    throw new IOException(file + " has pages of " + header.getInt(4)
+                            + " bytes, not " + pageSize);
+            }
+            if (offsets == null && !loadDirectory())
+                rebuildDirectory();
+        }
+        return channel;
+    }
+
+    private void writeFully(ByteBuffer src, long position) throws IOException {
+        int start = src.position();
+        while (src.hasRemaining())
+            channel.write(src, position + src.position() - start);
+    }
+
+    private File directoryFile() {
+        return new File(file.getPath() + ".dir");
+    }
+
+    /** @return true if a directory matching the file was loaded */
+    private boolean loadDirectory() throws IOException {
+        File f = directoryFile();
+        if (!f.exists())
+            return false;
+        DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(f)));
+        try {
+            if (in.readInt() != DIRECTORY_MAGIC || in.readLong() != channel.size())
+                return false;
+            int n = in.readInt();
+            long[] o = new long[Math.max(16, n)];
+            int[] l = new int[o.length];
+            for (int i = 0; i < n; i++) {
+                o[i] = in.readLong();
+                l[i] = in.readInt();
+            }
+            offsets = o;
+            lengths = l;
+            numPages = n;
+            end = channel.size();
+            return true;
+        } catch (EOFException e) {
+            return false;
+        } finally {
+            in.close();
+        }
+    }
+
+    /** Rebuilds the directory from the record headers of the file. */
+    private void rebuildDirectory() throws IOException {
+        offsets = new long[16];
+        lengths = new int[16];
+        numPages = 0;
+        long size = channel.size();
+        long pos = FILE_HEADER;
+        ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER);
+        while (pos + RECORD_HEADER <= size) {
+            header.clear();
+            readFully(channel, header, pos);
+            int pgNo = header.getInt(0);
+            int len = header.getInt(4);
+            if (pgNo < 0 || len <= 0 || len > pageSize
+                    || pos + RECORD_HEADER + len > size)
+                break;
+            setEntry(pgNo, pos, len);
+            pos += RECORD_HEADER + len;
+        }
+        end = pos;
+        directoryChanged = true;
+    }
+
+    private void setEntry(int pgNo, long offset, int length) {
+        if (pgNo >= offsets.length) {
+            int n = Math.max(offsets.length * 2, pgNo + 1);
+            int old = offsets.length;
+            offsets = Arrays.copyOf(offsets, n);
+            lengths = Arrays.copyOf(lengths, n);
+            Arrays.fill(offsets, old, n, -1);
+        }
+        for (int i = numPages; i < pgNo; i++)
+            offsets[i] = -1;
+        offsets[pgNo] = offset;
+        lengths[pgNo] = length;
+        numPages = Math.max(numPages, pgNo + 1);
+    }
+
+    // see DbFile.java for javadocs
+    public synchronized int numPages() {
+        try {
+            channel();
+        } catch (IOException e) {
+            throw new UncheckedIOException("could not open " + file, e);
+        }
+        return numPages;
+    }
+
+    /** @return the number of bytes the file takes on disk */
+    public long getCompressedSize() {
+        return file.length();
+    }
+
+    // see DbFile.java for javadocs
+    public Page readPage(PageId pid) throws NoSuchElementException {
+        return readPages(pid, 1).get(0);
+    }
+
+    // see DbFile.java for javadocs
+    public List<Page> readPages(PageId first, int count) throws NoSuchElementException {
+        int firstPage = first.pageNumber();
+        long[] o = new long[count];
+        int[] l = new int[count];
+        synchronized (this) {
+            if (firstPage < 0 || firstPage + count > numPages())
+                throw new NoSuchElementException("pages " + firstPage + " to "
+                        + (firstPage + count - 1) + " of " + file + " do not exist");
+            System.arraycopy(offsets, firstPage, o, 0, count);
+            System.arraycopy(lengths, firstPage, l, 0, count);
+        }
+        ArrayList<Page> pages = new ArrayList<Page>(count);
+        try {
+            int i = 0;
+            while (i < count) {
+                if (o[i] < 0) {
+                    // allocated by insertTuple but not written yet
+                    pages.add(new HeapPage(new HeapPageId(getId(), firstPage + i),
+                            HeapPage.createEmptyPageData(pageSize)));
+                    i++;
+                    continue;
+                }
+                // extend the read over the following adjacent records
+                int j = i + 1;
+                long runEnd = o[i] + RECORD_HEADER + l[i];
+                while (j < count && o[j] == runEnd && runEnd - o[i] < MAX_READ) {
+                    runEnd += RECORD_HEADER + l[j];
+                    j++;
+                }
+                ByteBuffer run = ByteBuffer.allocate((int) (runEnd - o[i]));
+                FileChannel ch = channel();
+                readFully(ch, run, o[i]);
+                byte[] bytes = run.array();
+                for (int k = i; k < j; k++) {
+                    int at = (int) (o[k] - o[i]);
+                    byte[] image = inflate(bytes, at + RECORD_HEADER, l[k]);
+                    pages.add(new HeapPage(new HeapPageId(getId(), firstPage + k), image));
+                }
+                i = j;
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("could not read pages " + firstPage + " to "
+                    + (firstPage + count - 1) + " of " + file, e);
+        }
+        return pages;
+    }
+
+    /** Fills dst, which must be at position 0, from position of ch. */
+    private void readFully(FileChannel ch, ByteBuffer dst, long position) throws IOException {
+        while (dst.hasRemaining()) {
+            if (ch.read(dst, position + dst.position()) < 0)
+                throw new EOFException("short read at offset " + position + " of " + file);
+        }
+    }
+
+    /** @return the page image stored at off in data with length bytes */
+    private byte[] inflate(byte[] data, int off, int length) throws IOException {
+        byte[] image = new byte[pageSize];
+        if (length == pageSize) {
+            System.arraycopy(data, off, image, 0, length);
+            return image;
+        }
+        ZStream z = new ZStream();
+        z.inflateInit();
+        z.next_in = data;
+        z.next_in_index = off;
+        z.avail_in = length;
+        z.next_out = image;
+        z.next_out_index = 0;
+        z.avail_out = image.length;
+        int err = z.inflate(JZlib.Z_FINISH);
+        z.inflateEnd();
+        if (err != JZlib.Z_STREAM_END || z.total_out != image.length)
+            throw new IOException("corrupt compressed page in " + file + ": " + z.msg);
+        return image;
+    }
+
+    /**
+     * @return the deflated image, or the image itself if deflating does not
+     *   make it smaller
+     */
+    private byte[] deflate(byte[] image) throws IOException {
+        // deflate never grows data by more than this
+        byte[] out = new byte[image.length + image.length / 1000 + 64];
+        ZStream z = new ZStream();
+        z.deflateInit(level);
+        z.next_in = image;
+        z.next_in_index = 0;
+        z.avail_in = image.length;
+        z.next_out = out;
+        z.next_out_index = 0;
+        z.avail_out = out.length;
+        int err = z.deflate(JZlib.Z_FINISH);
+        z.deflateEnd();
+        if (err != JZlib.Z_STREAM_END)
+            throw new IOException("could not compress a page of " + file + ": " + z.msg);
+        if (z.total_out >= image.length)
+            return image;
+        return Arrays.copyOf(out, (int) z.total_out);
+    }
+
+    // see DbFile.java for javadocs
+    public void writePage(Page page) throws IOException {
+        writePages(page.getId().pageNumber(), Collections.singletonList(page.getPageData()));
+    }
+
+    /**
+     * Appends records for the images of consecutive pages with a single
+     * write, so that they can be read back with a single read.
+     *
+     * @param firstPage the page number of the first image
+     * @param images page images of pages firstPage, firstPage+1, ...
+     */
+    public void writePages(int firstPage, List<byte[]> images) throws IOException {
+        ArrayList<byte[]> records = new ArrayList<byte[]>(images.size());
+        int total = 0;
+        for (byte[] image : images) {
+            byte[] compressed = deflate(image);
+            records.add(compressed);
+            total += RECORD_HEADER + compressed.length;
+        }
+        ByteBuffer run = ByteBuffer.allocate(total);
+        for (int i = 0; i < records.size(); i++)
+            run.putInt(firstPage + i).putInt(records.get(i).length).put(records.get(i));
+        run.flip();
+        synchronized (this) {
+            channel();
+            long at = end;
+            writeFully(run, at);
+            end += total;
+            for (int i = 0; i < records.size(); i++) {
+                setEntry(firstPage + i, at, records.get(i).length);
+                at += RECORD_HEADER + records.get(i).length;
+            }
+            directoryChanged = true;
+        }
+    }
+
+    /**
+     * Adds an empty page to the end of the table. Nothing is written until
+     * the page itself is.
+     *
+     * @return the page number of the new page
+     */
+    public synchronized int appendPage() throws IOException {
+        channel();
+        int pgNo = numPages;
+        setEntry(pgNo, -1, 0);
+        return pgNo;
+    }
+
+    // see DbFile.java for javadocs
+    public ArrayList<Page> insertTuple(TransactionId tid, Tuple t)
+            throws DbException, IOException, TransactionAbortedException {
+        // append-only: only the last page takes new tuples
+        BufferPool pool = Database.getBufferPool();
+        int last = numPages() - 1;
+        HeapPage page = null;
+        if (last >= 0) {
+            HeapPageId pid = new HeapPageId(getId(), last);
+            boolean held = pool.holdsLock(tid, pid);
+            page = insertInto(pool, tid, pid, t);
+            // a page filled by this transaction stays locked (and dirty)
+            // until it commits
+            if (page == null && !held)
+                pool.releasePage(tid, pid);
+        }
+        if (page == null)
+            page = insertInto(pool, tid, new HeapPageId(getId(), appendPage()), t);
+        if (page == null)
+            throw new DbException("no room for a tuple on a new page of " + file);
+        ArrayList<Page> modified = new ArrayList<Page>(1);
+        modified.add(page);
+        return modified;
+    }
+
+    /**
+     * Inserts t into the specified page if it has room. The page is
+     * pinned and changed under its monitor, and marked dirty before the
+     * pin is released, so that it cannot be evicted with the change.
+     *
+     * @return the page, or null if it is full
+     */
+    private HeapPage insertInto(BufferPool pool, TransactionId tid, HeapPageId pid, Tuple t)
+            throws DbException, TransactionAbortedException {
+        HeapPage page = (HeapPage) pool.pinPage(tid, pid, Permissions.READ_WRITE, null);
+        try {
+            synchronized (page) {
+                if (page.getNumEmptySlots() == 0)
+                    return null;
+                page.insertTuple(t);
+                page.markDirty(true, tid);
+                return page;
+            }
+        } finally {
+            pool.unpinPage(page);
+        }
+    }
+
+    // see DbFile.java for javadocs
+    public Page deleteTuple(TransactionId tid, Tuple t)
+            throws DbException, TransactionAbortedException {
+        RecordId rid = t.getRecordId();
+        if (rid == null || rid.getPageId().getTableId() != getId())
+            throw new DbException("tuple is not a member of " + file);
+        BufferPool pool = Database.getBufferPool();
+        HeapPage page = (HeapPage) pool.pinPage(tid, rid.getPageId(), Permissions.READ_WRITE, null);
+        try {
+            synchronized (page) {
+                page.deleteTuple(t);
+                page.markDirty(true, tid);
+            }
+        } finally {
+            pool.unpinPage(page);
+        }
+        return page;
+    }
+
+    // see DbFile.java for javadocs
+    public DbFileIterator iterator(TransactionId tid) {
+        return new HeapFileIterator(this, tid);
+    }
+
+    /**
+     * Rewrites the file with only the latest record of every page, in page
+     * order, so that superseded records no longer take space and a scan
+     * reads adjacent records. Must not run concurrently with writes of
+     * pages of this table.
+     */
+    public synchronized void compact() throws IOException {
+        File tmp = new File(file.getPath() + ".tmp");
+        compress(this, tmp, level).close();
+        close();
+        new File(tmp.getPath() + ".dir").renameTo(directoryFile());
+        if (!tmp.renameTo(file))
+            throw new IOException("could not replace " + file);
+        offsets = null;
+    }
+
+    /** Writes the pages, the first of which is page firstPage, in runs of
+        up to MAX_READ bytes of images so that readPages can read them back
+        with one call per run. */
+    private void writeAll(List<Page> pages, int firstPage) throws IOException {
+        int batch = MAX_READ / pageSize;
+        for (int i = 0; i < pages.size(); i += batch) {
+            ArrayList<byte[]> images = new ArrayList<byte[]>(batch);
+            for (int j = i; j < Math.min(pages.size(), i + batch); j++)
+                images.add(pages.get(j).getPageData());
+            writePages(firstPage + i, images);
+        }
+    }
+
+    /**
+     * Creates a compressed copy of a table, e.g. to move a HeapFile that
+     * is no longer updated to cheaper storage. The copy has the page size
+     * of source.
+     *
+     * @param source the table to copy
+     * @param f the file of the copy, replaced if it exists
+     * @param level the zlib compression level
+     * @return the copy, not added to the Catalog
+     * @throws IllegalArgumentException if the pages of source have
+     *   checksums, which take room from the tuples of a page
+     */
+    public static CompressedHeapFile compress(DbFile source, File f, int level) throws IOException {
+        if (source instanceof HeapFile && ((HeapFile) source).hasChecksums())
+            throw new IllegalArgumentException("cannot compress a table with checksums");
+        f.delete();
+        new File(f.getPath() + ".dir").delete();
+        CompressedHeapFile copy = new CompressedHeapFile(f, source.getTupleDesc(), level,
+                source.getPageSize());
+        copy.channel();
+        int n = source.numPages();
+        int batch = MAX_READ / copy.pageSize;
+        for (int i = 0; i < n; i += batch)
+            copy.writeAll(source.readPages(new HeapPageId(source.getId(), i),
+                    Math.min(batch, n - i)), i);
+        return copy;
+    }
+
+    /**
+     * Saves the directory and closes the file. It is opened again if the
+     * table is used afterwards.
+     */
+    public synchronized void close() throws IOException {
+        if (raf == null)
+            return;
+        if (directoryChanged) {
+            DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(new FileOutputStream(directoryFile())));
+            try {
+                out.writeInt(DIRECTORY_MAGIC);
+                out.writeLong(end);
+                out.writeInt(numPages);
+                for (int i = 0; i < numPages; i++) {
+                    out.writeLong(offsets[i]);
+                    out.writeInt(lengths[i]);
+                }
+            } finally {
+                out.close();
+            }
+            directoryChanged = false;
+        }
+        // a torn record at the end would otherwise make the directory stale
+        channel.truncate(end);
+        raf.close();
+        raf = null;
+        channel = null;
+    }
+}
@@ -14,13 +14,16 @@ public class Database {
 	private static Database _instance = new Database();
     private final Catalog _catalog;
     private BufferPool _bufferpool; 
+    private ReplacementPolicyType _policyType;
+    private boolean _offHeap;
 
     private final static String LOGFILENAME = "log";
     private LogFile _logfile;
 
     private Database() {											// 췽
     	_catalog = new Catalog();
-    	_bufferpool = new BufferPool(BufferPool.DEFAULT_PAGES);
+    	_policyType = ReplacementPolicyType.DEFAULT;
+    	_bufferpool = new BufferPool(BufferPool.DEFAULT_PAGES, _policyType, _offHeap);
     	try {
             _logfile = new LogFile(new File(LOGFILENAME));
         } catch(IOException e) {
@@ -50,12 +53,57 @@ public class Database {
         buffer pool and return it
     */
     public static BufferPool resetBufferPool(int pages) {
-        _instance._bufferpool = new BufferPool(pages);
+        _instance._bufferpool.close();
+        _instance._bufferpool = new BufferPool(pages, _instance._policyType,
+                _instance._offHeap);
         return _instance._bufferpool;
     }
 
+    /** Select the page replacement policy of the static Database instance.
+        The buffer pool is recreated (empty, with the same number of pages)
+        so that the new policy takes effect immediately.
+    */
+    public static BufferPool setReplacementPolicy(ReplacementPolicyType type) {
+        _instance._policyType = type;
+        return resetBufferPool(_instance._bufferpool.getNumPages());
+    }
+
+    /** Select whether the buffer pool of the static Database instance keeps
+        page bytes in an off-heap arena. The buffer pool is recreated.
+        @see BufferPool#BufferPool(int, ReplacementPolicyType, int, boolean)
+    */
+    public static BufferPool setOffHeap(boolean offHeap) {
+        _instance._offHeap = offHeap;
+        return resetBufferPool(_instance._bufferpool.getNumPages());
+    }
+
+    /** Keep the buffer pool warm across restarts: the pages saved in f are
+        loaded into the buffer pool in the background, and the resident
+        pages are saved to f again when the JVM shuts down.
+        @return the warm-up thread, or null if nothing was saved in f yet
+        @see BufferPool#warmUp
+    */
+    public static BufferPoolWarmer enableWarmRestart(final File f) throws IOException {
+        Runtime.getRuntime().addShutdownHook(new Thread() {
+                public void run() {
+                    try {
+                        getBufferPool().saveResidentPages(f);
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                    }
+                }
+            });
+        return f.exists() ? _instance._bufferpool.warmUp(f) : null;
+    }
+
+    /** Return the page replacement policy of the static Database instance*/
+    public static ReplacementPolicyType getReplacementPolicy() {
+        return _instance._policyType;
+    }
+
     //reset the database, used for unit tests only.
     public static void reset() {
+    	_instance._bufferpool.close();
     	_instance = new Database();
     }
 
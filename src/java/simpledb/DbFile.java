@@ -19,6 +19,16 @@ public interface DbFile extends Serializable {
      */
     public Page readPage(PageId id);					// idPage
 
+    /**
+     * Read count consecutive pages from disk, with as few I/O operations as
+     * the file allows, e.g. a single read for a whole run of pages.
+     *
+     * @param first the id of the first page to read
+     * @return the pages first, first+1, ..., first+count-1, in that order
+     * @throws NoSuchElementException if any of the pages does not exist
+     */
+    public List<Page> readPages(PageId first, int count);
+
     /**
      * Push the specified page to disk.
      *
@@ -84,4 +94,15 @@ public interface DbFile extends Serializable {
      * @return TupleDesc of this DbFile.
      */
     public TupleDesc getTupleDesc();
+
+    /**
+     * Returns the number of pages in this DbFile.
+     */
+    public int numPages();
+
+    /**
+     * Returns the size of the pages of this DbFile in bytes, a power of two
+     * from {@link BufferPool#MIN_PAGE_SIZE} to {@link BufferPool#MAX_PAGE_SIZE}.
+     */
+    public int getPageSize();
 }
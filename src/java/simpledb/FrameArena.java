@@ -0,0 +1,133 @@
+package simpledb;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.BitSet;
+
+/**
+ * FrameArena is off-heap memory divided into fixed-size frames, one per
+ * frame of a BufferPool shard. Pages kept in an arena cost the Java heap
+ * only a thin HeapPage view each, so a pool of many gigabytes neither grows
+ * the heap nor lengthens garbage collection pauses.
+ * <p>
+ * The memory is allocated as direct ByteBuffers, each holding a fixed
+ * number of frames. Segments are added and released as the arena is
+ * resized, so the frames that remain keep their memory.
+ * <p>
+ * An arena is used in one of two ways: its frames correspond one to one
+ * to the frames of a shard and it is sized with {@link #resize}, or it
+ * hands out frames with {@link #allocate} and takes them back with
+ * {@link #free}, growing and shrinking with the number of frames in use.
+ *
+ * @see BufferPool#BufferPool(int, ReplacementPolicyType, int, boolean)
+ */
+public class FrameArena {
+
+    /** Largest segment allocated, in bytes. */
+    public static final int MAX_SEGMENT_BYTES = 1 << 30;
+
+    /** Frames per segment of the arenas of BufferPool shards: small enough
+        that rounding a shard up to whole segments wastes little, large
+        enough that a big pool needs few allocations. */
+    public static final int SHARD_SEGMENT_FRAMES = 256;
+
+    private final int frameSize;
+
+    private final int framesPerSegment;
+
+    private final ArrayList<ByteBuffer> segments = new ArrayList<ByteBuffer>();
+
+    private int numFrames;
+
+    /** Frames handed out by allocate() and not freed yet. */
+    private final BitSet allocated = new BitSet();
+
+    /**
+     * Allocates an arena.
+     *
+     * @param numFrames the number of frames
+     * @param frameSize the size of every frame in bytes
+     * @param framesPerSegment the number of frames allocated at a time
+     * @throws OutOfMemoryError if the direct memory limit of the JVM
+     *   (-XX:MaxDirectMemorySize) does not allow the arena
+     */
+    public FrameArena(int numFrames, int frameSize, int framesPerSegment) {
+        this.frameSize = frameSize;
+        this.framesPerSegment =
+            Math.max(1, Math.min(framesPerSegment, MAX_SEGMENT_BYTES / frameSize));
+        resize(numFrames);
+    }
+
+    /**
+     * Changes the number of frames. Frames below both the old and the new
+     * number keep their contents; segments no longer needed are released
+     * once no view of them is referenced anymore.
+     */
+    public void resize(int numFrames) {
+        int n = (numFrames + framesPerSegment - 1) / framesPerSegment;
+        while (segments.size() > n)
+            segments.remove(segments.size() - 1);
+        while (segments.size() < n)
+            segments.add(ByteBuffer.allocateDirect(framesPerSegment * frameSize));
+        this.numFrames = numFrames;
+    }
+
+    public int getNumFrames() {
+        return numFrames;
+    }
+
+    public int getFrameSize() {
+        return frameSize;
+    }
+
+    /** @return the number of bytes allocated off-heap */
+    public long getCapacity() {
+        return (long) segments.size() * framesPerSegment * frameSize;
+    }
+
+    /**
+     * Hands out the lowest frame not in use, adding a segment if all
+     * frames are in use.
+     *
+     * @return the index of the frame
+     */
+    public int allocate() {
+        int index = allocated.nextClearBit(0);
+        if (index >= numFrames)
+            resize(index + 1);
+        allocated.set(index);
+        return index;
+    }
+
+    /**
+     * Takes back a frame handed out by {@link #allocate}. Segments above
+     * the highest frame still in use are released.
+     */
+    public void free(int index) {
+        if (!allocated.get(index))
+            throw new IllegalStateException("frame " + index + " is not allocated");
+        allocated.clear(index);
+        if (index + 1 == numFrames)
+            resize(allocated.length());
+    }
+
+    /** @return the number of frames handed out by allocate() and not freed */
+    public int getNumAllocated() {
+        return allocated.cardinality();
+    }
+
+    /**
+     * @return a buffer of frameSize bytes sharing the memory of the
+     *   specified frame; its position and limit are independent of other
+     *   views of the same frame
+     */
+    public ByteBuffer frame(int index) {
+        if (index < 0 || index >= numFrames)
+            throw new IndexOutOfBoundsException("frame " + index);
+        ByteBuffer b = segments.get(index / framesPerSegment).duplicate();
+        int offset = (index % framesPerSegment) * frameSize;
+        b.limit(offset + frameSize);
+        b.position(offset);
+        return b.slice();
+    }
+}
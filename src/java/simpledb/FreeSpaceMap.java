@@ -0,0 +1,188 @@
+package simpledb;
+
+import java.io.*;
+import java.util.Arrays;
+
+/**
+ * FreeSpaceMap records, for every page of a HeapFile, roughly how many of
+ * its tuple slots are empty, so that an insert can go straight to a page
+ * with room instead of reading the table from its first page on.
+ * <p>
+ * Each page gets a level of four bits, two pages to a byte: 0 if the page
+ * is full, LEVELS-1 if it is empty, and in between in proportion to its
+ * empty slots, rounded up so that any page with room has a level of at
+ * least 1. The map of a table of a million pages takes 500 KB.
+ * <p>
+ * The map is a hint, not part of the data: it is changed as pages change,
+ * not when transactions commit, and it is saved next to the table file
+ * when the file is closed. A page whose level is too high is set to 0 by
+ * the insert that finds it full; a page whose level is too low is merely
+ * used less until its next change.
+ *
+ * @see HeapFile#insertTuple
+ */
+public class FreeSpaceMap {
+
+    /** The number of distinct levels a page can have. */
+    public static final int LEVELS = 16;
+
+    /** Identifies files written by {@link #save}. */
+    private static final int MAGIC = 0x46534d31;
+
+    private final int slotsPerPage;
+
+    /** Two levels per byte, the lower nibble for the even page. */
+    private byte[] levels;
+
+    private int numPages;
+
+    /** Where the last search found a page with room. */
+    private int cursor;
+
+    private boolean changed;
+
+    /**
+     * Creates an empty map.
+     *
+     * @param slotsPerPage the number of tuple slots of every page
+     */
+    public FreeSpaceMap(int slotsPerPage) {
+        this.slotsPerPage = slotsPerPage;
+        this.levels = new byte[64];
+    }
+
+    /** @return the level of a page with the specified number of empty slots */
+    public int levelOf(int emptySlots) {
+        if (emptySlots <= 0)
+            return 0;
+        return Math.min(LEVELS - 1,
+                (emptySlots * (LEVELS - 1) + slotsPerPage - 1) / slotsPerPage);
+    }
+
+    /** @return the number of pages the map knows about */
+    public synchronized int getNumPages() {
+        return numPages;
+    }
+
+    /** @return the level of a page, 0 if the map does not know the page */
+    public synchronized int getLevel(int pgNo) {
+        if (pgNo < 0 || pgNo >= numPages)
+            return 0;
+        return (levels[pgNo >> 1] >> ((pgNo & 1) * 4)) & 0xf;
+    }
+
+    /** Records the number of empty slots of a page, adding it if needed. */
+    public synchronized void update(int pgNo, int emptySlots) {
+        if (pgNo >= numPages) {
+            if ((pgNo >> 1) >= levels.length)
+                levels = Arrays.copyOf(levels, Math.max(levels.length * 2, (pgNo >> 1) + 1));
+            numPages = pgNo + 1;
+        }
+        int shift = (pgNo & 1) * 4;
+        int b = levels[pgNo >> 1];
+        int updated = (b & ~(0xf << shift)) | (levelOf(emptySlots) << shift);
+        if (updated != b) {
+            levels[pgNo >> 1] = (byte) updated;
+            changed = true;
+        }
+    }
+
+    /** Forgets the pages from n on, e.g. after the file was cut short. */
+    public synchronized void truncate(int n) {
+        if (n >= numPages)
+            return;
+        for (int i = n; i < numPages; i++)
+            levels[i >> 1] &= (i & 1) == 0 ? 0xf0 : 0x0f;
+        numPages = n;
+        cursor = 0;
+        changed = true;
+    }
+
+    /**
+     * Finds a page with at least one empty slot, searching from where the
+     * last search ended so that full pages at the start of the table are
+     * not passed over again and again.
+     *
+     * @return the page number, or -1 if the map knows of no page with room
+     */
+    public synchronized int findPage() {
+        for (int i = 0; i < numPages; i++) {
+            int pgNo = cursor + i;
+            if (pgNo >= numPages)
+                pgNo -= numPages;
+            // skip both pages of a byte at once if they are full
+            if ((pgNo & 1) == 0 && levels[pgNo >> 1] == 0 && pgNo + 1 < numPages) {
+                i++;
+                continue;
+            }
+            if (getLevel(pgNo) > 0) {
+                cursor = pgNo;
+                return pgNo;
+            }
+        }
+        return -1;
+    }
+
+    /** @return true if the map changed since it was loaded or saved */
+    public synchronized boolean isChanged() {
+        return changed;
+    }
+
+    /** Writes the map to f. */
+    public synchronized void save(File f) throws IOException {
+        DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(f)));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(slotsPerPage);
+            out.writeInt(numPages);
+            out.write(levels, 0, (numPages + 1) / 2);
+        } finally {
+            out.close();
+        }
+        changed = false;
+    }
+
+    /**
+     * Reads a map written by {@link #save}.
+     *
+     * @return the map, or null if f does not exist or holds a map for pages
+     *   of a different layout
+     * @throws IOException if f cannot be read
+     */
+    public static FreeSpaceMap load(File f, int slotsPerPage) throws IOException {
+        if (!f.exists())
+            return null;
+        DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(f)));
+        try {
+            if (in.readInt() != MAGIC || in.readInt() != slotsPerPage)
+                return null;
+            FreeSpaceMap map = new FreeSpaceMap(slotsPerPage);
+            int n = in.readInt();
+            map.levels = new byte[Math.max(64, (n + 1) / 2)];
+            in.readFully(map.levels, 0, (n + 1) / 2);
+            map.numPages = n;
+            return map;
+        } catch (EOFException e) {
+            return null;
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Counts the empty slots of a page image without decoding it.
+     *
+     * @param data the page images
+     * @param offset the index of the first byte of the page in data
+     */
+    public int countEmptySlots(byte[] data, int offset) {
+        int used = 0;
+        for (int i = 0; i < slotsPerPage; i++) {
+            if ((data[offset + i / 8] >> (i % 8) & 1) != 0)
+                used++;
+        }
+        return slotsPerPage - used;
+    }
+}
@@ -1,14 +1,58 @@
 package simpledb;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.*;
+import java.util.zip.CRC32C;
 
 /**
  * HeapFile is an implementation of a DbFile that stores a collection of tuples
  * in no particular order. Tuples are stored on pages, each of which is a fixed
- * size, and the file is simply a collection of those pages. HeapFile works
+ * size, and the file is simply a collection of those pages. The page size is
+ * chosen per file, BufferPool.PAGE_SIZE by default; like checksums it is
+ * part of the format of the file and must be the same whenever the file is
+ * opened. Tables of wide tuples fit more tuples per page with larger pages,
+ * and scans of them pay the per-page costs less often. HeapFile works
  * closely with HeapPage. The format of HeapPages is described in the HeapPage
  * constructor.
+ * <p>
+ * Pages are read and written through a single FileChannel per file, opened
+ * on first use and kept open, using positional I/O: concurrent readers and
+ * writers do not share a file pointer and need no locking.
+ * <p>
+ * A memory-mapped HeapFile maps the file read-only in segments of
+ * MAP_SEGMENT_BYTES and reads pages as views of the mapping, without
+ * copying them. A HeapPage copies its bytes onto the heap when it is first
+ * modified; writes still go through the channel and are seen by the
+ * mapping. A segment that was mapped while the file was shorter is mapped
+ * again when a page past its end is read, so inserts are handled. The file
+ * must not be truncated while it is mapped.
+ * <p>
+ * The number of pages is kept in memory rather than asking the file
+ * system for the file length on every call. New pages are added with
+ * {@link #appendPage}, which grows the file by whole extents of empty
+ * pages at a time; pages allocated but not yet appended are cut off again
+ * by {@link #close}, and a crash at worst leaves some empty pages behind.
+ * Extents are written, and the free-space map below is built, without
+ * holding the monitor of the HeapFile, which only guards the page counts
+ * and the opening of the file.
+ * <p>
+ * Inserts find a page with room through a {@link FreeSpaceMap}, kept in
+ * a file next to the table file with ".fsm" appended to its name. The map
+ * is loaded on first use, completed from the page headers on disk if the
+ * table has pages it does not know, and saved by close().
+ * <p>
+ * A HeapFile with checksums keeps a CRC32C in the last CHECKSUM_BYTES of
+ * every page, which then holds correspondingly fewer tuples. The checksum
+ * covers the rest of the page and its page number, so a page written to
+ * the wrong place is caught as well. It is stamped by writePage and
+ * verified by every read; a page of zeros, as left by appendPage, counts
+ * as valid. Whether a file has checksums is part of its format and must
+ * be the same every time the file is opened.
  * 
  * @see simpledb.HeapPage#HeapPage
  * @author Sam Madden
@@ -25,10 +69,137 @@ public class HeapFile implements DbFile {	// һ
 	private TupleDesc td;
 	
 	private File file;
+
+	/** The open file, or null until first used and after close(). */
+	private transient RandomAccessFile raf;
+
+	/** The channel of raf. Set under the monitor, read without it. */
+	private transient volatile FileChannel channel;
+
+	/** Bytes mapped at a time by a memory-mapped HeapFile, a multiple of
+	    the page size. */
+	public static final int MAP_SEGMENT_BYTES=64<<20;
+
+	private final boolean memoryMapped;
+
+	/** Bytes at the end of every page that hold its checksum. */
+	public static final int CHECKSUM_BYTES=4;
+
+	private final boolean checksums;
+
+	private final int pageSize;
+
+	/** The read-only mappings of a memory-mapped file, indexed by segment;
+	    an entry is null until a page of its segment is read. Replaced as a
+	    whole when it grows, so readers need no lock. */
+	private transient volatile MappedByteBuffer[] segments=new MappedByteBuffer[0];
+
+	/** Smallest and largest number of pages the file grows by at a time. */
+	public static final int MIN_EXTENT_PAGES=8;
+	public static final int MAX_EXTENT_PAGES=1024;
+
+	/** The number of pages of the file, or -1 until first asked for. Only
+	    grows, and only under the monitor. */
+	private transient volatile int numPages=-1;
+
+	/** The number of pages the file has room for on disk, at least
+	    numPages. Guarded by the monitor. */
+	private transient int allocatedPages;
+
+	/** The number of extents allocated so far, for tests and monitoring. */
+	private transient volatile int extentCount;
+
+	/** Pages read at a time when the free-space map is built from disk. */
+	private static final int FSM_SCAN_PAGES=64;
+
+	/** The free-space map, or null until first used. Built under
+	    fsmLock, read without it. */
+	private transient volatile FreeSpaceMap freeSpaceMap;
+
+	/** Serializes the building of the free-space map, which reads the
+	    pages it does not know, without holding the monitor. */
+	private final Object fsmLock=new Object[0];
+
+	/** Serializes appendPage and close, which write to the file, so the
+	    monitor is only held while the page counts change. Taken before
+	    fsmLock and the monitor. Empty arrays, unlike plain Objects, can
+	    be serialized with the file; see readObject for the rest. */
+	private final Object extendLock=new Object[0];
 	
     public HeapFile(File f, TupleDesc td) {
+        this(f,td,false);
+    }
+
+    /**
+     * Constructs a heap file backed by the specified file.
+     *
+     * @param memoryMapped whether pages are read as views of a read-only
+     *   mapping of the file instead of being copied
+     */
+    public HeapFile(File f, TupleDesc td, boolean memoryMapped) {
+        this(f,td,memoryMapped,false);
+    }
+
+    /**
+     * Constructs a heap file backed by the specified file.
+     *
+     * @param memoryMapped whether pages are read as views of a read-only
+     *   mapping of the file instead of being copied
+     * @param checksums whether the pages of the file carry checksums
+     */
+    public HeapFile(File f, TupleDesc td, boolean memoryMapped, boolean checksums) {
+        this(f,td,memoryMapped,checksums,BufferPool.PAGE_SIZE);
+    }
+
+    /**
+     * Constructs a heap file backed by the specified file.
+     *
+     * @param memoryMapped whether pages are read as views of a read-only
+     *   mapping of the file instead of being copied
+     * @param checksums whether the pages of the file carry checksums
+     * @param pageSize the bytes per page of the file
+     * @throws IllegalArgumentException if pageSize is not a valid page size
+     * @see BufferPool#checkPageSize
+     */
+    public HeapFile(File f, TupleDesc td, boolean memoryMapped, boolean checksums,
+            int pageSize) {
+        BufferPool.checkPageSize(pageSize);
         this.td=td;
         this.file=f;
+        this.memoryMapped=memoryMapped;
+        this.checksums=checksums;
+        this.pageSize=pageSize;
+    }
+
+    /**
+     * Restores the transient state of a deserialized file, whose field
+     * initializers do not run: the page count is read again and nothing is
+     * mapped.
+     */
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        segments=new MappedByteBuffer[0];
+        numPages=-1;
+    }
+
+    // see DbFile.java for javadocs
+    public int getPageSize() {
+        return pageSize;
+    }
+
+    /** @return true if the pages of this file carry checksums */
+    public boolean hasChecksums() {
+        return checksums;
+    }
+
+    /** @return the bytes of a page available to its header and tuples */
+    public int getUsablePageSize() {
+        return checksums?pageSize-CHECKSUM_BYTES:pageSize;
+    }
+
+    /** @return true if pages are read from a mapping of the file */
+    public boolean isMemoryMapped() {
+        return memoryMapped;
     }
 
     /**
@@ -64,53 +235,569 @@ public class HeapFile implements DbFile {	// һ
 
     // see DbFile.java for javadocs
     public Page readPage(PageId pid) throws NoSuchElementException{
+    	if(memoryMapped){
+    		checkPage(pid);
+    		ByteBuffer page=mappedPage(pid.pageNumber());
+    		verify(page,pid.pageNumber());
+    		return new HeapPage((HeapPageId)pid,page);
+    	}
     	try
-    		{ // Push the specified page to disk
-    		if(pid.pageNumber()>=numPages()){
-    			throw new NoSuchElementException();
-    			}
-    		else{
-			    int offset = BufferPool.PAGE_SIZE * pid.pageNumber();
-			    // ʹRandomAccessFileȥȡļ
-			    RandomAccessFile raf=new RandomAccessFile(file,"r");
-			    raf.seek(offset);
-			    byte[] data=new byte[BufferPool.PAGE_SIZE];
-			    raf.read(data);
-			    raf.close();
-			    return new HeapPage((HeapPageId)pid,data);	
-	    		}
-    		}catch(Exception e){
-    			 e.printStackTrace();
-    			throw new NoSuchElementException();
+    		{
+    		return new HeapPage((HeapPageId)pid,readPageData(pid));
+    		}catch(IOException e){
+    			// the bytes were read already, decoding them cannot fail
+    			throw new UncheckedIOException(e);
+    		}
+    }
+
+    // see DbFile.java for javadocs
+    public List<Page> readPages(PageId first, int count) throws NoSuchElementException {
+    	ArrayList<Page> pages=new ArrayList<Page>(count);
+    	if(memoryMapped){
+    		// views of the mapping, nothing to read
+    		for(int i=0;i<count;i++){
+    			pages.add(readPage(new HeapPageId(getId(),first.pageNumber()+i)));
+    		}
+    		return pages;
+    	}
+    	byte[] run=readPagesData(first,count);
+    	try{
+    		for(int i=0;i<count;i++){
+    			pages.add(new HeapPage(new HeapPageId(getId(),first.pageNumber()+i),
+    					Arrays.copyOfRange(run,i*pageSize,(i+1)*pageSize)));
+    		}
+    	}catch(IOException e){
+    		throw new UncheckedIOException(e);
+    	}
+    	return pages;
+    }
+
+    /**
+     * Reads the raw bytes of count consecutive pages, starting with first,
+     * with a single positional read.
+     *
+     * @return the images of the pages, one after the other
+     * @throws NoSuchElementException if any of the pages does not exist
+     * @throws UncheckedIOException if the pages cannot be read
+     */
+    public byte[] readPagesData(PageId first, int count) throws NoSuchElementException {
+    	checkPage(first);
+    	if(count>0){
+    		checkPage(new HeapPageId(getId(),first.pageNumber()+count-1));
+    	}
+    	byte[] run=readRaw(first.pageNumber(),count);
+    	for(int i=0;i<count;i++){
+    		verify(ByteBuffer.wrap(run,i*pageSize,pageSize).slice(),
+    				first.pageNumber()+i);
+    	}
+    	return run;
+    }
+
+    /** Reads the images of count consecutive pages without verifying them. */
+    private byte[] readRaw(int firstPage, int count) {
+    	byte[] run=new byte[pageSize*count];
+    	if(memoryMapped){
+    		for(int i=0;i<count;i++){
+    			mappedPage(firstPage+i).get(run,i*pageSize,pageSize);
+    		}
+    		return run;
+    	}
+    	try{
+    		readFully(ByteBuffer.wrap(run),(long)pageSize*firstPage);
+    	}catch(IOException e){
+    		throw new UncheckedIOException("could not read pages "+firstPage+" to "
+    				+(firstPage+count-1)+" of "+file,e);
+    	}
+    	return run;
+    }
+
+    /**
+     * @return the checksum of a page image
+     * @param page the image, pageSize bytes from index 0
+     */
+    private int checksum(ByteBuffer page, int pgNo) {
+    	CRC32C crc=new CRC32C();
+    	ByteBuffer covered=page.duplicate();
+    	covered.clear();
+    	covered.limit(pageSize-CHECKSUM_BYTES);
+    	crc.update(covered);
+    	crc.update(ByteBuffer.allocate(4).putInt(0,pgNo));
+    	return (int)crc.getValue();
+    }
+
+    /** @return true if the page is all zeros, as written by appendPage */
+    private boolean isNew(ByteBuffer page) {
+    	for(int i=0;i<pageSize;i++){
+    		if(page.get(i)!=0){
+    			return false;
+    		}
+    	}
+    	return true;
+    }
+
+    /**
+     * @return true unless this file has checksums and the image of page
+     *   pgNo does not match its checksum
+     */
+    private boolean isIntact(ByteBuffer page, int pgNo) {
+    	return !checksums||page.getInt(pageSize-CHECKSUM_BYTES)==checksum(page,pgNo)
+    			||isNew(page);
+    }
+
+    /** @throws UncheckedIOException if the page fails its checksum */
+    private void verify(ByteBuffer page, int pgNo) {
+    	if(!isIntact(page,pgNo)){
+    		throw new UncheckedIOException(new IOException("checksum mismatch on page "+pgNo
+    				+" of "+file));
+    	}
+    }
+
+    /** Stores the checksum in the page image starting at offset of data. */
+    private void stamp(byte[] data, int offset, int pgNo) {
+    	if(checksums){
+    		ByteBuffer page=ByteBuffer.wrap(data,offset,pageSize).slice();
+    		page.putInt(pageSize-CHECKSUM_BYTES,checksum(page,pgNo));
+    	}
+    }
+
+    /**
+     * Reads a page from disk, bypassing the BufferPool, and checks it
+     * against its checksum.
+     *
+     * @return true if the page is intact or the file has no checksums
+     * @throws NoSuchElementException if the page does not exist
+     * @throws UncheckedIOException if the page cannot be read
+     */
+    public boolean verifyPage(int pgNo) throws NoSuchElementException {
+    	checkPage(new HeapPageId(getId(),pgNo));
+    	return isIntact(ByteBuffer.wrap(readRaw(pgNo,1)),pgNo);
+    }
+
+    /**
+     * Reads the raw bytes of a page without decoding them.
+     *
+     * @throws NoSuchElementException if the page does not exist
+     * @throws UncheckedIOException if the page cannot be read, including
+     *   reads that end early because the file was truncated meanwhile
+     */
+    public byte[] readPageData(PageId pid) throws NoSuchElementException{
+    	checkPage(pid);
+    	byte[] data=new byte[pageSize];
+    	if(memoryMapped){
+    		mappedPage(pid.pageNumber()).get(data);
+    	}else{
+    		try{
+    			readFully(ByteBuffer.wrap(data),(long)pageSize*pid.pageNumber());
+    		}catch(IOException e){
+    			throw new UncheckedIOException("could not read page "+pid.pageNumber()
+    					+" of "+file,e);
+    		}
+    	}
+    	verify(ByteBuffer.wrap(data),pid.pageNumber());
+    	return data;
+    }
+
+    private void checkPage(PageId pid) throws NoSuchElementException {
+    	if(pid.pageNumber()<0||pid.pageNumber()>=numPages()){
+    		throw new NoSuchElementException("page "+pid.pageNumber()+" of "+file
+    				+" does not exist");
+    	}
+    }
+
+    /**
+     * @return a read-only buffer of pageSize bytes sharing the
+     *   memory of the mapping of the specified page
+     * @throws UncheckedIOException if the page cannot be mapped
+     */
+    private ByteBuffer mappedPage(int pgNo) {
+    	long pos=(long)pageSize*pgNo;
+    	int seg=(int)(pos/MAP_SEGMENT_BYTES);
+    	int offset=(int)(pos%MAP_SEGMENT_BYTES);
+    	MappedByteBuffer[] segs=segments;
+    	MappedByteBuffer m=seg<segs.length?segs[seg]:null;
+    	if(m==null||m.capacity()<offset+pageSize){
+    		m=map(seg,offset+pageSize);
+    	}
+    	ByteBuffer b=m.duplicate();
+    	b.limit(offset+pageSize);
+    	b.position(offset);
+    	return b.slice();
+    }
+
+    /**
+     * Maps a segment as far as the file currently extends, unless another
+     * thread did so already.
+     *
+     * @param needed the number of bytes of the segment that must be mapped
+     */
+    private synchronized MappedByteBuffer map(int seg, int needed) {
+    	MappedByteBuffer[] segs=segments;
+    	if(seg<segs.length&&segs[seg]!=null&&segs[seg].capacity()>=needed){
+    		return segs[seg];
+    	}
+    	long start=(long)seg*MAP_SEGMENT_BYTES;
+    	MappedByteBuffer m;
+    	try{
+    		long size=Math.min(MAP_SEGMENT_BYTES,channel().size()-start);
+    		if(size<needed){
+    			throw new EOFException("offset "+(start+needed)+" is past the end of "+file);
     		}
+    		m=channel().map(FileChannel.MapMode.READ_ONLY,start,size);
+    	}catch(IOException e){
+    		throw new UncheckedIOException("could not map "+file,e);
+    	}
+    	if(seg>=segs.length){
+    		segs=Arrays.copyOf(segs,seg+1);
+    	}else{
+    		segs=segs.clone();
+    	}
+    	segs[seg]=m;
+    	segments=segs;
+    	return m;
     }
+
     // see DbFile.java for javadocs
     public void writePage(Page page) throws IOException {
-        // some code goes here
-        // not necessary for lab1
+        byte[] data=page.getPageData();
+        stamp(data,0,page.getId().pageNumber());
+        writeFully(ByteBuffer.wrap(data),
+        		(long)pageSize*page.getId().pageNumber());
+        grown(page.getId().pageNumber()+1);
+    }
+
+    /** @return the channel to the file, opening it if necessary */
+    private FileChannel channel() throws IOException {
+        FileChannel ch=channel;
+        if(ch!=null){
+        	return ch;
+        }
+        synchronized(this){
+        	if(channel==null){
+        		RandomAccessFile f;
+        		try{
+        			f=new RandomAccessFile(file,"rw");
+        		}catch(FileNotFoundException e){
+        			// a read-only file can still be scanned
+        			f=new RandomAccessFile(file,"r");
+        		}
+        		raf=f;
+        		channel=f.getChannel();
+        	}
+        	return channel;
+        }
+    }
+
+    /**
+     * Forgets a channel that was closed, so that the next access reopens
+     * the file. A FileChannel is closed for all threads when a thread is
+     * interrupted in the middle of an operation on it, e.g. a read-ahead
+     * thread during shutdown.
+     */
+    private synchronized void closed(FileChannel ch) {
+        if(channel==ch){
+        	channel=null;
+        	raf=null;
+        }
+    }
+
+    /**
+     * Reads until dst is full, starting at the specified file position.
+     * Retries once on a fresh channel if another thread's interrupt closed
+     * the channel.
+     *
+     * @throws EOFException if the file ends before dst is full
+     */
+    private void readFully(ByteBuffer dst, long position) throws IOException {
+        int start=dst.position();
+        for(int attempt=0;;attempt++){
+        	FileChannel ch=channel();
+        	try{
+        		while(dst.hasRemaining()){
+        			if(ch.read(dst,position+dst.position()-start)<0){
+        				throw new EOFException("short read at offset "+position+" of "+file
+        						+": "+(dst.position()-start)+" of "+(dst.limit()-start)+" bytes");
+        			}
+        		}
+        		return;
+        	}catch(ClosedChannelException e){
+        		closed(ch);
+        		if(attempt>0||e instanceof ClosedByInterruptException){
+        			throw e;
+        		}
+        	}
+        }
+    }
+
+    /**
+     * Writes all of src starting at the specified file position. Retries
+     * once on a fresh channel if another thread's interrupt closed the
+     * channel.
+     */
+    private void writeFully(ByteBuffer src, long position) throws IOException {
+        int start=src.position();
+        for(int attempt=0;;attempt++){
+        	FileChannel ch=channel();
+        	try{
+        		while(src.hasRemaining()){
+        			ch.write(src,position+src.position()-start);
+        		}
+        		return;
+        	}catch(ClosedChannelException e){
+        		closed(ch);
+        		if(attempt>0||e instanceof ClosedByInterruptException){
+        			throw e;
+        		}
+        	}
+        }
+    }
+
+    /**
+     * Closes the file and drops its mappings, which are unmapped once no
+     * page viewing them is referenced anymore. The file is opened again if
+     * the HeapFile is used afterwards.
+     */
+    public void close() throws IOException {
+        synchronized(extendLock){
+        	segments=new MappedByteBuffer[0];
+        	FreeSpaceMap map=freeSpaceMap;
+        	if(map!=null&&map.isChanged()){
+        		map.truncate(numPages());
+        		map.save(freeSpaceMapFile());
+        	}
+        	RandomAccessFile f;
+        	int n;
+        	boolean cut;
+        	synchronized(this){
+        		f=raf;
+        		n=numPages();
+        		// views of a mapping may still be read, never cut the file under them
+        		cut=f!=null&&allocatedPages>n&&!memoryMapped;
+        		if(cut){
+        			allocatedPages=n;
+        		}
+        		raf=null;
+        		channel=null;
+        	}
+        	if(f!=null){
+        		// no append runs, and a page past n is never written
+        		if(cut){
+        			f.getChannel().truncate((long)pageSize*n);
+        		}
+        		f.close();
+        	}
+        }
+    }
+
+    /**
+     * Writes the serialized images of consecutive pages with a single
+     * write call.
+     *
+     * @param firstPage the page number of the first image
+     * @param images page images, as returned by Page.getPageData, of pages
+     *   firstPage, firstPage+1, ...
+     */
+    public void writePages(int firstPage, List<byte[]> images) throws IOException {
+        byte[] run=new byte[pageSize*images.size()];
+        for(int i=0;i<images.size();i++){
+        	System.arraycopy(images.get(i),0,run,i*pageSize,pageSize);
+        	stamp(run,i*pageSize,firstPage+i);
+        }
+        writeFully(ByteBuffer.wrap(run),(long)pageSize*firstPage);
+        grown(firstPage+images.size());
     }
 
     /**
      * Returns the number of pages in this HeapFile.
      */
     public int numPages() {
-        return (int)(file.length()/(long)BufferPool.PAGE_SIZE);
+        int n=numPages;
+        return n>=0?n:loadPageCount();
+    }
+
+    private synchronized int loadPageCount() {
+        if(numPages<0){
+        	allocatedPages=(int)(file.length()/(long)pageSize);
+        	numPages=allocatedPages;
+        }
+        return numPages;
+    }
+
+    /** Notes that the file holds at least n pages after a write. */
+    private void grown(int n) {
+        if(n>numPages()){
+        	synchronized(this){
+        		if(n>numPages){
+        			numPages=n;
+        			allocatedPages=Math.max(allocatedPages,n);
+        		}
+        	}
+        }
+    }
+
+    /**
+     * Adds an empty page to the end of the file. When the room allocated
+     * on disk is used up, the file is extended by a whole extent of empty
+     * pages with a single write: an eighth of its size, at least
+     * MIN_EXTENT_PAGES and at most MAX_EXTENT_PAGES pages.
+     *
+     * @return the page number of the new page, which can be read at once
+     */
+    public int appendPage() throws IOException {
+        synchronized(extendLock){
+        	int n;
+        	int allocated;
+        	synchronized(this){
+        		n=numPages();
+        		allocated=allocatedPages;
+        	}
+        	if(n>=allocated){
+        		int extent=Math.max(MIN_EXTENT_PAGES,Math.min(MAX_EXTENT_PAGES,n/8));
+        		// the zeros of an empty page are written, so the disk space is
+        		// really reserved and no sparse holes are left; readers go on
+        		// meanwhile, the pages are not counted yet
+        		writeFully(ByteBuffer.allocate(pageSize*extent),
+        				(long)pageSize*allocated);
+        		allocated+=extent;
+        		extentCount++;
+        	}
+        	synchronized(this){
+        		// a write past the end may have grown the file meanwhile
+        		n=numPages();
+        		numPages=n+1;
+        		allocatedPages=Math.max(allocatedPages,Math.max(allocated,n+1));
+        	}
+        	getFreeSpaceMap().update(n,slotsPerPage());
+        	return n;
+        }
+    }
+
+    /** @return the number of tuple slots of every page of this file */
+    private int slotsPerPage() {
+        return (getUsablePageSize()*8)/(td.getSize()*8+1);
+    }
+
+    /**
+     * @return the free-space map of this file, loading it, and reading the
+     *   headers of the pages it does not know, on first use
+     * @throws UncheckedIOException if the map cannot be read or built
+     */
+    public FreeSpaceMap getFreeSpaceMap() {
+        FreeSpaceMap map=freeSpaceMap;
+        if(map!=null){
+        	return map;
+        }
+        synchronized(fsmLock){
+        	if(freeSpaceMap==null){
+        		try{
+        			map=FreeSpaceMap.load(freeSpaceMapFile(),slotsPerPage());
+        			if(map==null){
+        				map=new FreeSpaceMap(slotsPerPage());
+        			}
+        			int n=numPages();
+        			map.truncate(n);
+        			for(int first=map.getNumPages();first<n;first+=FSM_SCAN_PAGES){
+        				int count=Math.min(FSM_SCAN_PAGES,n-first);
+        				byte[] run=readPagesData(new HeapPageId(getId(),first),count);
+        				for(int i=0;i<count;i++){
+        					map.update(first+i,map.countEmptySlots(run,i*pageSize));
+        				}
+        			}
+        			freeSpaceMap=map;
+        		}catch(IOException e){
+        			throw new UncheckedIOException("could not load the free-space map of "+file,e);
+        		}
+        	}
+        	return freeSpaceMap;
+        }
+    }
+
+    private File freeSpaceMapFile() {
+        return new File(file.getPath()+".fsm");
+    }
+
+    /** Called by HeapPage when the number of empty slots of a page changed. */
+    void freeSpaceChanged(int pgNo, int emptySlots) {
+        getFreeSpaceMap().update(pgNo,emptySlots);
+    }
+
+    /** @return the number of extents appendPage has allocated */
+    public int getExtentCount() {
+        return extentCount;
     }
 
     // see DbFile.java for javadocs
     public ArrayList<Page> insertTuple(TransactionId tid, Tuple t)
             throws DbException, IOException, TransactionAbortedException {
-        // some code goes here
-        return null;
-        // not necessary for lab1
+    	FreeSpaceMap map=getFreeSpaceMap();
+    	BufferPool pool=Database.getBufferPool();
+    	ArrayList<Page> modified=new ArrayList<Page>(1);
+    	for(int pgNo=map.findPage();pgNo>=0;pgNo=map.findPage()){
+    		HeapPageId pid=new HeapPageId(getId(),pgNo);
+    		boolean held=pool.holdsLock(tid,pid);
+    		HeapPage page=insertInto(pool,tid,pid,t);
+    		if(page!=null){
+    			modified.add(page);
+    			return modified;
+    		}
+    		// the map was out of date; a lock taken just for this look can
+    		// go, but one the transaction already held may cover its changes
+    		map.update(pgNo,0);
+    		if(!held){
+    			pool.releasePage(tid,pid);
+    		}
+    	}
+    	HeapPage page=insertInto(pool,tid,new HeapPageId(getId(),appendPage()),t);
+    	if(page==null){
+    		throw new DbException("no room for a tuple on a new page of "+file);
+    	}
+    	modified.add(page);
+    	return modified;
+    }
+
+    /**
+     * Inserts t into the specified page if it has room. The page is
+     * pinned, changed under its monitor and marked dirty before the pin is
+     * released: until then, a clean unpinned page could be evicted, or its
+     * off-heap frame reused, and the change be lost.
+     *
+     * @return the page, or null if it is full
+     */
+    private HeapPage insertInto(BufferPool pool, TransactionId tid, HeapPageId pid, Tuple t)
+            throws DbException, TransactionAbortedException {
+    	HeapPage page=(HeapPage)pool.pinPage(tid,pid,Permissions.READ_WRITE,null);
+    	try{
+    		synchronized(page){
+    			if(page.getNumEmptySlots()==0){
+    				return null;
+    			}
+    			page.insertTuple(t);
+    			page.markDirty(true,tid);
+    			return page;
+    		}
+    	}finally{
+    		pool.unpinPage(page);
+    	}
     }
 
     // see DbFile.java for javadocs
     public Page deleteTuple(TransactionId tid, Tuple t) throws DbException,
             TransactionAbortedException {
-        // some code goes here
-        return null;
-        // not necessary for lab1
+    	RecordId rid=t.getRecordId();
+    	if(rid==null||rid.getPageId().getTableId()!=getId()){
+    		throw new DbException("tuple is not a member of "+file);
+    	}
+    	BufferPool pool=Database.getBufferPool();
+    	HeapPage page=(HeapPage)pool.pinPage(tid,rid.getPageId(),Permissions.READ_WRITE,null);
+    	try{
+    		// pinned and marked dirty under the monitor, as in insertInto
+    		synchronized(page){
+    			page.deleteTuple(t);
+    			page.markDirty(true,tid);
+    		}
+    	}finally{
+    		pool.unpinPage(page);
+    	}
+    	return page;
     }
 
     // see DbFile.java for javadocs
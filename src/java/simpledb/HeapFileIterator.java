@@ -4,7 +4,7 @@ import java.io.Serializable;
 import java.util.*;
 
 public class HeapFileIterator implements DbFileIterator {
-	private final HeapFile heapFile;
+	private final DbFile heapFile;
 	
 	private final TransactionId transactionId;
 	
@@ -12,7 +12,16 @@ public class HeapFileIterator implements DbFileIterator {
 	
 	private Iterator<Tuple> pageIterator;
 	
-	public HeapFileIterator(HeapFile hf, TransactionId tid){
+	/** Ring the scan reads through if the table is large, or null. */
+	private BufferAccessStrategy strategy;
+	
+	/** The page pageIterator runs over, pinned until the iterator moves on. */
+	private Page pinned;
+	
+	/** The pool the pinned page was pinned in. */
+	private BufferPool pinnedIn;
+	
+	public HeapFileIterator(DbFile hf, TransactionId tid){
 		heapFile =hf;
 		transactionId =tid;
 	}
@@ -24,6 +33,8 @@ public class HeapFileIterator implements DbFileIterator {
      */
     public void open() throws TransactionAbortedException, DbException{
     	this.currentPageNo=0;
+    	this.strategy=Database.getBufferPool().getPoolForTable(heapFile.getId())
+    			.getBulkReadStrategy(heapFile.numPages(),heapFile.getPageSize());
     	this.pageIterator=getIterator(currentPageNo);
     }
     
@@ -68,14 +79,28 @@ public class HeapFileIterator implements DbFileIterator {
     }
     
     public void close() {
+        unpin();
         pageIterator = null;
+        strategy = null;
     }
     
 	private Iterator<Tuple> getIterator(int pageNo) throws TransactionAbortedException, DbException{
 		HeapPage page;
+		unpin();
 		// ΪһtableӦһheapfileֱheapfileIDȥӦtableid
-		page=(HeapPage)Database.getBufferPool().getPage(
-				transactionId, new HeapPageId(heapFile.getId(),pageNo), Permissions.READ_ONLY);
+		HeapPageId pid=new HeapPageId(heapFile.getId(),pageNo);
+		BufferPool pool=Database.getBufferPool();
+		page=(HeapPage)pool.pinPage(transactionId, pid, Permissions.READ_ONLY, strategy);
+		pinned=page;
+		pinnedIn=pool;
 		return page.iterator();
 	}
+	
+	private void unpin(){
+		if(pinned!=null){
+			pinnedIn.unpinPage(pinned);
+			pinned=null;
+			pinnedIn=null;
+		}
+	}
 }
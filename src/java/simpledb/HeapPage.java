@@ -2,6 +2,7 @@ package simpledb;
 
 import java.util.*;
 import java.io.*;
+import java.nio.ByteBuffer;
 
 /**
  * Each instance of HeapPage stores data for one page of HeapFiles and 
@@ -18,28 +19,58 @@ public class HeapPage implements Page {
     byte header[];
     Tuple tuples[];
     int numSlots;
+
+    /** Bytes of this page, the page size of its file. */
+    private final int pageSize;
     
     byte[] oldData;
 
+    /** The transaction that last dirtied this page, or null if clean. */
+    private volatile TransactionId dirtier;
+
+    /**
+     * The page bytes if this page is a view, typically a frame of the
+     * BufferPool's off-heap arena; null if the page is decoded into header
+     * and tuples. A view decodes tuples on demand and writes changes
+     * straight into the buffer. Its before image is only copied when the
+     * page is first modified; until then oldData is null and the buffer
+     * itself is the before image.
+     */
+    private ByteBuffer buf;
+
+    /** Estimated heap bytes of this page, or -1 if the page changed since
+        it was last measured. */
+    private volatile long footprint = -1;
+
+    /** Sizes used by the footprint estimate, for a 64-bit JVM with
+        compressed references. */
+    private static final int OBJECT_HEADER = 16;
+    private static final int REFERENCE = 4;
+
     /**
      * Create a HeapPage from a set of bytes of data read from disk.
      * The format of a HeapPage is a set of header bytes indicating
      * the slots of the page that are in use, some number of tuple slots.
      * Specifically, the number of tuples is equal to: <p>
-     *          floor((BufferPool.PAGE_SIZE*8) / (tuple size * 8 + 1))
+     *          floor((page size*8) / (tuple size * 8 + 1))
      * <p> where tuple size is the size of tuples in this
-     * database table, which can be determined via {@link Catalog#getTupleDesc}.
+     * database table, which can be determined via {@link Catalog#getTupleDesc},
+     * and page size is that of its file, see {@link DbFile#getPageSize}.
      * The number of 8-bit header words is equal to:
      * <p>
      *      ceiling(no. tuple slots / 8)
      * <p>
+     * If the HeapFile keeps checksums, its last HeapFile.CHECKSUM_BYTES
+     * bytes are reserved for the checksum and do not count towards the
+     * page size above.
+     * <p>
      * @see Database#getCatalog
      * @see Catalog#getTupleDesc
-     * @see BufferPool#PAGE_SIZE
      */
     public HeapPage(HeapPageId id, byte[] data) throws IOException {
         this.pid = id;
         this.td = Database.getCatalog().getTupleDesc(id.getTableId());
+        this.pageSize = Database.getCatalog().getDbFile(id.getTableId()).getPageSize();
         this.numSlots = getNumTuples();
         DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
 
@@ -62,21 +93,48 @@ public class HeapPage implements Page {
         setBeforeImage();
     }
 
+    /**
+     * Create a HeapPage that is a view of the page bytes in buf, which
+     * must hold a page of its file starting at index 0. Nothing is decoded
+     * up front.
+     *
+     * @see FrameArena
+     */
+    public HeapPage(HeapPageId id, ByteBuffer buf) {
+        this.pid = id;
+        this.td = Database.getCatalog().getTupleDesc(id.getTableId());
+        this.pageSize = Database.getCatalog().getDbFile(id.getTableId()).getPageSize();
+        this.numSlots = getNumTuples();
+        this.buf = buf;
+    }
+
     /** Retrieve the number of tuples on this page.
         @return the number of tuples on this page
     */
     private int getNumTuples() { 
-    	int result =(int)Math.floor(BufferPool.PAGE_SIZE*8/(this.td.getSize()*8+1));
+    	int result =(int)Math.floor(getUsablePageSize()*8/(this.td.getSize()*8+1));
         return result;
     }
 
+    /** @return the bytes of the page available to header and tuples; less
+        than the page size if the file keeps a checksum in the page */
+    private int getUsablePageSize() {
+        DbFile f = Database.getCatalog().getDbFile(pid.getTableId());
+        return f instanceof HeapFile ? ((HeapFile) f).getUsablePageSize() : pageSize;
+    }
+
+    /** @return the number of bytes of this page */
+    public int getPageSize() {
+        return pageSize;
+    }
+
     /**
      * Computes the number of bytes in the header of a page in a HeapFile with each tuple occupying tupleSize bytes
      * @return the number of bytes in the header of a page in a HeapFile with each tuple occupying tupleSize bytes
      */
     private int getHeaderSize() {           
         int res=0;
-        res=(int)Math.ceil(numSlots/8);
+        res=(numSlots+7)/8;	// ȡ, Math.ceil
         return res;
     }
     
@@ -84,7 +142,7 @@ public class HeapPage implements Page {
         -- used by recovery */
     public HeapPage getBeforeImage(){
         try {
-            return new HeapPage(pid,oldData);
+            return new HeapPage(pid,oldData!=null?oldData:getPageData());
         } catch (IOException e) {
             e.printStackTrace();
             //should never happen -- we parsed it OK before!
@@ -94,7 +152,158 @@ public class HeapPage implements Page {
     }
     
     public void setBeforeImage() {
-        oldData = getPageData().clone();
+        if (buf != null)
+            oldData = null;
+        else
+            oldData = getPageData().clone();
+        footprint = -1;
+    }
+
+    /**
+     * Takes the before image of a view before its first modification, and
+     * copies a view of a read-only buffer, such as a mapping of the file,
+     * onto the heap.
+     */
+    private void beforeModify() {
+        if (buf != null && oldData == null) {
+            oldData = getPageData();
+            footprint = -1;
+        }
+        if (buf != null && buf.isReadOnly()) {
+            buf = ByteBuffer.wrap(getPageData());
+            footprint = -1;
+        }
+    }
+
+    /**
+     * Estimates the bytes of Java heap this page occupies: the page
+     * object, its decoded header and tuples with all their fields, or the
+     * array a view wraps if it is on the heap, and the before image. The
+     * bytes of a view of off-heap memory are not counted. The estimate is
+     * cached until the page changes.
+     *
+     * @see BufferPool#setMemoryBudget
+     */
+    public long getMemoryFootprint() {
+        long n = footprint;
+        if (n < 0) {
+            n = measure();
+            footprint = n;
+        }
+        return n;
+    }
+
+    private synchronized long measure() {
+        long n = objectSize(7 * REFERENCE + 4 + 8);
+        if (buf != null) {
+            n += objectSize(48);
+            if (!buf.isDirect())
+                n += arraySize(pageSize);
+        } else {
+            n += arraySize(header.length) + arraySize(REFERENCE * tuples.length);
+            for (Tuple t : tuples) {
+                if (t != null)
+                    n += tupleSize(t);
+            }
+        }
+        if (oldData != null)
+            n += arraySize(oldData.length);
+        return n;
+    }
+
+    private long tupleSize(Tuple t) {
+        int numFields = td.numFields();
+        // the tuple, its field array and its RecordId
+        long n = objectSize(3 * REFERENCE) + arraySize(REFERENCE * numFields)
+            + objectSize(REFERENCE + 4);
+        for (int i = 0; i < numFields; i++) {
+            Field f = t.getField(i);
+            if (f instanceof StringField) {
+                // field, String and its char array
+                n += objectSize(REFERENCE + 4) + objectSize(REFERENCE + 8)
+                    + arraySize(2 * ((StringField) f).getValue().length());
+            } else if (f != null) {
+                n += objectSize(8);
+            }
+        }
+        return n;
+    }
+
+    private static long objectSize(int fieldBytes) {
+        return (OBJECT_HEADER + fieldBytes + 7) & ~7L;
+    }
+
+    private static long arraySize(int elementBytes) {
+        return (OBJECT_HEADER + elementBytes + 7) & ~7L;
+    }
+
+    /** @return true if this page is a view of a buffer */
+    boolean isView() {
+        return buf != null;
+    }
+
+    /**
+     * Copies the contents of this page into frame and turns the page into
+     * a view of frame, dropping its decoded header and tuples.
+     */
+    synchronized void attach(ByteBuffer frame) {
+        byte[] data = getPageData();
+        ByteBuffer dst = frame.duplicate();
+        dst.clear();
+        dst.put(data);
+        byte[] before = oldData;
+        if (buf == null && Arrays.equals(before, data))
+            before = null;
+        this.buf = frame;
+        this.header = null;
+        this.tuples = null;
+        this.oldData = before;
+        this.footprint = -1;
+    }
+
+    /**
+     * Moves the contents of a view out of the frame it is viewing onto the
+     * Java heap, so that the frame can be reused while the page object is
+     * still referenced, e.g. until an evicted dirty page is written.
+     */
+    synchronized void detach() {
+        if (buf != null && buf.isDirect()) {
+            buf = ByteBuffer.wrap(getPageData());
+            footprint = -1;
+        }
+    }
+
+    /** @return the header byte with the specified index */
+    private byte headerByte(int index) {
+        return buf != null ? buf.get(index) : header[index];
+    }
+
+    /**
+     * Decodes the tuple in the specified slot of a view, reading the fields
+     * straight from the buffer in the format Type.parse reads.
+     */
+    private Tuple decodeTuple(int slotId) {
+        Tuple t = new Tuple(td);
+        t.setRecordId(new RecordId(pid, slotId));
+        int offset = getHeaderSize() + slotId * td.getSize();
+        for (int j = 0; j < td.numFields(); j++) {
+            Type type = td.getFieldType(j);
+            if (type == Type.INT_TYPE) {
+                t.setField(j, new IntField(buf.getInt(offset)));
+            } else {
+                int len = buf.getInt(offset);
+                if (len < 0 || len > Type.STRING_LEN)
+                    throw new NoSuchElementException("parsing error!");
+                byte[] bs = new byte[len];
+                ByteBuffer src = buf.duplicate();
+                src.clear();
+                src.position(offset + 4);
+                src.get(bs);
+                t.setField(j, new StringField(new String(bs), Type.STRING_LEN));
+            }
+            offset += type.getLen();
+        }
+        return t;
     }
 
     /**
@@ -149,7 +358,14 @@ public class HeapPage implements Page {
      * @return A byte array correspond to the bytes of this page.
      */
     public byte[] getPageData() {
-        int len = BufferPool.PAGE_SIZE;			// PageSizebyteΪλ
+        if (buf != null) {
+            byte[] data = new byte[pageSize];
+            ByteBuffer src = buf.duplicate();
+            src.clear();
+            src.get(data);
+            return data;
+        }
+        int len = pageSize;			// PageSizebyteΪλ
         ByteArrayOutputStream baos = new ByteArrayOutputStream(len);
         DataOutputStream dos = new DataOutputStream(baos);	// һֽbaos
 
@@ -191,7 +407,7 @@ public class HeapPage implements Page {
         }
 
         // padding	λ
-        int zerolen = BufferPool.PAGE_SIZE - (header.length + td.getSize() * tuples.length); //- numSlots * td.getSize();
+        int zerolen = pageSize - (header.length + td.getSize() * tuples.length); //- numSlots * td.getSize();
         byte[] zeroes = new byte[zerolen];			// λ
         try {
             dos.write(zeroes, 0, zerolen);
@@ -218,8 +434,15 @@ public class HeapPage implements Page {
      * @return The returned ByteArray.
      */
     public static byte[] createEmptyPageData() {
-        int len = BufferPool.PAGE_SIZE;
-        return new byte[len]; //all 0
+        return createEmptyPageData(BufferPool.PAGE_SIZE);
+    }
+
+    /**
+     * @return the bytes of an empty HeapPage of a file with pages of
+     *   pageSize bytes
+     */
+    public static byte[] createEmptyPageData(int pageSize) {
+        return new byte[pageSize]; //all 0
     }
 
     /**
@@ -230,15 +453,24 @@ public class HeapPage implements Page {
      * @param t The tuple to delete
      */
     public void deleteTuple(Tuple t) throws DbException {
-        for(int i=0;i<numSlots;i++){
-        	if(tuples[i].equals(t)&&isSlotUsed(i)){
-        		markSlotUsed(i,false);
-        		numSlots-=1;
-        		tuples[i]=null;
-        		return ;
-        	}
+        RecordId rid = t.getRecordId();
+        if (rid == null || !pid.equals(rid.getPageId()) || rid.tupleno() < 0
+                || rid.tupleno() >= numSlots || !isSlotUsed(rid.tupleno()))
+            throw new DbException("Tuple Not Found.");
+        int slot = rid.tupleno();
+        if (buf != null) {
+            beforeModify();
+            markSlotUsed(slot, false);
+            int offset = getHeaderSize() + slot * td.getSize();
+            for (int j = 0; j < td.getSize(); j++)
+                buf.put(offset + j, (byte) 0);
+        } else {
+            markSlotUsed(slot, false);
+            tuples[slot] = null;
         }
-        throw new DbException("Tuple Not Found.");
+        t.setRecordId(null);
+        footprint = -1;
+        freeSpaceChanged();
     }
 
     /**
@@ -249,8 +481,43 @@ public class HeapPage implements Page {
      * @param t The tuple to add.
      */
     public void insertTuple(Tuple t) throws DbException {
-        // some code goes here
-        // not necessary for lab1
+        if (!td.equals(t.getTupleDesc()))
+            throw new DbException("TupleDesc mismatch.");
+        int slot = 0;
+        while (slot < numSlots && isSlotUsed(slot))
+            slot++;
+        if (slot == numSlots)
+            throw new DbException("Page is full.");
+        if (buf != null) {
+            beforeModify();
+            ByteArrayOutputStream baos = new ByteArrayOutputStream(td.getSize());
+            DataOutputStream dos = new DataOutputStream(baos);
+            try {
+                for (int j = 0; j < td.numFields(); j++)
+                    t.getField(j).serialize(dos);
+            } catch (IOException e) {
+                // writing to an array does not fail
+                throw new RuntimeException(e);
+            }
+            ByteBuffer dst = buf.duplicate();
+            dst.clear();
+            dst.position(getHeaderSize() + slot * td.getSize());
+            dst.put(baos.toByteArray());
+            markSlotUsed(slot, true);
+        } else {
+            markSlotUsed(slot, true);
+            tuples[slot] = t;
+        }
+        t.setRecordId(new RecordId(pid, slot));
+        footprint = -1;
+        freeSpaceChanged();
+    }
+
+    /** Tells the free-space map of the table how many slots are empty now. */
+    private void freeSpaceChanged() {
+        DbFile f = Database.getCatalog().getDbFile(pid.getTableId());
+        if (f instanceof HeapFile)
+            ((HeapFile) f).freeSpaceChanged(pid.pageNumber(), getNumEmptySlots());
     }
 
     /**
@@ -258,17 +525,15 @@ public class HeapPage implements Page {
      * that did the dirtying
      */
     public void markDirty(boolean dirty, TransactionId tid) {
-        // some code goes here
-	// not necessary for lab1
+        this.dirtier = dirty ? tid : null;
+        this.footprint = -1;
     }
 
     /**
      * Returns the tid of the transaction that last dirtied this page, or null if the page is not dirty
      */
     public TransactionId isDirty() {
-        // some code goes here
-	// Not necessary for lab1
-        return null;      
+        return dirtier;
     }
 
     /**
@@ -294,7 +559,7 @@ public class HeapPage implements Page {
     	// Чλ(Ҷ)ʾslot
         int headerIndex=i / 8;
         int bitIndex=i % 8;
-        return (header[headerIndex]>>bitIndex&1)!=0;	// x>>k&1ȡxĴkλ(k0ʼ)
+        return (headerByte(headerIndex)>>bitIndex&1)!=0;	// x>>k&1ȡxĴkλ(k0ʼ)
     }
 
     /**
@@ -303,11 +568,16 @@ public class HeapPage implements Page {
     private void markSlotUsed(int i, boolean value) {
     	int headerIndex=i / 8;
         int bitIndex=i % 8;
+        if(buf!=null){
+        	byte b=buf.get(headerIndex);
+        	buf.put(headerIndex,(byte)(value?b|(1<<bitIndex):b&~(1<<bitIndex)));
+        	return;
+        }
         if(value){	//Ϊ1
         	header[headerIndex]|=(1<<bitIndex);
         }
         else{
-        	header[headerIndex]&=((1<<bitIndex)^1);	// ^1д~
+        	header[headerIndex]&=~(1<<bitIndex);
         }
     }
 
@@ -316,6 +586,33 @@ public class HeapPage implements Page {
      * (note that this iterator shouldn't return tuples in empty slots!)
      */
     public Iterator<Tuple> iterator() {
+    	   if (buf != null) {
+    	       return new Iterator<Tuple>() {
+    	           private int next = advance(0);
+
+    	           private int advance(int slot) {
+    	               while (slot < numSlots && !isSlotUsed(slot))
+    	                   slot++;
+    	               return slot;
+    	           }
+
+    	           public boolean hasNext() {
+    	               return next < numSlots;
+    	           }
+
+    	           public Tuple next() {
+    	               if (!hasNext())
+    	                   throw new NoSuchElementException();
+    	               Tuple t = decodeTuple(next);
+    	               next = advance(next + 1);
+    	               return t;
+    	           }
+
+    	           public void remove() {
+    	               throw new UnsupportedOperationException();
+    	           }
+    	       };
+    	   }
     	   List<Tuple> validTuples = new ArrayList<Tuple>();
            for (int i = 0; i < numSlots; ++i) {
                if (isSlotUsed(i)) validTuples.add(tuples[i]);
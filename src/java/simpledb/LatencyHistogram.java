@@ -0,0 +1,88 @@
+package simpledb;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * LatencyHistogram counts durations in power-of-two buckets of
+ * microseconds: bucket 0 holds durations below 2us, bucket i durations in
+ * [2^i, 2^(i+1)) us, and the last bucket everything longer. Recording is a
+ * couple of atomic increments, so it can be done on every page read.
+ */
+public class LatencyHistogram {
+
+    /** Number of buckets; the last one starts at about 17 minutes. */
+    public static final int NUM_BUCKETS = 31;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(NUM_BUCKETS);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong totalNanos = new AtomicLong();
+
+    /** Records a duration given in nanoseconds. */
+    public void record(long nanos) {
+        buckets.incrementAndGet(bucketOf(nanos / 1000));
+        count.incrementAndGet();
+        totalNanos.addAndGet(nanos);
+    }
+
+    static int bucketOf(long micros) {
+        if (micros < 2)
+            return 0;
+        int b = 63 - Long.numberOfLeadingZeros(micros);
+        return Math.min(b, NUM_BUCKETS - 1);
+    }
+
+    /** @return the number of recorded durations */
+    public long getCount() {
+        return count.get();
+    }
+
+    /** @return the number of durations in the specified bucket */
+    public long getBucketCount(int bucket) {
+        return buckets.get(bucket);
+    }
+
+    /** @return the smallest duration in microseconds counted by a bucket */
+    public static long getBucketStart(int bucket) {
+        return bucket == 0 ? 0 : 1L << bucket;
+    }
+
+    /** @return the mean duration in microseconds, 0 if nothing was recorded */
+    public double getMeanMicros() {
+        long n = count.get();
+        return n == 0 ? 0.0 : totalNanos.get() / 1000.0 / n;
+    }
+
+    /**
+     * @param fraction a fraction between 0 and 1, e.g. 0.99
+     * @return an upper bound in microseconds of the specified percentile,
+     *   the end of the bucket it falls into; 0 if nothing was recorded
+     */
+    public long getPercentileMicros(double fraction) {
+        long n = count.get();
+        if (n == 0)
+            return 0;
+        long rank = (long) Math.ceil(fraction * n);
+        long seen = 0;
+        for (int i = 0; i < NUM_BUCKETS; i++) {
+            seen += buckets.get(i);
+            if (seen >= rank)
+                return 1L << (i + 1);
+        }
+        return 1L << NUM_BUCKETS;
+    }
+
+    /** Adds the counts of another histogram to this one. */
+    public void add(LatencyHistogram other) {
+        for (int i = 0; i < NUM_BUCKETS; i++)
+            buckets.addAndGet(i, other.buckets.get(i));
+        count.addAndGet(other.count.get());
+        totalNanos.addAndGet(other.totalNanos.get());
+    }
+
+    public String toString() {
+        return "n=" + getCount() + " mean=" + String.format("%.1f", getMeanMicros())
+            + "us p50<" + getPercentileMicros(0.5) + "us p99<"
+            + getPercentileMicros(0.99) + "us";
+    }
+}
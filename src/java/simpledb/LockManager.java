@@ -0,0 +1,439 @@
+package simpledb;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * LockManager grants page locks to transactions for strict two-phase
+ * locking. A page can be locked in shared mode by any number of
+ * transactions or in exclusive mode by one; a transaction holding the only
+ * shared lock on a page can upgrade it to exclusive. Locks are released
+ * all at once when the transaction completes.
+ * <p>
+ * Requests that cannot be granted wait in a FIFO queue per page. A new
+ * request never overtakes a queued one, even if it is compatible with the
+ * current holders, so that a stream of readers cannot starve a writer.
+ * Upgrades go to the front of the queue, since their transaction already
+ * holds the page. Waiting threads are parked and unparked individually
+ * when their request is granted.
+ * <p>
+ * The lock table is split into stripes by PageId hash, each with its own
+ * monitor, so that transactions locking different pages rarely contend.
+ * No stripe monitor is held while a thread is parked.
+ * <p>
+ * Deadlocks are detected on a wait-for graph of transactions. A thread
+ * whose request has not been granted within the detection interval
+ * builds the graph from the queues of all stripes and searches it for a
+ * cycle through its own transaction; the interval doubles for every
+ * search that finds none, up to {@link #MAX_BACKOFF} times. Of the
+ * transactions in a cycle the one holding the fewest locks is the victim,
+ * the youngest on a tie, as it has done the least work that is lost. Its
+ * waiting requests are withdrawn and fail with a
+ * TransactionAbortedException; the caller must then abort it.
+ *
+ * @see BufferPool#getPage
+ */
+public class LockManager {
+
+    /** Default number of stripes of the lock table. */
+    public static final int DEFAULT_STRIPES = 64;
+
+    /** Default time a request waits before looking for a deadlock, in ms. */
+    public static final long DEFAULT_DETECTION_INTERVAL = 10;
+
+    /** Upper bound on the growth of a request's detection interval. */
+    public static final int MAX_BACKOFF = 16;
+
+    /** A request for a lock, granted or waiting. */
+    private static class Request {
+        final TransactionId tid;
+        final boolean exclusive;
+        final Thread thread;
+        volatile boolean granted = false;
+        /** Set when the request is withdrawn to break a deadlock. */
+        volatile boolean aborted = false;
+
+        Request(TransactionId tid, boolean exclusive) {
+            this.tid = tid;
+            this.exclusive = exclusive;
+            this.thread = Thread.currentThread();
+        }
+    }
+
+    /** The holders and waiters of one page. */
+    private static class LockEntry {
+        /** Holding transactions, mapped to true for exclusive mode. */
+        final HashMap<TransactionId,Boolean> holders =
+            new HashMap<TransactionId,Boolean>();
+        final LinkedList<Request> queue = new LinkedList<Request>();
+
+        boolean isCompatible(Request r) {
+            if (r.exclusive) {
+                return holders.isEmpty()
+                    || (holders.size() == 1 && holders.containsKey(r.tid));
+            }
+            return !holders.containsValue(Boolean.TRUE);
+        }
+
+        boolean isUnused() {
+            return holders.isEmpty() && queue.isEmpty();
+        }
+    }
+
+    /** A part of the lock table, latched by its own monitor. */
+    private static class Stripe {
+        final HashMap<PageId,LockEntry> entries = new HashMap<PageId,LockEntry>();
+    }
+
+    private final Stripe[] stripes;
+
+    /** The pages every transaction holds a lock on. */
+    private final ConcurrentHashMap<TransactionId,Set<PageId>> lockedPages =
+        new ConcurrentHashMap<TransactionId,Set<PageId>>();
+
+    private final AtomicLong waits = new AtomicLong();
+    private final AtomicLong deadlocks = new AtomicLong();
+
+    private volatile long detectionNanos = DEFAULT_DETECTION_INTERVAL * 1000000L;
+
+    public LockManager() {
+        this(DEFAULT_STRIPES);
+    }
+
+    /**
+     * @param numStripes the number of independently latched parts of the
+     *   lock table
+     */
+    public LockManager(int numStripes) {
+        stripes = new Stripe[Math.max(1, numStripes)];
+        for (int i = 0; i < stripes.length; i++)
+            stripes[i] = new Stripe();
+    }
+
+    private Stripe stripeFor(PageId pid) {
+        return stripes[(pid.hashCode() & 0x7fffffff) % stripes.length];
+    }
+
+    /**
+     * Locks a page for a transaction, waiting until the lock can be
+     * granted. Returns at once if the transaction holds a lock on the page
+     * that is at least as strong.
+     *
+     * @param exclusive true for an exclusive lock, false for a shared one
+     * @throws TransactionAbortedException if the transaction was chosen as
+     *   the victim of a deadlock, or the thread was interrupted while
+     *   waiting; the transaction keeps the locks it holds
+     */
+    public void acquire(TransactionId tid, PageId pid, boolean exclusive)
+        throws TransactionAbortedException {
+        Stripe stripe = stripeFor(pid);
+        Request req = new Request(tid, exclusive);
+        synchronized (stripe) {
+            LockEntry e = stripe.entries.get(pid);
+            if (e == null) {
+                e = new LockEntry();
+                stripe.entries.put(pid, e);
+            }
+            Boolean held = e.holders.get(tid);
+            if (held != null && (held || !exclusive))
+                return;
+            boolean upgrade = held != null;
+            if ((upgrade || e.queue.isEmpty()) && e.isCompatible(req)) {
+                grant(e, req, pid);
+                return;
+            }
+            if (upgrade)
+                e.queue.addFirst(req);
+            else
+                e.queue.addLast(req);
+        }
+        waits.incrementAndGet();
+        long interval = detectionNanos;
+        long deadline = System.nanoTime() + interval;
+        while (!req.granted) {
+            if (req.aborted)
+                throw new TransactionAbortedException();
+            long left = deadline - System.nanoTime();
+            if (left > 0) {
+                LockSupport.parkNanos(this, left);
+            } else {
+                if (!req.granted && breakDeadlock(tid) == null)
+                    interval = Math.min(2 * interval, MAX_BACKOFF * detectionNanos);
+                deadline = System.nanoTime() + interval;
+            }
+            if (Thread.interrupted()) {
+                synchronized (stripe) {
+                    if (!req.granted && !req.aborted) {
+                        LockEntry e = stripe.entries.get(pid);
+                        e.queue.remove(req);
+                        grantWaiters(stripe, e, pid);
+                        Thread.currentThread().interrupt();
+                        throw new TransactionAbortedException();
+                    }
+                }
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Locks a page for a transaction if that is possible without waiting.
+     *
+     * @param exclusive true for an exclusive lock, false for a shared one
+     * @return true if the transaction holds the lock now
+     */
+    public boolean tryAcquire(TransactionId tid, PageId pid, boolean exclusive) {
+        Stripe stripe = stripeFor(pid);
+        Request req = new Request(tid, exclusive);
+        synchronized (stripe) {
+            LockEntry e = stripe.entries.get(pid);
+            if (e == null) {
+                e = new LockEntry();
+                stripe.entries.put(pid, e);
+            }
+            Boolean held = e.holders.get(tid);
+            if (held != null && (held || !exclusive))
+                return true;
+            if ((held != null || e.queue.isEmpty()) && e.isCompatible(req)) {
+                grant(e, req, pid);
+                return true;
+            }
+            if (e.isUnused())
+                stripe.entries.remove(pid);
+            return false;
+        }
+    }
+
+    /** Makes req a holder of the page; called under the stripe monitor. */
+    private void grant(LockEntry e, Request req, PageId pid) {
+        e.holders.put(req.tid, req.exclusive);
+        Set<PageId> pages = lockedPages.get(req.tid);
+        if (pages == null) {
+            Set<PageId> created =
+                Collections.newSetFromMap(new ConcurrentHashMap<PageId,Boolean>());
+            pages = lockedPages.putIfAbsent(req.tid, created);
+            if (pages == null)
+                pages = created;
+        }
+        pages.add(pid);
+    }
+
+    /**
+     * Grants queued requests in order until one is incompatible with the
+     * holders, then drops the entry if nobody uses it anymore; called
+     * under the stripe monitor.
+     */
+    private void grantWaiters(Stripe stripe, LockEntry e, PageId pid) {
+        while (!e.queue.isEmpty() && e.isCompatible(e.queue.getFirst())) {
+            Request r = e.queue.removeFirst();
+            grant(e, r, pid);
+            r.granted = true;
+            LockSupport.unpark(r.thread);
+        }
+        if (e.isUnused())
+            stripe.entries.remove(pid);
+    }
+
+    /**
+     * Releases the lock of a transaction on a page, if it holds one, and
+     * grants it to waiting transactions.
+     */
+    public void release(TransactionId tid, PageId pid) {
+        Stripe stripe = stripeFor(pid);
+        synchronized (stripe) {
+            LockEntry e = stripe.entries.get(pid);
+            if (e == null || e.holders.remove(tid) == null)
+                return;
+            Set<PageId> pages = lockedPages.get(tid);
+            if (pages != null)
+                pages.remove(pid);
+            grantWaiters(stripe, e, pid);
+        }
+    }
+
+    /** Releases all locks of a transaction. */
+    public void releaseAll(TransactionId tid) {
+        Set<PageId> pages = lockedPages.remove(tid);
+        if (pages == null)
+            return;
+        for (PageId pid : pages) {
+            Stripe stripe = stripeFor(pid);
+            synchronized (stripe) {
+                LockEntry e = stripe.entries.get(pid);
+                if (e != null && e.holders.remove(tid) != null)
+                    grantWaiters(stripe, e, pid);
+            }
+        }
+    }
+
+    /** @return true if the transaction holds a lock on the page */
+    public boolean holdsLock(TransactionId tid, PageId pid) {
+        Stripe stripe = stripeFor(pid);
+        synchronized (stripe) {
+            LockEntry e = stripe.entries.get(pid);
+            return e != null && e.holders.containsKey(tid);
+        }
+    }
+
+    /** @return true if the transaction holds an exclusive lock on the page */
+    public boolean holdsExclusive(TransactionId tid, PageId pid) {
+        Stripe stripe = stripeFor(pid);
+        synchronized (stripe) {
+            LockEntry e = stripe.entries.get(pid);
+            return e != null && Boolean.TRUE.equals(e.holders.get(tid));
+        }
+    }
+
+    /** @return a snapshot of the pages the transaction holds locks on */
+    public Set<PageId> getLockedPages(TransactionId tid) {
+        Set<PageId> pages = lockedPages.get(tid);
+        return pages == null ? new HashSet<PageId>() : new HashSet<PageId>(pages);
+    }
+
+    /**
+     * @return a snapshot of the pages the transaction holds exclusive locks
+     *   on, the only pages it may have dirtied
+     */
+    public List<PageId> getExclusivePages(TransactionId tid) {
+        ArrayList<PageId> exclusive = new ArrayList<PageId>();
+        Set<PageId> pages = lockedPages.get(tid);
+        if (pages != null) {
+            for (PageId pid : pages) {
+                if (holdsExclusive(tid, pid))
+                    exclusive.add(pid);
+            }
+        }
+        return exclusive;
+    }
+
+    /** @return the number of requests that had to wait */
+    public long getWaitCount() {
+        return waits.get();
+    }
+
+    /** @return the number of deadlocks broken by aborting a victim */
+    public long getDeadlockCount() {
+        return deadlocks.get();
+    }
+
+    /** Sets the time a request waits before looking for a deadlock. */
+    public void setDetectionInterval(long ms) {
+        if (ms <= 0)
+            throw new IllegalArgumentException("invalid detection interval " + ms);
+        detectionNanos = ms * 1000000L;
+    }
+
+    /**
+     * Looks for a cycle in the wait-for graph through tid and aborts the
+     * cheapest transaction on it. The monitors of all stripes are held
+     * while the graph is built and the victim withdrawn, in stripe order,
+     * so the graph is consistent; a thread only ever holds one of them
+     * otherwise.
+     *
+     * @return the victim, or null if tid is not deadlocked
+     */
+    TransactionId breakDeadlock(TransactionId tid) {
+        return breakDeadlock(tid, 0);
+    }
+
+    private TransactionId breakDeadlock(TransactionId tid, int stripe) {
+        if (stripe < stripes.length) {
+            synchronized (stripes[stripe]) {
+                return breakDeadlock(tid, stripe + 1);
+            }
+        }
+        HashMap<TransactionId,Set<TransactionId>> waitsFor =
+            new HashMap<TransactionId,Set<TransactionId>>();
+        for (Stripe st : stripes) {
+            for (LockEntry e : st.entries.values())
+                addEdges(e, waitsFor);
+        }
+        List<TransactionId> cycle = new ArrayList<TransactionId>();
+        if (!findCycle(tid, tid, waitsFor, new HashSet<TransactionId>(), cycle))
+            return null;
+        TransactionId victim = null;
+        int victimCost = 0;
+        for (TransactionId t : cycle) {
+            int cost = getLockedPages(t).size();
+            if (victim == null || cost < victimCost
+                    || (cost == victimCost && t.getId() > victim.getId())) {
+                victim = t;
+                victimCost = cost;
+            }
+        }
+        for (Stripe st : stripes) {
+            Iterator<Map.Entry<PageId,LockEntry>> it = st.entries.entrySet().iterator();
+            ArrayList<PageId> changed = new ArrayList<PageId>();
+            while (it.hasNext()) {
+                Map.Entry<PageId,LockEntry> en = it.next();
+                for (Iterator<Request> q = en.getValue().queue.iterator(); q.hasNext();) {
+                    Request r = q.next();
+                    if (r.tid.equals(victim)) {
+                        q.remove();
+                        r.aborted = true;
+                        LockSupport.unpark(r.thread);
+                        changed.add(en.getKey());
+                    }
+                }
+            }
+            for (PageId pid : changed) {
+                LockEntry e = st.entries.get(pid);
+                if (e != null)
+                    grantWaiters(st, e, pid);
+            }
+        }
+        deadlocks.incrementAndGet();
+        return victim;
+    }
+
+    /**
+     * Adds an edge from every queued request of the entry to each holder
+     * and earlier request it has to wait for.
+     */
+    private static void addEdges(LockEntry e,
+            HashMap<TransactionId,Set<TransactionId>> waitsFor) {
+        int i = 0;
+        for (Request r : e.queue) {
+            Set<TransactionId> out = waitsFor.get(r.tid);
+            if (out == null) {
+                out = new HashSet<TransactionId>();
+                waitsFor.put(r.tid, out);
+            }
+            for (Map.Entry<TransactionId,Boolean> h : e.holders.entrySet()) {
+                if (!h.getKey().equals(r.tid) && (r.exclusive || h.getValue()))
+                    out.add(h.getKey());
+            }
+            int j = 0;
+            for (Request ahead : e.queue) {
+                if (j++ == i)
+                    break;
+                if (!ahead.tid.equals(r.tid) && (r.exclusive || ahead.exclusive))
+                    out.add(ahead.tid);
+            }
+            i++;
+        }
+    }
+
+    /**
+     * Depth-first search for a path from t back to start.
+     *
+     * @param path receives the transactions of the cycle found
+     * @return true if a cycle was found
+     */
+    private static boolean findCycle(TransactionId start, TransactionId t,
+            HashMap<TransactionId,Set<TransactionId>> waitsFor,
+            Set<TransactionId> visited, List<TransactionId> path) {
+        Set<TransactionId> out = waitsFor.get(t);
+        if (out == null || !visited.add(t))
+            return false;
+        path.add(t);
+        for (TransactionId next : out) {
+            if (next.equals(start) || findCycle(start, next, waitsFor, visited, path))
+                return true;
+        }
+        path.remove(path.size() - 1);
+        return false;
+    }
+}
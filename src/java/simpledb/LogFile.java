@@ -69,6 +69,20 @@ for each active transaction.
 
 </ul>
 
+<p> <u> Group commit: </u>
+<p>
+
+Committing transactions do not force the log one by one.
+{@link #logCommit} appends the commit record and then calls
+{@link #forceUpTo}: the first thread to get there becomes the leader
+of a group, waits up to a configurable time for further commits to
+join, and forces the log once for all of them; the others wait for
+its force to complete. Further commits arriving during the force form
+the next group. The group lock is never held while acquiring the
+monitor of the LogFile, and the leader forces without holding the
+LogFile monitor, so appends continue during the force. The number of
+commits per force is counted in {@link #getGroupSizeCount}.
+
 */
 
 public class LogFile {
@@ -93,6 +107,28 @@ public class LogFile {
 
     HashMap<Long,Long> tidToFirstLogRecord = new HashMap<Long,Long>();
 
+    /** Largest group size counted separately; larger groups are counted
+        together with it. */
+    public static final int MAX_GROUP_SIZE_COUNTED = 64;
+
+    /** Number of records appended so far; identifies the log position a
+        thread needs on disk independently of truncation. */
+    long appendSequence = 0;
+
+    /** Commit records appended since the last force started. */
+    volatile int pendingCommits = 0;
+
+    /** Guards the group commit state below. */
+    private final Object groupLock = new Object();
+    /** All records up to this sequence number are on disk. */
+    private long forcedSequence = 0;
+    /** True while a leader forces the log for its group. */
+    private boolean forcing = false;
+    private long groupWaitNanos = 0;
+    private int maxGroupSize = MAX_GROUP_SIZE_COUNTED;
+    /** groupSizes[n] is the number of forces that covered n commits. */
+    private final long[] groupSizes = new long[MAX_GROUP_SIZE_COUNTED + 1];
+
     /** Constructor.
         Initialize and back the log file with the specified file.
         We're not sure yet whether the caller is creating a brand new DB,
@@ -125,6 +161,7 @@ public class LogFile {
     // the log.
     void preAppend() throws IOException {
         totalRecords++;
+        appendSequence++;
         if(recoveryUndecided){
             recoveryUndecided = false;
             raf.seek(0);
@@ -169,21 +206,175 @@ public class LogFile {
     }
 
     /** Write a commit record to disk for the specified tid,
-        and force the log to disk.
+        and force the log to disk together with the commit records of
+        other transactions committing at the same time.
 
         @param tid The committing transaction.
     */
-    public synchronized void logCommit(TransactionId tid) throws IOException {
-        preAppend();
-        Debug.log("COMMIT " + tid.getId());
-        //should we verify that this is a live transaction?
+    public void logCommit(TransactionId tid) throws IOException {
+        long seq;
+        synchronized (this) {
+            preAppend();
+            Debug.log("COMMIT " + tid.getId());
+            //should we verify that this is a live transaction?
+
+            raf.writeInt(COMMIT_RECORD);
+            raf.writeLong(tid.getId());
+            raf.writeLong(currentOffset);
+            currentOffset = raf.getFilePointer();
+            tidToFirstLogRecord.remove(tid.getId());
+            pendingCommits++;
+            seq = appendSequence;
+        }
+        forceUpTo(seq);
+    }
 
-        raf.writeInt(COMMIT_RECORD);
-        raf.writeLong(tid.getId());
-        raf.writeLong(currentOffset);
-        currentOffset = raf.getFilePointer();
-        force();
-        tidToFirstLogRecord.remove(tid.getId());
+    /** @return the sequence number of the last record appended, to be
+        passed to {@link #forceUpTo} */
+    public synchronized long getAppendSequence() {
+        return appendSequence;
+    }
+
+    /**
+     * Configures group commit.
+     *
+     * @param maxWaitMicros how long the leader of a group waits for more
+     *   commits before forcing the log; 0 to force at once, which still
+     *   groups the commits that arrive while a force is in progress
+     * @param maxGroupSize the leader stops waiting once this many commits
+     *   are pending
+     */
+    public void setGroupCommit(long maxWaitMicros, int maxGroupSize) {
+        if (maxWaitMicros < 0 || maxGroupSize < 1)
+            throw new IllegalArgumentException("invalid group commit settings "
+                    + maxWaitMicros + ", " + maxGroupSize);
+        synchronized (groupLock) {
+            this.groupWaitNanos = maxWaitMicros * 1000;
+            this.maxGroupSize = maxGroupSize;
+        }
+    }
+
+    /**
+     * Returns once all records up to the specified sequence number are on
+     * disk, forcing the log as the leader of a group if no other thread is
+     * forcing it right now.
+     *
+     * @param seq a sequence number returned by {@link #getAppendSequence}
+     */
+    public void forceUpTo(long seq) throws IOException {
+        synchronized (groupLock) {
+            groupLock.notifyAll(); // a waiting leader may have a full group now
+            while (forcedSequence < seq && forcing) {
+                try {
+                    groupLock.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("interrupted waiting for log force");
+                }
+            }
+            if (forcedSequence >= seq)
+                return;
+            forcing = true;
+            long deadline = System.nanoTime() + groupWaitNanos;
+            long left = groupWaitNanos;
+            while (left > 0 && pendingCommits < maxGroupSize) {
+                try {
+                    groupLock.wait(left / 1000000, (int) (left % 1000000));
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+                left = deadline - System.nanoTime();
+            }
+        }
+        long target = 0;
+        try {
+            RandomAccessFile r;
+            int group;
+            synchronized (this) {
+                target = appendSequence;
+                group = pendingCommits;
+                pendingCommits = 0;
+                r = raf;
+            }
+            try {
+                r.getChannel().force(true);
+            } catch (java.nio.channels.ClosedChannelException e) {
+                // the log was truncated into a new file meanwhile
+                force();
+            }
+            synchronized (groupLock) {
+                countGroup(group);
+            }
+        } finally {
+            synchronized (groupLock) {
+                forcing = false;
+                if (target > forcedSequence)
+                    forcedSequence = target;
+                groupLock.notifyAll();
+            }
+        }
+    }
+
+    /** Counts a force covering the specified number of commits. */
+    private void countGroup(int commits) {
+        if (commits > 0)
+            groupSizes[Math.min(commits, MAX_GROUP_SIZE_COUNTED)]++;
+    }
+
+    /**
+     * @return the number of forces that covered the specified number of
+     *   commits; for MAX_GROUP_SIZE_COUNTED, those that covered at least
+     *   as many
+     */
+    public long getGroupSizeCount(int commits) {
+        synchronized (groupLock) {
+            return groupSizes[Math.min(commits, MAX_GROUP_SIZE_COUNTED)];
+        }
+    }
+
+    /** @return the number of log forces that made commits durable */
+    public long getGroupCount() {
+        synchronized (groupLock) {
+            long n = 0;
+            for (long c : groupSizes)
+                n += c;
+            return n;
+        }
+    }
+
+    /** @return the mean number of commits per group, 0 if none */
+    public double getMeanGroupSize() {
+        synchronized (groupLock) {
+            long groups = 0, commits = 0;
+            for (int i = 1; i < groupSizes.length; i++) {
+                groups += groupSizes[i];
+                commits += i * groupSizes[i];
+            }
+            return groups == 0 ? 0.0 : (double) commits / groups;
+        }
+    }
+
+    /** Forgets the group sizes counted so far. */
+    public void resetGroupStats() {
+        synchronized (groupLock) {
+            Arrays.fill(groupSizes, 0);
+        }
+    }
+
+    /** @return the group size distribution, one line per size seen */
+    public String getGroupSizeReport() {
+        StringBuilder sb = new StringBuilder();
+        synchronized (groupLock) {
+            sb.append(String.format("group commit: %d forces, %.2f commits per force%n",
+                    getGroupCount(), getMeanGroupSize()));
+            for (int i = 1; i < groupSizes.length; i++) {
+                if (groupSizes[i] > 0)
+                    sb.append(String.format("  %s%3d: %d%n",
+                            i == MAX_GROUP_SIZE_COUNTED ? ">=" : "  ", i, groupSizes[i]));
+            }
+        }
+        return sb.toString();
     }
 
     /** Write an UPDATE record to disk for the specified tid and page
@@ -198,6 +389,10 @@ public class LogFile {
                                        Page after)
         throws IOException  {
         Debug.log("WRITE, offset = " + raf.getFilePointer());
+        // the first update of a transaction begins it, so that rollback
+        // and log truncation know where its records start
+        if (tidToFirstLogRecord.get(tid.getId()) == null)
+            logXactionBegin(tid);
         preAppend();
         /* update record conists of
 
@@ -258,6 +453,15 @@ public class LogFile {
             Class<?> pageClass = Class.forName(pageClassName);
 
             Constructor<?>[] idConsts = idClass.getDeclaredConstructors();
+            Constructor<?> pageConst = null;
+            for (Constructor<?> c : pageClass.getDeclaredConstructors()) {
+                // pages may have other constructors, e.g. from a ByteBuffer
+                Class<?>[] params = c.getParameterTypes();
+                if (params.length == 2 && params[1] == byte[].class)
+                    pageConst = c;
+            }
+            if (pageConst == null)
+                throw new IOException("no constructor from page bytes in " + pageClassName);
             int numIdArgs = raf.readInt();
             Object idArgs[] = new Object[numIdArgs];
             for (int i = 0; i<numIdArgs;i++) {
@@ -265,17 +469,16 @@ public class LogFile {
             }
             pid = (PageId)idConsts[0].newInstance(idArgs);
 
-            Constructor<?>[] pageConsts = pageClass.getDeclaredConstructors();
             int pageSize = raf.readInt();
 
             byte[] pageData = new byte[pageSize];
-            raf.read(pageData); //read before image
+            raf.readFully(pageData); //read before image
 
             Object[] pageArgs = new Object[2];
             pageArgs[0] = pid;
             pageArgs[1] = pageData;
 
-            newPage = (Page)pageConsts[0].newInstance(pageArgs);
+            newPage = (Page)pageConst.newInstance(pageArgs);
 
             //            Debug.log("READ PAGE OF TYPE " + pageClassName + ", table = " + newPage.getId().getTableId() + ", page = " + newPage.getId().pageno());
         } catch (ClassNotFoundException e){
@@ -466,11 +669,41 @@ public class LogFile {
         synchronized (Database.getBufferPool()) {
             synchronized(this) {
                 preAppend();
-                // some code goes here
+                Long first = tidToFirstLogRecord.get(tid.getId());
+                if (first == null)
+                    return; // nothing of tid was written
+                // the first before image of a page is its state before tid
+                LinkedHashMap<PageId,Page> before = new LinkedHashMap<PageId,Page>();
+                raf.seek(first);
+                try {
+                    while (raf.getFilePointer() < currentOffset) {
+                        int type = raf.readInt();
+                        long record_tid = raf.readLong();
+                        if (type == UPDATE_RECORD) {
+                            Page b = readPageData(raf);
+                            readPageData(raf);
+                            if (record_tid == tid.getId() && !before.containsKey(b.getId()))
+                                before.put(b.getId(), b);
+                        } else if (type == CHECKPOINT_RECORD) {
+                            skipCheckpoint(raf);
+                        }
+                        raf.readLong();
+                    }
+                } finally {
+                    raf.seek(currentOffset);
+                }
+                for (Page p : before.values())
+                    installPage(p);
             }
         }
     }
 
+    /** Reads the list of active transactions of a CHECKPOINT record. */
+    private static void skipCheckpoint(RandomAccessFile raf) throws IOException {
+        int numXactions = raf.readInt();
+        raf.skipBytes(numXactions * 2 * LONG_SIZE);
+    }
+
     /** Shutdown the logging system, writing out whatever state
         is necessary so that start up can happen quickly (without
         extensive recovery.)
@@ -488,16 +721,110 @@ public class LogFile {
     /** Recover the database system by ensuring that the updates of
         committed transactions are installed and that the
         updates of uncommitted transactions are not installed.
+        <p>
+        The after images of committed transactions are written in log
+        order, then the before images of the transactions that neither
+        committed nor aborted are written in reverse log order, and an
+        ABORT record is appended for each of them. Aborted transactions
+        were rolled back before their ABORT record was written. A record
+        cut short at the end of the log is dropped: its page was not
+        written yet, or its commit was not acknowledged.
     */
     public void recover() throws IOException {
         synchronized (Database.getBufferPool()) {
             synchronized (this) {
                 recoveryUndecided = false;
-                // some code goes here
+                if (raf.length() < LONG_SIZE) {
+                    raf.setLength(0);
+                    raf.writeLong(NO_CHECKPOINT_ID);
+                }
+                HashSet<Long> committed = new HashSet<Long>();
+                HashSet<Long> finished = new HashSet<Long>();
+                LinkedHashSet<Long> started = new LinkedHashSet<Long>();
+                ArrayList<Long> updates = new ArrayList<Long>();
+                long end = LONG_SIZE;
+                raf.seek(LONG_SIZE);
+                try {
+                    while (true) {
+                        long start = raf.getFilePointer();
+                        int type = raf.readInt();
+                        long record_tid = raf.readLong();
+                        switch (type) {
+                        case UPDATE_RECORD:
+                            readPageData(raf);
+                            readPageData(raf);
+                            updates.add(start);
+                            started.add(record_tid);
+                            break;
+                        case BEGIN_RECORD:
+                            started.add(record_tid);
+                            break;
+                        case COMMIT_RECORD:
+                            committed.add(record_tid);
+                            finished.add(record_tid);
+                            break;
+                        case ABORT_RECORD:
+                            finished.add(record_tid);
+                            break;
+                        case CHECKPOINT_RECORD:
+                            skipCheckpoint(raf);
+                            break;
+                        default:
+                            throw new IOException("bad log record type " + type + " at offset " + start);
+                        }
+                        raf.readLong();
+                        end = raf.getFilePointer();
+                    }
+                } catch (EOFException e) {
+                    // the end of the log, possibly within a torn record
+                }
+                raf.setLength(end);
+
+                // redo the winners, then undo the losers backwards
+                for (Long off : updates) {
+                    raf.seek(off);
+                    raf.readInt();
+                    long record_tid = raf.readLong();
+                    readPageData(raf);
+                    Page after = readPageData(raf);
+                    if (committed.contains(record_tid))
+                        installPage(after);
+                }
+                for (int i = updates.size() - 1; i >= 0; i--) {
+                    raf.seek(updates.get(i));
+                    raf.readInt();
+                    long record_tid = raf.readLong();
+                    Page before = readPageData(raf);
+                    readPageData(raf);
+                    if (!finished.contains(record_tid))
+                        installPage(before);
+                }
+
+                raf.seek(end);
+                currentOffset = end;
+                for (Long loser : started) {
+                    if (finished.contains(loser))
+                        continue;
+                    totalRecords++;
+                    appendSequence++;
+                    raf.writeInt(ABORT_RECORD);
+                    raf.writeLong(loser);
+                    raf.writeLong(currentOffset);
+                    currentOffset = raf.getFilePointer();
+                }
+                tidToFirstLogRecord.clear();
+                force();
             }
          }
     }
 
+    /** Writes a page image from the log to its file and drops the copy
+        the buffer pool may hold. */
+    private void installPage(Page p) throws IOException {
+        Database.getCatalog().getDbFile(p.getId().getTableId()).writePage(p);
+        Database.getBufferPool().discardPage(p.getId());
+    }
+
     /** Print out a human readable represenation of the log */
     public void print() throws IOException {
         // some code goes here
@@ -505,6 +832,14 @@ public class LogFile {
 
     public  synchronized void force() throws IOException {
         raf.getChannel().force(true);
+        int group = pendingCommits;
+        pendingCommits = 0;
+        synchronized (groupLock) {
+            countGroup(group);
+            if (appendSequence > forcedSequence)
+                forcedSequence = appendSequence;
+            groupLock.notifyAll();
+        }
     }
 
 }
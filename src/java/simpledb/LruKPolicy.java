@@ -0,0 +1,119 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * LRU-K replacement (O'Neil, O'Neil and Weikum). The victim is the frame
+ * whose K-th most recent reference is the oldest; frames with fewer than K
+ * references count as infinitely old and are evicted first, least recently
+ * used among them. The reference history of evicted pages is retained for a
+ * while so that a page that comes back quickly does not start from scratch.
+ */
+public class LruKPolicy implements ReplacementPolicy {
+
+    public static final int DEFAULT_K = 2;
+
+    private final int k;
+
+    /** Logical clock, incremented on every reference. */
+    private long now;
+
+    private final PageId[] framePids;
+
+    /** history[frame][0] is the most recent reference, 0 means "never". */
+    private final long[][] history;
+
+    /** Histories of recently evicted pages, oldest first. */
+    private final LinkedHashMap<PageId,long[]> retained;
+
+    /**
+     * The frames that hold a page, best victim first: by K-th most recent
+     * reference, then by most recent reference. A frame is taken out
+     * before its history changes and put back after.
+     */
+    private final TreeSet<Integer> candidates;
+
+    public LruKPolicy(int numFrames) {
+        this(numFrames, DEFAULT_K);
+    }
+
+    public LruKPolicy(final int numFrames, int k) {
+        if (k < 1) {
+            throw new IllegalArgumentException("K must be at least 1");
+        }
+        this.k = k;
+        this.now = 0;
+        this.framePids = new PageId[numFrames];
+        this.history = new long[numFrames][];
+        this.retained = new LinkedHashMap<PageId,long[]>() {
+            private static final long serialVersionUID = 1L;
+
+            protected boolean removeEldestEntry(Map.Entry<PageId,long[]> eldest) {
+                return size() > numFrames;
+            }
+        };
+        this.candidates = new TreeSet<Integer>(new Comparator<Integer>() {
+            public int compare(Integer a, Integer b) {
+                long[] ha = history[a];
+                long[] hb = history[b];
+                // smaller K-th reference time = larger backward K-distance
+                if (ha[LruKPolicy.this.k - 1] != hb[LruKPolicy.this.k - 1]) {
+                    return ha[LruKPolicy.this.k - 1] < hb[LruKPolicy.this.k - 1] ? -1 : 1;
+                }
+                if (ha[0] != hb[0]) {
+                    return ha[0] < hb[0] ? -1 : 1;
+                }
+                return a.compareTo(b);
+            }
+        });
+    }
+
+    private void reference(int frame) {
+        long[] h = history[frame];
+        candidates.remove(frame);
+        System.arraycopy(h, 0, h, 1, k - 1);
+        h[0] = ++now;
+        candidates.add(frame);
+    }
+
+    public void pageLoaded(int frame, PageId pid) {
+        if (history[frame] != null) {
+            candidates.remove(frame);
+        }
+        long[] h = retained.remove(pid);
+        if (h == null) {
+            h = new long[k];
+        }
+        framePids[frame] = pid;
+        history[frame] = h;
+        reference(frame);
+    }
+
+    public void pageAccessed(int frame) {
+        if (history[frame] != null) {
+            reference(frame);
+        }
+    }
+
+    public void pageRemoved(int frame, PageId pid) {
+        if (history[frame] != null) {
+            candidates.remove(frame);
+            retained.put(framePids[frame], history[frame]);
+        }
+        framePids[frame] = null;
+        history[frame] = null;
+    }
+
+    /**
+     * Returns the first evictable frame in victim order; unless most
+     * frames are pinned, this looks at only a few of them.
+     */
+    public int chooseVictim(FrameFilter filter) {
+        for (int frame : candidates) {
+            if (filter.isEvictable(frame)) {
+                return frame;
+            }
+        }
+        return -1;
+    }
+}
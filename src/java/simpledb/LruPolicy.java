@@ -0,0 +1,41 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * Least recently used replacement: the victim is the evictable frame whose
+ * last access lies furthest in the past.
+ */
+public class LruPolicy implements ReplacementPolicy {
+
+    /** Resident frames, least recently used first. */
+    private final LinkedHashSet<Integer> order;
+
+    public LruPolicy(int numFrames) {
+        this.order = new LinkedHashSet<Integer>(numFrames * 4 / 3 + 1);
+    }
+
+    public void pageLoaded(int frame, PageId pid) {
+        order.remove(frame);
+        order.add(frame);
+    }
+
+    public void pageAccessed(int frame) {
+        if (order.remove(frame)) {
+            order.add(frame);
+        }
+    }
+
+    public void pageRemoved(int frame, PageId pid) {
+        order.remove(frame);
+    }
+
+    public int chooseVictim(FrameFilter filter) {
+        for (Integer frame : order) {
+            if (filter.isEvictable(frame)) {
+                return frame;
+            }
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,185 @@
+package simpledb;
+
+import java.io.UncheckedIOException;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * PageScrubber is a daemon thread that reads the pages of HeapFiles with
+ * checksums straight from disk and verifies them, so that a torn write or
+ * bit rot in a page nobody reads is found before a query trips over it.
+ * <p>
+ * The scrubber sweeps the tables of the Catalog in page order, one round
+ * after another, at no more than a configurable number of pages per
+ * second so that it does not compete with requests for the disk. Pages
+ * resident in the BufferPool are skipped: they were verified when they
+ * were read and are written again if they change. Damaged pages are
+ * counted and remembered; nothing is repaired.
+ *
+ * @see HeapFile#verifyPage
+ */
+public class PageScrubber extends Thread {
+
+    /** Default limit of pages verified per second. */
+    public static final int DEFAULT_PAGES_PER_SECOND = 100;
+
+    /** Time to wait before looking again if no table has checksums, in ms. */
+    private static final long IDLE_INTERVAL = 1000;
+
+    private volatile int pagesPerSecond = DEFAULT_PAGES_PER_SECOND;
+
+    private volatile boolean running = true;
+
+    /** When the next page may be verified, in System.nanoTime() terms. */
+    private long nextPage;
+
+    private final AtomicLong verified = new AtomicLong();
+    private final AtomicLong skipped = new AtomicLong();
+    private final AtomicLong rounds = new AtomicLong();
+
+    /** Pages that failed verification or could not be read. */
+    private final Set<PageId> damaged = Collections.synchronizedSet(new LinkedHashSet<PageId>());
+
+    public PageScrubber() {
+        super("page scrubber");
+        setDaemon(true);
+        setPriority(Thread.MIN_PRIORITY);
+    }
+
+    /** Sets the largest number of pages verified per second. */
+    public void setRate(int pagesPerSecond) {
+        if (pagesPerSecond <= 0)
+            throw new IllegalArgumentException("invalid rate " + pagesPerSecond);
+        this.pagesPerSecond = pagesPerSecond;
+    }
+
+    public int getRate() {
+        return pagesPerSecond;
+    }
+
+    /** @return the number of pages read and checked */
+    public long getVerifiedCount() {
+        return verified.get();
+    }
+
+    /** @return the number of pages skipped because they were resident */
+    public long getSkippedCount() {
+        return skipped.get();
+    }
+
+    /** @return the number of completed sweeps over all tables */
+    public long getRounds() {
+        return rounds.get();
+    }
+
+    /** @return the pages found damaged so far, in the order found */
+    public List<PageId> getDamagedPages() {
+        synchronized (damaged) {
+            return new ArrayList<PageId>(damaged);
+        }
+    }
+
+    /** Stops the scrubber and waits for it to finish the current page. */
+    public void shutdown() {
+        running = false;
+        interrupt();
+        if (Thread.currentThread() != this) {
+            try {
+                join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    public void run() {
+        nextPage = System.nanoTime();
+        while (running) {
+            try {
+                if (!scrub(true)) {
+                    Thread.sleep(IDLE_INTERVAL);
+                }
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Verifies every page of every table with checksums once, without a
+     * rate limit, on the calling thread.
+     *
+     * @return the number of damaged pages found in this sweep
+     */
+    public int scrubAll() {
+        int before = damaged.size();
+        try {
+            scrub(false);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return damaged.size() - before;
+    }
+
+    /**
+     * Sweeps over all tables with checksums.
+     *
+     * @param paced whether to keep to the rate limit
+     * @return false if there was no table to scrub
+     */
+    private boolean scrub(boolean paced) throws InterruptedException {
+        ArrayList<HeapFile> files = new ArrayList<HeapFile>();
+        Iterator<Integer> ids = Database.getCatalog().tableIdIterator();
+        while (ids.hasNext()) {
+            DbFile f = Database.getCatalog().getDbFile(ids.next());
+            if (f instanceof HeapFile && ((HeapFile) f).hasChecksums())
+                files.add((HeapFile) f);
+        }
+        if (files.isEmpty())
+            return false;
+        for (HeapFile f : files) {
+            for (int pgNo = 0; pgNo < f.numPages(); pgNo++) {
+                if (paced && !running)
+                    return true;
+                if (paced)
+                    pace();
+                scrubPage(f, pgNo);
+            }
+        }
+        rounds.incrementAndGet();
+        return true;
+    }
+
+    private void scrubPage(HeapFile f, int pgNo) {
+        PageId pid = new HeapPageId(f.getId(), pgNo);
+        if (Database.getBufferPool().isResident(pid)) {
+            skipped.incrementAndGet();
+            return;
+        }
+        boolean intact;
+        try {
+            intact = f.verifyPage(pgNo);
+        } catch (NoSuchElementException e) {
+            // the file was truncated meanwhile
+            return;
+        } catch (UncheckedIOException e) {
+            intact = false;
+        }
+        verified.incrementAndGet();
+        if (!intact && damaged.add(pid))
+            System.err.println("page scrubber: page " + pgNo + " of " + f.getFile()
+                    + " is damaged");
+    }
+
+    /** Sleeps until the next page may be verified. */
+    private void pace() throws InterruptedException {
+        long now = System.nanoTime();
+        long interval = TimeUnit.SECONDS.toNanos(1) / pagesPerSecond;
+        // do not make up for time spent idle or blocked
+        nextPage = Math.max(nextPage, now - interval) + interval;
+        long wait = nextPage - now;
+        if (wait > 0)
+            TimeUnit.NANOSECONDS.sleep(wait);
+    }
+}
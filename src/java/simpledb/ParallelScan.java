@@ -0,0 +1,502 @@
+package simpledb;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * ParallelScan reads all tuples of a table with several workers at once,
+ * for tables whose pages are mostly resident or on a disk that serves
+ * many requests at a time, where one thread decoding pages is the limit.
+ * <p>
+ * The pages of the table are cut into morsels of consecutive pages.
+ * Workers running on a shared ForkJoinPool take the next morsel that
+ * nobody took yet, so a worker that is slowed down simply takes fewer.
+ * Each worker reads its pages through the BufferPool with its own bulk
+ * read ring, in runs of up to the read-ahead window, and locks them
+ * shared on behalf of the scan's transaction, exactly as a sequential
+ * scan would; the locks are released when the transaction completes. A
+ * worker that has to wait for a lock, or for the consumer, lets the pool
+ * start another thread meanwhile.
+ * <p>
+ * The tuples of a few pages are handed over in one batch through a
+ * bounded queue, so workers wait when the consumer falls behind. They come out in
+ * no particular order, either merged into the single iteration of this
+ * operator or, through {@link #openStreams}, as one stream per worker for
+ * operators that consume them in parallel. The scan covers the pages the
+ * table had when it was opened.
+ */
+public class ParallelScan implements DbIterator {
+
+    private static final long serialVersionUID = 1L;
+
+    /** Default number of pages in a morsel. */
+    public static final int DEFAULT_MORSEL_PAGES = 64;
+
+    /** Number of batches a queue holds per worker feeding it. */
+    private static final int BATCHES_PER_WORKER = 4;
+
+    /**
+     * Number of tuples after which a worker hands over its batch; a batch
+     * is made of whole pages, and never spans two morsels.
+     */
+    private static final int BATCH_TUPLES = 2048;
+
+    /** How long close waits between two drains of the queues, in ms. */
+    private static final long DRAIN_INTERVAL = 10;
+
+    /** Marks the end of the batches of one worker. */
+    private static final List<Tuple> DONE = Collections.emptyList();
+
+    /** The pool all parallel scans run their workers on. */
+    private static final ForkJoinPool WORKERS =
+        new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+
+    private final TransactionId tid;
+    private final int tableId;
+    private final String tableAlias;
+    private final int parallelism;
+    private final TupleDesc td;
+
+    private int morselPages = DEFAULT_MORSEL_PAGES;
+
+    /** The scan started by the last open, or null if closed. */
+    private transient Run run;
+
+    /** The channel of the merged iteration, or null if opened as streams. */
+    private transient Channel merged;
+
+    /**
+     * Creates a parallel scan over the specified table as a part of the
+     * specified transaction.
+     *
+     * @param tid the transaction the pages are locked for
+     * @param tableId the table to scan
+     * @param tableAlias the alias the field names of the returned
+     *   TupleDesc are prefixed with, as by SeqScan
+     * @param parallelism the largest number of workers to scan with
+     */
+    public ParallelScan(TransactionId tid, int tableId, String tableAlias, int parallelism) {
+        if (parallelism <= 0)
+            throw new IllegalArgumentException("invalid parallelism " + parallelism);
+        this.tid = tid;
+        this.tableId = tableId;
+        this.tableAlias = tableAlias;
+        this.parallelism = parallelism;
+        TupleDesc fileTd = Database.getCatalog().getTupleDesc(tableId);
+        Type[] types = new Type[fileTd.numFields()];
+        String[] names = new String[fileTd.numFields()];
+        for (int i = 0; i < types.length; i++) {
+            types[i] = fileTd.getFieldType(i);
+            names[i] = tableAlias + "." + fileTd.getFieldName(i);
+        }
+        this.td = new TupleDesc(types, names);
+    }
+
+    /** Scans with one worker per processor, using the table name as alias. */
+    public ParallelScan(TransactionId tid, int tableId) {
+        this(tid, tableId, Database.getCatalog().getTableName(tableId),
+                Runtime.getRuntime().availableProcessors());
+    }
+
+    public String getTableName() {
+        return Database.getCatalog().getTableName(tableId);
+    }
+
+    public String getAlias() {
+        return tableAlias;
+    }
+
+    public int getParallelism() {
+        return parallelism;
+    }
+
+    /** Sets the number of pages in a morsel; applies from the next open. */
+    public void setMorselSize(int pages) {
+        if (pages <= 0)
+            throw new IllegalArgumentException("invalid morsel size " + pages);
+        this.morselPages = pages;
+    }
+
+    public int getMorselSize() {
+        return morselPages;
+    }
+
+    /**
+     * Returns the TupleDesc with field names from the underlying file,
+     * prefixed with the table alias.
+     */
+    public TupleDesc getTupleDesc() {
+        return td;
+    }
+
+    /** Starts the workers; the tuples are returned by hasNext and next. */
+    public void open() throws DbException, TransactionAbortedException {
+        if (run != null)
+            throw new IllegalStateException("already open");
+        Run r = new Run();
+        merged = new Channel(r, r.workers * BATCHES_PER_WORKER, r.workers);
+        Channel[] channels = new Channel[r.workers];
+        Arrays.fill(channels, merged);
+        r.start(channels);
+        run = r;
+    }
+
+    /**
+     * Starts the workers and returns the tuples as one open iterator per
+     * worker instead of through this operator. Each stream may be consumed
+     * on its own thread and closed on its own; rewinding a stream is not
+     * supported. Together the streams return every tuple of the table
+     * once. Closing this operator closes all of them.
+     */
+    public List<DbIterator> openStreams() throws DbException, TransactionAbortedException {
+        if (run != null)
+            throw new IllegalStateException("already open");
+        Run r = new Run();
+        Channel[] channels = new Channel[r.workers];
+        List<DbIterator> streams = new ArrayList<DbIterator>(r.workers);
+        for (int i = 0; i < r.workers; i++) {
+            channels[i] = new Channel(r, BATCHES_PER_WORKER, 1);
+            streams.add(new Stream(channels[i]));
+        }
+        r.start(channels);
+        run = r;
+        merged = null;
+        return streams;
+    }
+
+    public boolean hasNext() throws DbException, TransactionAbortedException {
+        return mergedChannel().hasNext();
+    }
+
+    public Tuple next() throws DbException, TransactionAbortedException,
+            NoSuchElementException {
+        return mergedChannel().next();
+    }
+
+    /** Starts the scan over from the first page with new workers. */
+    public void rewind() throws DbException, TransactionAbortedException {
+        mergedChannel();
+        close();
+        open();
+    }
+
+    /**
+     * Stops the workers and waits until none of them uses a page of the
+     * table anymore, so that the transaction may complete right after.
+     */
+    public void close() {
+        if (run != null) {
+            run.cancel();
+            run = null;
+        }
+        merged = null;
+    }
+
+    private Channel mergedChannel() {
+        if (run == null)
+            throw new IllegalStateException("not open");
+        if (merged == null)
+            throw new IllegalStateException("opened as streams");
+        return merged;
+    }
+
+    /** The state shared by the workers started by one open. */
+    private final class Run {
+        final DbFile file = Database.getCatalog().getDbFile(tableId);
+        final BufferPool pool = Database.getBufferPool().getPoolForTable(tableId);
+        final int numPages = file.numPages();
+        final int morsel = morselPages;
+        final int workers = Math.max(1,
+                Math.min(parallelism, (numPages + morsel - 1) / morsel));
+
+        final AtomicInteger nextMorsel = new AtomicInteger();
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        final CountDownLatch finished = new CountDownLatch(workers);
+        volatile boolean cancelled;
+
+        Channel[] channels;
+
+        void start(Channel[] channels) {
+            this.channels = channels;
+            for (Channel c : channels)
+                WORKERS.execute(new Worker(this, c));
+        }
+
+        /** Stops the workers and drains the queues until they are gone. */
+        void cancel() {
+            cancelled = true;
+            boolean interrupted = false;
+            while (true) {
+                for (Channel c : channels)
+                    c.queue.clear();
+                try {
+                    if (finished.await(DRAIN_INTERVAL, TimeUnit.MILLISECONDS))
+                        break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted)
+                Thread.currentThread().interrupt();
+        }
+
+        /** Rethrows the first failure of a worker, if any. */
+        void checkFailure() throws DbException, TransactionAbortedException {
+            Throwable t = failure.get();
+            if (t == null)
+                return;
+            if (t instanceof TransactionAbortedException)
+                throw (TransactionAbortedException) t;
+            if (t instanceof DbException)
+                throw (DbException) t;
+            if (t instanceof RuntimeException)
+                throw (RuntimeException) t;
+            if (t instanceof Error)
+                throw (Error) t;
+            DbException e = new DbException("parallel scan failed: " + t);
+            e.initCause(t);
+            throw e;
+        }
+    }
+
+    /** A queue of page batches and the consumer's position in it. */
+    private static final class Channel {
+        final Run run;
+        final BlockingQueue<List<Tuple>> queue;
+        /** Workers that have not yet put DONE. */
+        int producers;
+        volatile boolean closed;
+
+        List<Tuple> batch = Collections.emptyList();
+        int pos;
+
+        Channel(Run run, int capacity, int producers) {
+            this.run = run;
+            this.queue = new ArrayBlockingQueue<List<Tuple>>(capacity);
+            this.producers = producers;
+        }
+
+        boolean hasNext() throws DbException, TransactionAbortedException {
+            while (pos == batch.size()) {
+                run.checkFailure();
+                if (producers == 0)
+                    return false;
+                List<Tuple> b;
+                try {
+                    b = queue.take();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new DbException("interrupted while waiting for tuples");
+                }
+                if (b == DONE)
+                    producers--;
+                batch = b;
+                pos = 0;
+            }
+            return true;
+        }
+
+        Tuple next() throws DbException, TransactionAbortedException {
+            if (!hasNext())
+                throw new NoSuchElementException();
+            return batch.get(pos++);
+        }
+
+        void close() {
+            closed = true;
+            queue.clear();
+        }
+    }
+
+    /** One of the iterators returned by openStreams. */
+    private final class Stream implements DbIterator {
+
+        private static final long serialVersionUID = 1L;
+
+        private final transient Channel channel;
+
+        Stream(Channel channel) {
+            this.channel = channel;
+        }
+
+        public void open() {
+            check();
+        }
+
+        public boolean hasNext() throws DbException, TransactionAbortedException {
+            check();
+            return channel.hasNext();
+        }
+
+        public Tuple next() throws DbException, TransactionAbortedException {
+            check();
+            return channel.next();
+        }
+
+        public void rewind() throws DbException {
+            check();
+            throw new DbException("the stream of a parallel scan cannot be rewound");
+        }
+
+        public TupleDesc getTupleDesc() {
+            return td;
+        }
+
+        public void close() {
+            channel.close();
+        }
+
+        private void check() {
+            if (channel.closed || channel.run.cancelled)
+                throw new IllegalStateException("not open");
+        }
+    }
+
+    /** Scans morsels until none is left, feeding one channel. */
+    private final class Worker extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final Run run;
+        private final Channel channel;
+
+        Worker(Run run, Channel channel) {
+            this.run = run;
+            this.channel = channel;
+        }
+
+        protected void compute() {
+            try {
+                scan();
+                put(DONE);
+            } catch (Throwable t) {
+                run.failure.compareAndSet(null, t);
+                // wake the consumer, who then finds the failure
+                try {
+                    put(DONE);
+                } catch (InterruptedException e) {
+                    // cancelled anyway
+                }
+            } finally {
+                run.finished.countDown();
+            }
+        }
+
+        private boolean stopped() {
+            return run.cancelled || channel.closed;
+        }
+
+        private void scan() throws DbException, TransactionAbortedException,
+                InterruptedException {
+            BufferAccessStrategy strategy =
+                run.pool.getBulkReadStrategy(run.numPages, run.file.getPageSize());
+            ReadAhead readAhead = run.pool.getReadAhead();
+            int window = readAhead.getMaxWindow();
+            if (strategy != null)
+                window = Math.min(window, strategy.getRingSize());
+            while (!stopped()) {
+                long first = (long) run.nextMorsel.getAndIncrement() * run.morsel;
+                if (first >= run.numPages)
+                    return;
+                int end = (int) Math.min(first + run.morsel, run.numPages);
+                int loaded = (int) first;
+                ArrayList<Tuple> batch = new ArrayList<Tuple>();
+                for (int pgNo = (int) first; pgNo < end; pgNo++) {
+                    if (stopped())
+                        return;
+                    if (pgNo == loaded && readAhead.isEnabled() && window > 1) {
+                        int n = Math.min(window, end - pgNo);
+                        run.pool.loadPages(tableId, pgNo, n, strategy != null);
+                        loaded = pgNo + n;
+                    }
+                    decode(new HeapPageId(tableId, pgNo), strategy, batch);
+                    if (batch.size() >= BATCH_TUPLES) {
+                        put(batch);
+                        batch = new ArrayList<Tuple>();
+                    }
+                }
+                put(batch);
+            }
+        }
+
+        /** Adds the tuples of a page to batch, reading them while it is pinned. */
+        private void decode(PageId pid, BufferAccessStrategy strategy, List<Tuple> batch)
+                throws DbException, TransactionAbortedException {
+            BufferPool bp = Database.getBufferPool();
+            lock(bp.getLockManager(), pid);
+            HeapPage page = (HeapPage) bp.pinPage(tid, pid, Permissions.READ_ONLY, strategy);
+            try {
+                Iterator<Tuple> it = page.iterator();
+                while (it.hasNext())
+                    batch.add(it.next());
+            } finally {
+                bp.unpinPage(page);
+            }
+        }
+
+        /**
+         * Locks a page shared for the scan's transaction, letting the pool
+         * add a thread while this one waits for the lock. Otherwise a few
+         * scans waiting for locks could take up all workers, including
+         * those a scan of the lock holder needs, which no deadlock
+         * detection would see.
+         */
+        private void lock(final LockManager locks, final PageId pid)
+                throws DbException, TransactionAbortedException {
+            if (locks.tryAcquire(tid, pid, false))
+                return;
+            final TransactionAbortedException[] aborted = new TransactionAbortedException[1];
+            try {
+                ForkJoinPool.managedBlock(new ForkJoinPool.ManagedBlocker() {
+                    private boolean done;
+
+                    public boolean isReleasable() {
+                        return done || locks.tryAcquire(tid, pid, false);
+                    }
+
+                    public boolean block() {
+                        try {
+                            locks.acquire(tid, pid, false);
+                        } catch (TransactionAbortedException e) {
+                            aborted[0] = e;
+                        }
+                        done = true;
+                        return true;
+                    }
+                });
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new DbException("interrupted while waiting for the lock on " + pid);
+            }
+            if (aborted[0] != null)
+                throw aborted[0];
+        }
+
+        /**
+         * Puts a batch into the channel, letting the pool add a thread
+         * while this one waits for the consumer. Batches are dropped once
+         * the scan is stopped.
+         */
+        private void put(final List<Tuple> batch) throws InterruptedException {
+            if (batch.isEmpty() && batch != DONE)
+                return;
+            if (stopped())
+                return;
+            ForkJoinPool.managedBlock(new ForkJoinPool.ManagedBlocker() {
+                public boolean isReleasable() {
+                    return stopped() || channel.queue.offer(batch);
+                }
+
+                public boolean block() throws InterruptedException {
+                    while (!stopped()) {
+                        if (channel.queue.offer(batch, DRAIN_INTERVAL, TimeUnit.MILLISECONDS))
+                            return true;
+                    }
+                    return true;
+                }
+            });
+        }
+    }
+}
@@ -0,0 +1,223 @@
+package simpledb;
+
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * ReadAhead detects sequential page access per table and loads the pages
+ * that are about to be requested into the BufferPool on background I/O
+ * threads, so that a scan finds its next page resident instead of stalling
+ * on a disk read at every page boundary.
+ * <p>
+ * The window is managed the way Linux manages its readahead windows: the
+ * first sequential access of a stream schedules a small window of pages;
+ * when the scan reaches the first page of the most recently scheduled
+ * window, the next window is scheduled asynchronously with twice the size,
+ * up to a maximum. A miss on any other page resets the stream. The pages
+ * of a window that are not resident yet are read with one call per run,
+ * so a scan from disk makes a few large reads instead of one per page.
+ * <p>
+ * The component counts how many pages it prefetched, how many of those
+ * were later requested ("used") and how many left the pool again without
+ * ever being requested ("wasted").
+ *
+ * @see BufferPool#getReadAhead
+ */
+public class ReadAhead {
+
+    /** Pages scheduled by the first window of a sequential stream. */
+    public static final int INITIAL_WINDOW = 4;
+
+    /** Default upper bound of the window, 128 KB worth of pages as in Linux. */
+    public static final int DEFAULT_MAX_WINDOW = 32;
+
+    /** Default number of background I/O threads. */
+    public static final int DEFAULT_THREADS = 2;
+
+    /**
+     * Per table state of a sequential access stream. lastPage may be read
+     * without the stream's monitor; everything else is guarded by it.
+     */
+    private static class Stream {
+        /** Page number of the last page requested. */
+        volatile int lastPage;
+        /** Size of the most recently scheduled window, 0 if none. */
+        int window;
+        /** First page that has not been scheduled yet. */
+        int nextToFetch;
+        /** Requesting this page schedules the next window. */
+        int trigger;
+
+        Stream(int page) {
+            this.lastPage = page;
+            this.window = 0;
+            this.nextToFetch = page + 1;
+            this.trigger = Integer.MAX_VALUE;
+        }
+    }
+
+    private final BufferPool pool;
+
+    private final ConcurrentHashMap<Integer,Stream> streams;
+
+    private final ThreadPoolExecutor executor;
+
+    private volatile boolean enabled;
+
+    private volatile int maxWindow;
+
+    private final AtomicLong prefetched = new AtomicLong();
+    private final AtomicLong used = new AtomicLong();
+    private final AtomicLong wasted = new AtomicLong();
+
+    public ReadAhead(BufferPool pool) {
+        this(pool, DEFAULT_THREADS);
+    }
+
+    /**
+     * @param pool the pool prefetched pages are loaded into
+     * @param threads the number of background I/O threads
+     */
+    public ReadAhead(BufferPool pool, int threads) {
+        this.pool = pool;
+        this.streams = new ConcurrentHashMap<Integer,Stream>();
+        this.enabled = true;
+        this.maxWindow = DEFAULT_MAX_WINDOW;
+        this.executor = new ThreadPoolExecutor(threads, threads, 1, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                    private int count = 0;
+
+                    public synchronized Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, "simpledb-readahead-" + (count++));
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+        // idle pools (e.g. discarded by Database.resetBufferPool) must not
+        // keep their threads around
+        this.executor.allowCoreThreadTimeOut(true);
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+        if (!enabled)
+            streams.clear();
+    }
+
+    public int getMaxWindow() {
+        return maxWindow;
+    }
+
+    /** Sets the largest number of pages a single window may schedule. */
+    public void setMaxWindow(int pages) {
+        if (pages < 1)
+            throw new IllegalArgumentException("window must hold at least one page");
+        this.maxWindow = pages;
+    }
+
+    /** @return the number of pages loaded into the pool by read-ahead */
+    public long getPrefetchedCount() {
+        return prefetched.get();
+    }
+
+    /** @return the number of prefetched pages that were requested later */
+    public long getUsedCount() {
+        return used.get();
+    }
+
+    /** @return the number of prefetched pages evicted without being requested */
+    public long getWastedCount() {
+        return wasted.get();
+    }
+
+    void recordPrefetched() {
+        prefetched.incrementAndGet();
+    }
+
+    void recordUsed() {
+        used.incrementAndGet();
+    }
+
+    void recordWasted() {
+        wasted.incrementAndGet();
+    }
+
+    /**
+     * Called by the BufferPool for every page request. Detects sequential
+     * streams and schedules the next window of pages if it is time to.
+     * <p>
+     * Requests that cannot move a stream forward return after a read of
+     * the stream without locking, so that hits on different shards do not
+     * meet here. Only a miss starts a stream over at another page: a
+     * non-sequential hit needs no read-ahead, and leaving the stream alone
+     * keeps hits from writing to it.
+     *
+     * @param pid the page that was requested
+     * @param strategy the access strategy of the request, or null; windows
+     *   of scans reading through a ring never exceed the ring size
+     * @param hit true if the page was resident
+     */
+    void pageRequested(PageId pid, BufferAccessStrategy strategy, boolean hit) {
+        if (!enabled)
+            return;
+        int page = pid.pageNumber();
+        Integer table = pid.getTableId();
+        Stream s = streams.get(table);
+        if (s == null || page != s.lastPage + 1) {
+            if (!hit && (s == null || page != s.lastPage))
+                streams.put(table, new Stream(page));
+            return;
+        }
+        int from, count;
+        synchronized (s) {
+            if (page != s.lastPage + 1)
+                return;
+            s.lastPage = page;
+            int limit = maxWindow;
+            if (strategy != null)
+                limit = Math.min(limit, strategy.getRingSize());
+            if (s.nextToFetch <= page) {
+                // nothing ahead of the scan: start a new stream
+                s.window = Math.min(INITIAL_WINDOW, limit);
+                s.nextToFetch = page + 1;
+            } else if (page >= s.trigger) {
+                s.window = Math.min(s.window * 2, limit);
+            } else {
+                return;
+            }
+            from = s.nextToFetch;
+            count = s.window;
+            s.trigger = from;
+            s.nextToFetch = from + count;
+        }
+        schedule(pid.getTableId(), from, count, strategy != null);
+    }
+
+    /**
+     * @return true if the stream of the page's table has already moved past
+     *   the page, so that loading it now would only waste a frame.
+     */
+    boolean isStale(PageId pid) {
+        Stream s = streams.get(pid.getTableId());
+        return s == null || s.lastPage >= pid.pageNumber();
+    }
+
+    private void schedule(int tableId, int from, int count, final boolean forRing) {
+        DbFile file = Database.getCatalog().getDbFile(tableId);
+        final int table = tableId;
+        final int first = from;
+        final int n = Math.min(count, file.numPages() - from);
+        if (n <= 0)
+            return;
+        // the whole window is read with as few calls as possible
+        executor.execute(new Runnable() {
+            public void run() {
+                pool.prefetchPages(table, first, n, forRing);
+            }
+        });
+    }
+}
@@ -0,0 +1,61 @@
+package simpledb;
+
+/**
+ * ReplacementPolicy decides which frame of the BufferPool is given up when
+ * a page has to be brought in and no frame is free. The BufferPool tells the
+ * policy about every page it loads, hits on and removes; the policy never
+ * touches the pages itself, it only tracks frame indexes.
+ * <p>
+ * Hits and misses are counted by the BufferPool, not by the policy; compare
+ * the hit rates of policies through {@link BufferPool#getStats}.
+ *
+ * @see BufferPool
+ * @see ReplacementPolicyType
+ */
+public interface ReplacementPolicy {
+
+    /**
+     * Lets the BufferPool veto frames that must not be evicted right now
+     * (e.g., because they are in use).
+     */
+    public interface FrameFilter {
+        /** @return true if the page in the specified frame may be evicted */
+        public boolean isEvictable(int frame);
+    }
+
+    /**
+     * Called after a page that was not resident (a miss) has been read into
+     * the specified frame.
+     *
+     * @param frame the frame now holding the page
+     * @param pid the id of the page that was loaded
+     */
+    public void pageLoaded(int frame, PageId pid);
+
+    /**
+     * Called when a lookup finds the page already resident (a hit).
+     *
+     * @param frame the frame holding the page
+     */
+    public void pageAccessed(int frame);
+
+    /**
+     * Called when the page in the specified frame leaves the BufferPool,
+     * either because it was chosen as a victim or because it was discarded.
+     *
+     * @param frame the frame that is now free
+     * @param pid the id of the page that was removed
+     */
+    public void pageRemoved(int frame, PageId pid);
+
+    /**
+     * Picks the frame whose page should be evicted next. The frame is not
+     * removed from the policy until {@link #pageRemoved} is called.
+     *
+     * @param filter frames for which filter.isEvictable returns false are
+     *   never returned
+     * @return the index of the victim frame, or -1 if no resident frame can
+     *   be evicted
+     */
+    public int chooseVictim(FrameFilter filter);
+}
@@ -0,0 +1,39 @@
+package simpledb;
+
+/**
+ * The page replacement policies a BufferPool can be created with.
+ *
+ * @see Database#setReplacementPolicy
+ */
+public enum ReplacementPolicyType {
+    CLOCK() {
+        @Override
+        public ReplacementPolicy create(int numFrames) {
+            return new ClockPolicy(numFrames);
+        }
+    }, LRU() {
+        @Override
+        public ReplacementPolicy create(int numFrames) {
+            return new LruPolicy(numFrames);
+        }
+    }, LRU_K() {
+        @Override
+        public ReplacementPolicy create(int numFrames) {
+            return new LruKPolicy(numFrames);
+        }
+    }, TWO_Q() {
+        @Override
+        public ReplacementPolicy create(int numFrames) {
+            return new TwoQPolicy(numFrames);
+        }
+    };
+
+    /** The policy used unless a Database is told otherwise. */
+    public static final ReplacementPolicyType DEFAULT = CLOCK;
+
+    /**
+     * @return a new, empty policy instance managing numFrames frames.
+     */
+    public abstract ReplacementPolicy create(int numFrames);
+
+}
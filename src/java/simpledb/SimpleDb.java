@@ -2,13 +2,15 @@ package simpledb;
 import java.util.*;
 import java.io.*;
 
+import com.jcraft.jzlib.JZlib;
+
 public class SimpleDb {
     public static void main (String args[])
             throws DbException, TransactionAbortedException, IOException {
         // convert a file
         if(args[0].equals("convert")) {
         try {
-            if (args.length<3 || args.length>5){
+            if (args.length<3 || args.length>6){
                 System.err.println("Unexpected number of arguments to convert ");
                 return;
             }
@@ -40,12 +42,18 @@ public class SimpleDb {
                                 return;
                             }
                 }
-                if (args.length==5)
+                if (args.length>=5)
                     fieldSeparator=args[4].charAt(0);
             }
+            // the page size must also be given to the catalog entry of the table
+            int pageSize=BufferPool.PAGE_SIZE;
+            if (args.length==6) {
+                pageSize=Integer.parseInt(args[5]);
+                BufferPool.checkPageSize(pageSize);
+            }
 
             HeapFileEncoder.convert(sourceTxtFile,targetDatFile,
-                        BufferPool.PAGE_SIZE,numOfAttributes,ts,fieldSeparator);
+                        pageSize,numOfAttributes,ts,fieldSeparator);
 
         } catch (IOException e) {
                 throw new RuntimeException(e);
@@ -68,6 +76,203 @@ public class SimpleDb {
                it.close();
             }
         }
+        else if (args[0].equals("stats")) {
+            // scan every table of a catalog and report how the pool coped
+            if (args.length<2) {
+                System.err.println("usage: stats <catalog file> [passes] [pool pages] [name:pages ...]");
+                return;
+            }
+            Database.getCatalog().loadSchema(args[1]);
+            int passes = args.length>2 ? Integer.parseInt(args[2]) : 2;
+            if (args.length>3)
+                Database.resetBufferPool(Integer.parseInt(args[3]));
+            // named pools for tables the catalog binds with "pool <name>"
+            for (int i=4; i<args.length; i++) {
+                String[] pool = args[i].split(":");
+                Database.getBufferPool().createPool(pool[0], Integer.parseInt(pool[1]),
+                        Database.getReplacementPolicy());
+            }
+            TransactionId tid = new TransactionId();
+            for (int pass=0; pass<passes; pass++) {
+                Iterator<Integer> tables = Database.getCatalog().tableIdIterator();
+                while (tables.hasNext()) {
+                    DbFileIterator it = Database.getCatalog().getDbFile(tables.next()).iterator(tid);
+                    it.open();
+                    while (it.hasNext())
+                        it.next();
+                    it.close();
+                }
+            }
+            BufferPool pool = Database.getBufferPool();
+            System.out.println("BufferPool: " + pool.getNumPages() + " pages, "
+                    + pool.getNumResidentPages() + " resident, "
+                    + pool.getMemoryUsed() / 1024 + " KB heap, "
+                    + pool.getReplacementPolicyType() + " replacement");
+            System.out.print(pool.getStats());
+            for (String name : pool.getPoolNames()) {
+                BufferPool named = pool.getPool(name);
+                System.out.println();
+                System.out.println("BufferPool " + name + ": " + named.getNumPages() + " pages, "
+                        + named.getNumResidentPages() + " resident, "
+                        + named.getMemoryUsed() / 1024 + " KB heap, "
+                        + named.getReplacementPolicyType() + " replacement");
+                System.out.print(named.getStats());
+            }
+        }
+        else if (args[0].equals("scanbench")) {
+            // compare the scan throughput of the FileChannel and memory-mapped
+            // read paths; pages are read straight from the file, bypassing the pool
+            if (args.length<3) {
+                System.err.println("usage: scanbench <data file> <columns> [passes]");
+                return;
+            }
+            File tableFile = new File(args[1]);
+            int columns = Integer.parseInt(args[2]);
+            int passes = args.length>3 ? Integer.parseInt(args[3]) : 5;
+            HeapFile channel = Utility.openHeapFile(columns, tableFile);
+            HeapFile mapped = new HeapFile(tableFile, channel.getTupleDesc(), true);
+            HeapFile[] files = { channel, mapped };
+            String[] names = { "FileChannel", "mmap" };
+            long[] best = { Long.MAX_VALUE, Long.MAX_VALUE };
+            long tuples = 0;
+            // the first pass also warms the OS cache; report the best pass
+            for (int pass=0; pass<passes; pass++) {
+                for (int i=0; i<files.length; i++) {
+                    long start = System.nanoTime();
+                    tuples = scan(files[i], 1);
+                    best[i] = Math.min(best[i], System.nanoTime()-start);
+                }
+            }
+            int pages = channel.numPages();
+            double mb = (double) pages * channel.getPageSize() / (1 << 20);
+            for (int i=0; i<files.length; i++) {
+                double secs = best[i] / 1e9;
+                System.out.println(String.format("%-12s %8d pages %10d tuples %8.1f ms %8.1f MB/s %10.0f pages/s",
+                        names[i], pages, tuples, secs * 1000, mb / secs, pages / secs));
+            }
+            mapped.close();
+            channel.close();
+        }
+        else if (args[0].equals("checksumbench")) {
+            // compare the scan throughput of tables with and without page
+            // checksums, reading pages straight from the file
+            int pages = args.length>1 ? Integer.parseInt(args[1]) : 4096;
+            int passes = args.length>2 ? Integer.parseInt(args[2]) : 5;
+            String[] names = { "plain", "checksums" };
+            HeapFile[] files = new HeapFile[2];
+            for (int i=0; i<files.length; i++) {
+                File f = File.createTempFile("checksumbench", ".dat");
+                f.deleteOnExit();
+                files[i] = new HeapFile(f, Utility.getTupleDesc(2), false, i==1);
+                Database.getCatalog().addTable(files[i], names[i]);
+                fill(files[i], pages);
+            }
+            long[] best = { Long.MAX_VALUE, Long.MAX_VALUE };
+            for (int pass=0; pass<passes; pass++) {
+                for (int i=0; i<files.length; i++) {
+                    long start = System.nanoTime();
+                    scan(files[i], 1);
+                    best[i] = Math.min(best[i], System.nanoTime()-start);
+                }
+            }
+            double mb = (double) pages * files[0].getPageSize() / (1 << 20);
+            for (int i=0; i<files.length; i++) {
+                double secs = best[i] / 1e9;
+                System.out.println(String.format("%-12s %8d pages %8.1f ms %8.1f MB/s",
+                        names[i], pages, secs * 1000, mb / secs));
+            }
+            System.out.println(String.format("overhead: %.1f%%",
+                    100.0 * (best[1] - best[0]) / best[0]));
+            for (HeapFile f : files)
+                f.close();
+        }
+        else if (args[0].equals("compress")) {
+            // write a compressed copy of a table and compare the size and the
+            // scan time of both; pages are read straight from the files in runs
+            if (args.length<4) {
+                System.err.println("usage: compress <data file> <columns> <output file> [level] [passes]");
+                return;
+            }
+            HeapFile plain = Utility.openHeapFile(Integer.parseInt(args[2]), new File(args[1]));
+            int level = args.length>4 ? Integer.parseInt(args[4]) : JZlib.Z_DEFAULT_COMPRESSION;
+            int passes = args.length>5 ? Integer.parseInt(args[5]) : 5;
+            long start = System.nanoTime();
+            CompressedHeapFile compressed = CompressedHeapFile.compress(plain, new File(args[3]), level);
+            compressed.close();
+            Database.getCatalog().addTable(compressed, "compressed");
+            System.out.println(String.format("compressed %d pages in %.1f ms: %d KB to %d KB (%.1f%%)",
+                    plain.numPages(), (System.nanoTime()-start) / 1e6,
+                    plain.getFile().length() / 1024, compressed.getCompressedSize() / 1024,
+                    100.0 * compressed.getCompressedSize() / Math.max(1, plain.getFile().length())));
+            DbFile[] files = { plain, compressed };
+            String[] names = { "plain", "compressed" };
+            long[] best = { Long.MAX_VALUE, Long.MAX_VALUE };
+            long tuples = 0;
+            for (int pass=0; pass<passes; pass++) {
+                for (int i=0; i<files.length; i++) {
+                    start = System.nanoTime();
+                    tuples = scan(files[i], 64);
+                    best[i] = Math.min(best[i], System.nanoTime()-start);
+                }
+            }
+            for (int i=0; i<files.length; i++) {
+                System.out.println(String.format("%-12s %10d tuples %8.1f ms",
+                        names[i], tuples, best[i] / 1e6));
+            }
+            compressed.close();
+            plain.close();
+        }
+        else if (args[0].equals("parallelscan")) {
+            // compare a sequential scan through the pool with parallel scans;
+            // the pool holds the whole table so that only decoding is measured
+            if (args.length<3) {
+                System.err.println("usage: parallelscan <data file> <columns> [workers] [passes]");
+                return;
+            }
+            HeapFile table = Utility.openHeapFile(Integer.parseInt(args[2]), new File(args[1]));
+            int workers = args.length>3 ? Integer.parseInt(args[3])
+                    : Runtime.getRuntime().availableProcessors();
+            int passes = args.length>4 ? Integer.parseInt(args[4]) : 5;
+            Database.resetBufferPool(table.numPages() + 64);
+            Database.getBufferPool().setBulkReadThreshold(1);
+            TransactionId tid = new TransactionId();
+            String[] names = { "sequential", "parallel 1", "parallel " + workers };
+            long[] best = { Long.MAX_VALUE, Long.MAX_VALUE, Long.MAX_VALUE };
+            long[] tuples = new long[3];
+            // the first pass also loads the pool; report the best pass
+            for (int pass=0; pass<passes; pass++) {
+                for (int i=0; i<names.length; i++) {
+                    long start = System.nanoTime();
+                    long n = 0;
+                    if (i == 0) {
+                        DbFileIterator it = table.iterator(tid);
+                        it.open();
+                        while (it.hasNext()) {
+                            it.next();
+                            n++;
+                        }
+                        it.close();
+                    } else {
+                        ParallelScan scan = new ParallelScan(tid, table.getId(), "t",
+                                i == 1 ? 1 : workers);
+                        scan.open();
+                        while (scan.hasNext()) {
+                            scan.next();
+                            n++;
+                        }
+                        scan.close();
+                    }
+                    best[i] = Math.min(best[i], System.nanoTime()-start);
+                    tuples[i] = n;
+                }
+            }
+            Database.getBufferPool().transactionComplete(tid);
+            for (int i=0; i<names.length; i++) {
+                System.out.println(String.format("%-12s %10d tuples %8.1f ms %6.2fx",
+                        names[i], tuples[i], best[i] / 1e6, (double) best[0] / best[i]));
+            }
+            table.close();
+        }
         else if (args[0].equals("parser")) {
             // Strip the first argument and call the parser
             String[] newargs = new String[args.length-1];
@@ -97,4 +302,35 @@ public class SimpleDb {
         }
     }
 
+    /** Appends the specified number of full pages of random tuples to f. */
+    private static void fill(HeapFile f, int pages) throws IOException, DbException {
+        Random r = new Random(0);
+        for (int i=0; i<pages; i++) {
+            HeapPage page = new HeapPage(new HeapPageId(f.getId(), f.appendPage()),
+                    HeapPage.createEmptyPageData(f.getPageSize()));
+            while (page.getNumEmptySlots() > 0)
+                page.insertTuple(Utility.getHeapTuple(new int[] { r.nextInt(), r.nextInt() }));
+            f.writePage(page);
+        }
+    }
+
+    /**
+     * Reads and decodes every page of f, run pages per call.
+     * @return the number of tuples
+     */
+    private static long scan(DbFile f, int run) {
+        long tuples = 0;
+        int n = f.numPages();
+        for (int i=0; i<n; i+=run) {
+            for (Page p : f.readPages(new HeapPageId(f.getId(), i), Math.min(run, n-i))) {
+                Iterator<Tuple> it = ((HeapPage) p).iterator();
+                while (it.hasNext()) {
+                    it.next();
+                    tuples++;
+                }
+            }
+        }
+        return tuples;
+    }
+
 }
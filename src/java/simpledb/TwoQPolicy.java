@@ -0,0 +1,102 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * Full 2Q replacement (Johnson and Shasha). Pages seen for the first time go
+ * to a FIFO queue A1in; when they are evicted from there their ids are kept
+ * in a ghost queue A1out. A page that is loaded again while remembered in
+ * A1out is considered hot and goes to the LRU queue Am. Victims are taken
+ * from A1in while it is larger than its share of the pool, otherwise from
+ * the cold end of Am. Pages touched only once, such as those of a large
+ * scan, therefore never push hot pages out of Am.
+ */
+public class TwoQPolicy implements ReplacementPolicy {
+
+    private final int kin;
+
+    private final int kout;
+
+    private final PageId[] framePids;
+
+    /** Frames of pages seen once, in load order. */
+    private final LinkedHashSet<Integer> a1in;
+
+    /** Frames of hot pages, least recently used first. */
+    private final LinkedHashSet<Integer> am;
+
+    /** Ids of pages recently evicted from A1in, oldest first. */
+    private final LinkedHashSet<PageId> a1out;
+
+    public TwoQPolicy(int numFrames) {
+        // the parameters recommended in the 2Q paper
+        this(numFrames, Math.max(1, numFrames / 4), Math.max(1, numFrames / 2));
+    }
+
+    /**
+     * @param kin the size A1in may grow to before it supplies victims
+     * @param kout the number of page ids remembered in A1out
+     */
+    public TwoQPolicy(int numFrames, int kin, int kout) {
+        this.kin = kin;
+        this.kout = kout;
+        this.framePids = new PageId[numFrames];
+        this.a1in = new LinkedHashSet<Integer>();
+        this.am = new LinkedHashSet<Integer>();
+        this.a1out = new LinkedHashSet<PageId>();
+    }
+
+    public void pageLoaded(int frame, PageId pid) {
+        framePids[frame] = pid;
+        if (a1out.remove(pid)) {
+            am.add(frame);
+        } else {
+            a1in.add(frame);
+        }
+    }
+
+    public void pageAccessed(int frame) {
+        // hits in A1in are deliberately ignored: they are usually
+        // correlated references shortly after the first one
+        if (am.remove(frame)) {
+            am.add(frame);
+        }
+    }
+
+    public void pageRemoved(int frame, PageId pid) {
+        if (a1in.remove(frame)) {
+            a1out.add(framePids[frame]);
+            if (a1out.size() > kout) {
+                Iterator<PageId> it = a1out.iterator();
+                it.next();
+                it.remove();
+            }
+        } else {
+            am.remove(frame);
+        }
+        framePids[frame] = null;
+    }
+
+    private static int firstEvictable(Set<Integer> queue, FrameFilter filter) {
+        for (Integer frame : queue) {
+            if (filter.isEvictable(frame)) {
+                return frame;
+            }
+        }
+        return -1;
+    }
+
+    public int chooseVictim(FrameFilter filter) {
+        int victim = -1;
+        if (a1in.size() > kin || am.isEmpty()) {
+            victim = firstEvictable(a1in, filter);
+        }
+        if (victim == -1) {
+            victim = firstEvictable(am, filter);
+        }
+        if (victim == -1) {
+            victim = firstEvictable(a1in, filter);
+        }
+        return victim;
+    }
+}
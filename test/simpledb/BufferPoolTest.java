@@ -0,0 +1,797 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import junit.framework.JUnit4TestAdapter;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class BufferPoolTest extends SimpleDbTestBase {
+
+    /** Counts the number of read and write operations. */
+    static class InstrumentedHeapFile extends HeapFile {
+        public int readCount = 0;
+
+        public int readCalls = 0;
+
+        public int writeCalls = 0;
+
+        public int pagesWritten = 0;
+
+        /** Milliseconds every read takes, to simulate a slow disk. */
+        public int readDelay = 0;
+
+        public InstrumentedHeapFile(File f, TupleDesc td) {
+            super(f, td);
+        }
+
+        @Override
+        public Page readPage(PageId pid) throws NoSuchElementException {
+            synchronized (this) {
+                readCount += 1;
+                readCalls += 1;
+            }
+            if (readDelay > 0) {
+                try {
+                    Thread.sleep(readDelay);
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+            return super.readPage(pid);
+        }
+
+        @Override
+        public List<Page> readPages(PageId first, int count) {
+            synchronized (this) {
+                readCount += count;
+                readCalls += 1;
+            }
+            return super.readPages(first, count);
+        }
+
+        @Override
+        public void writePage(Page page) throws IOException {
+            synchronized (this) {
+                writeCalls += 1;
+                pagesWritten += 1;
+            }
+            super.writePage(page);
+        }
+
+        @Override
+        public void writePages(int firstPage, List<byte[]> images) throws IOException {
+            synchronized (this) {
+                writeCalls += 1;
+                pagesWritten += images.size();
+            }
+            super.writePages(firstPage, images);
+        }
+    }
+
+    /** Creates a single-column table of the specified number of full pages. */
+    static InstrumentedHeapFile createTable(int pages) throws Exception {
+        File f = SystemTestUtil.createRandomHeapFileUnopened(1, 992 * pages,
+                1000, null, new ArrayList<ArrayList<Integer>>());
+        InstrumentedHeapFile table = new InstrumentedHeapFile(f, Utility.getTupleDesc(1));
+        Database.getCatalog().addTable(table, SystemTestUtil.getUUID());
+        return table;
+    }
+
+    /** Scans the whole table and returns the number of tuples seen. */
+    static int scan(HeapFile table) throws Exception {
+        TransactionId tid = new TransactionId();
+        int count = scan(table, tid);
+        Database.getBufferPool().transactionComplete(tid);
+        return count;
+    }
+
+    /** Scans the whole table for tid and returns the number of tuples seen. */
+    static int scan(HeapFile table, TransactionId tid) throws Exception {
+        DbFileIterator it = table.iterator(tid);
+        it.open();
+        int count = 0;
+        while (it.hasNext()) {
+            it.next();
+            count++;
+        }
+        it.close();
+        return count;
+    }
+
+    @Test public void bulkReadStrategyOnlyForLargeTables() {
+        BufferPool bp = Database.resetBufferPool(16);
+        assertNull(bp.getBulkReadStrategy(16));
+        assertNotNull(bp.getBulkReadStrategy(17));
+        bp.setBulkReadThreshold(0.5);
+        assertNotNull(bp.getBulkReadStrategy(9));
+        assertEquals(2, bp.getBulkReadStrategy(9).getRingSize());
+    }
+
+    /** A scan larger than the pool must not push out the pages of a small hot table. */
+    @Test public void largeScanDoesNotEvictHotPages() throws Exception {
+        Database.resetBufferPool(16);
+        InstrumentedHeapFile hot = createTable(4);
+        InstrumentedHeapFile big = createTable(40);
+
+        assertEquals(992 * 4, scan(hot));
+        assertEquals(4, hot.readCount);
+
+        assertEquals(992 * 40, scan(big));
+        assertEquals(40, big.readCount);
+
+        hot.readCount = 0;
+        assertEquals(992 * 4, scan(hot));
+        assertEquals(0, hot.readCount);
+    }
+
+    @Test public void readAheadLoadsNextPages() throws Exception {
+        BufferPool bp = Database.resetBufferPool(50);
+        InstrumentedHeapFile table = createTable(30);
+        table.readDelay = 5;
+
+        assertEquals(992 * 30, scan(table));
+        // every page is read exactly once, by the scan or ahead of it
+        assertEquals(30, table.readCount);
+        ReadAhead ra = bp.getReadAhead();
+        assertTrue(ra.getPrefetchedCount() > 0);
+        assertTrue(ra.getUsedCount() > 0);
+        assertEquals(0, ra.getWastedCount());
+    }
+
+    /** Read-ahead reads its windows in runs rather than page by page. */
+    @Test public void readAheadReadsRuns() throws Exception {
+        BufferPool bp = Database.resetBufferPool(100);
+        InstrumentedHeapFile table = createTable(64);
+
+        assertEquals(992 * 64, scan(table));
+        assertEquals(64, table.readCount);
+        assertTrue("" + table.readCalls, table.readCalls < 32);
+        assertTrue(bp.getReadAhead().getPrefetchedCount() > 32);
+    }
+
+    @Test public void readAheadIgnoresRandomAccess() throws Exception {
+        BufferPool bp = Database.resetBufferPool(50);
+        InstrumentedHeapFile table = createTable(10);
+        TransactionId tid = new TransactionId();
+        int[] order = new int[] {7, 2, 9, 0, 5, 3};
+        for (int pgNo : order)
+            bp.getPage(tid, new HeapPageId(table.getId(), pgNo), Permissions.READ_ONLY);
+        assertEquals(order.length, table.readCount);
+        assertEquals(0, bp.getReadAhead().getPrefetchedCount());
+    }
+
+    /** Many threads reading random pages through a small sharded pool. */
+    @Test public void concurrentGetPageAcrossShards() throws Exception {
+        final BufferPool bp = new BufferPool(64, ReplacementPolicyType.CLOCK, 4);
+        assertEquals(4, bp.getNumShards());
+        final InstrumentedHeapFile table = createTable(100);
+        final ArrayList<Throwable> errors = new ArrayList<Throwable>();
+        Thread[] threads = new Thread[8];
+        for (int i = 0; i < threads.length; i++) {
+            final java.util.Random r = new java.util.Random(i);
+            threads[i] = new Thread() {
+                public void run() {
+                    try {
+                        TransactionId tid = new TransactionId();
+                        for (int j = 0; j < 2000; j++) {
+                            HeapPageId pid = new HeapPageId(table.getId(), r.nextInt(100));
+                            Page p = bp.getPage(tid, pid, Permissions.READ_ONLY);
+                            assertEquals(pid, p.getId());
+                        }
+                    } catch (Throwable t) {
+                        synchronized (errors) {
+                            errors.add(t);
+                        }
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        for (Thread t : threads)
+            t.join();
+        assertEquals(errors.toString(), 0, errors.size());
+        assertTrue(bp.getNumResidentPages() <= 64);
+        assertEquals(8 * 2000, bp.getHits() + bp.getMisses());
+        bp.close();
+    }
+
+    /** Concurrent hits on all shards with read-ahead on schedule nothing. */
+    @Test public void concurrentHitsWithReadAhead() throws Exception {
+        final BufferPool bp = new BufferPool(64, ReplacementPolicyType.CLOCK, 4);
+        final InstrumentedHeapFile table = createTable(32);
+        bp.getReadAhead().setEnabled(false);
+        for (int i = 0; i < 32; i++)
+            bp.getPage(null, new HeapPageId(table.getId(), i), Permissions.READ_ONLY);
+        bp.getReadAhead().setEnabled(true);
+        long misses = bp.getMisses();
+        long prefetched = bp.getReadAhead().getPrefetchedCount();
+        final ArrayList<Throwable> errors = new ArrayList<Throwable>();
+        Thread[] threads = new Thread[8];
+        for (int i = 0; i < threads.length; i++) {
+            final java.util.Random r = new java.util.Random(i);
+            threads[i] = new Thread() {
+                public void run() {
+                    try {
+                        for (int j = 0; j < 5000; j++) {
+                            HeapPageId pid = new HeapPageId(table.getId(), r.nextInt(32));
+                            assertEquals(pid, bp.getPage(null, pid, Permissions.READ_ONLY).getId());
+                        }
+                    } catch (Throwable t) {
+                        synchronized (errors) {
+                            errors.add(t);
+                        }
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        for (Thread t : threads)
+            t.join();
+        assertEquals(errors.toString(), 0, errors.size());
+        assertEquals(misses, bp.getMisses());
+        assertEquals(prefetched, bp.getReadAhead().getPrefetchedCount());
+        bp.close();
+    }
+
+    @Test public void pinnedPageIsNeverReread() throws Exception {
+        BufferPool bp = Database.resetBufferPool(16);
+        bp.getReadAhead().setEnabled(false);
+        InstrumentedHeapFile table = createTable(40);
+        TransactionId tid = new TransactionId();
+        HeapPageId first = new HeapPageId(table.getId(), 0);
+        Page pinned = bp.pinPage(tid, first, Permissions.READ_ONLY, null);
+        assertEquals(1, bp.getPinCount(first));
+        for (int i = 1; i < 40; i++)
+            bp.getPage(tid, new HeapPageId(table.getId(), i), Permissions.READ_ONLY);
+        assertTrue(pinned == bp.getPage(tid, first, Permissions.READ_ONLY));
+        assertEquals(40, table.readCount);
+        bp.unpinPage(pinned);
+        assertEquals(0, bp.getNumPinnedPages());
+        assertEquals(1, bp.getPinHoldCount());
+        assertTrue(bp.getMaxPinHoldNanos() > 0);
+    }
+
+    @Test public void allFramesPinned() throws Exception {
+        BufferPool bp = Database.resetBufferPool(4);
+        bp.getReadAhead().setEnabled(false);
+        InstrumentedHeapFile table = createTable(5);
+        TransactionId tid = new TransactionId();
+        Page[] pinned = new Page[4];
+        for (int i = 0; i < 4; i++)
+            pinned[i] = bp.pinPage(tid, new HeapPageId(table.getId(), i), Permissions.READ_ONLY, null);
+        try {
+            bp.getPage(tid, new HeapPageId(table.getId(), 4), Permissions.READ_ONLY);
+            fail("expected DbException");
+        } catch (DbException e) {
+            // every frame is pinned
+        }
+        bp.unpinPage(pinned[2]);
+        bp.getPage(tid, new HeapPageId(table.getId(), 4), Permissions.READ_ONLY);
+        assertEquals(0, bp.getPinCount(new HeapPageId(table.getId(), 2)));
+    }
+
+    /** An unpin after a discard does not take the pin of the page read again. */
+    @Test public void unpinAfterDiscardKeepsNewPins() throws Exception {
+        BufferPool bp = Database.resetBufferPool(16);
+        bp.getReadAhead().setEnabled(false);
+        InstrumentedHeapFile table = createTable(2);
+        TransactionId tid = new TransactionId();
+        HeapPageId pid = new HeapPageId(table.getId(), 0);
+        Page stale = bp.pinPage(tid, pid, Permissions.READ_ONLY, null);
+        bp.discardPage(pid);
+        Page reread = bp.pinPage(tid, pid, Permissions.READ_ONLY, null);
+        assertTrue(stale != reread);
+        bp.unpinPage(stale);
+        assertEquals(1, bp.getPinCount(pid));
+        bp.unpinPage(reread);
+        assertEquals(0, bp.getPinCount(pid));
+        bp.unpinPage(stale);
+        assertEquals(0, bp.getPinCount(pid));
+    }
+
+    /** Hits come from the page table; discarded frames go back on the free list. */
+    @Test public void discardedFramesAreReused() throws Exception {
+        BufferPool bp = Database.resetBufferPool(4);
+        bp.getReadAhead().setEnabled(false);
+        InstrumentedHeapFile table = createTable(8);
+        TransactionId tid = new TransactionId();
+        Page[] read = new Page[4];
+        for (int i = 0; i < 4; i++)
+            read[i] = bp.getPage(tid, new HeapPageId(table.getId(), i), Permissions.READ_ONLY);
+        for (int i = 0; i < 4; i++)
+            assertTrue(read[i] == bp.getPage(tid, new HeapPageId(table.getId(), i), Permissions.READ_ONLY));
+        assertEquals(4, table.readCount);
+        assertEquals(4, bp.getNumResidentPages());
+
+        bp.discardPage(new HeapPageId(table.getId(), 1));
+        bp.discardPage(new HeapPageId(table.getId(), 2));
+        assertEquals(2, bp.getNumResidentPages());
+        assertFalse(bp.isResident(new HeapPageId(table.getId(), 1)));
+
+        // the two free frames take the next pages without evicting
+        bp.getPage(tid, new HeapPageId(table.getId(), 4), Permissions.READ_ONLY);
+        bp.getPage(tid, new HeapPageId(table.getId(), 5), Permissions.READ_ONLY);
+        assertEquals(0, bp.getStats().getTotal().getEvictions());
+        assertEquals(4, bp.getNumResidentPages());
+        assertTrue(bp.isResident(new HeapPageId(table.getId(), 0)));
+        assertTrue(bp.isResident(new HeapPageId(table.getId(), 3)));
+
+        bp.getPage(tid, new HeapPageId(table.getId(), 6), Permissions.READ_ONLY);
+        assertEquals(1, bp.getStats().getTotal().getEvictions());
+        assertEquals(4, bp.getNumResidentPages());
+        assertEquals(7, table.readCount);
+        bp.transactionComplete(tid);
+    }
+
+    @Test public void scanReleasesItsPins() throws Exception {
+        BufferPool bp = Database.resetBufferPool(16);
+        InstrumentedHeapFile table = createTable(10);
+        assertEquals(992 * 10, scan(table));
+        assertEquals(10, bp.getTotalPins());
+        assertEquals(10, bp.getPinHoldCount());
+        assertEquals(0, bp.getNumPinnedPages());
+    }
+
+    @Test public void offHeapPagesAreViews() throws Exception {
+        BufferPool bp = Database.setOffHeap(true);
+        assertTrue(bp.isOffHeap());
+        InstrumentedHeapFile table = createTable(3);
+        TransactionId tid = new TransactionId();
+        HeapPageId pid = new HeapPageId(table.getId(), 1);
+        HeapPage page = (HeapPage) bp.getPage(tid, pid, Permissions.READ_ONLY);
+        assertTrue(page.isView());
+        HeapPage decoded = (HeapPage) table.readPage(pid);
+        assertTrue(java.util.Arrays.equals(decoded.getPageData(), page.getPageData()));
+        java.util.Iterator<Tuple> expected = decoded.iterator();
+        java.util.Iterator<Tuple> actual = page.iterator();
+        while (expected.hasNext())
+            assertEquals(expected.next().toString(), actual.next().toString());
+        assertTrue(!actual.hasNext());
+        assertEquals(decoded.getNumEmptySlots(), page.getNumEmptySlots());
+    }
+
+    /** Dirty pages evicted from an off-heap pool are written intact. */
+    @Test public void offHeapEvictionKeepsPagesIntact() throws Exception {
+        Database.setOffHeap(true);
+        BufferPool bp = Database.resetBufferPool(8);
+        assertTrue(bp.isOffHeap());
+        bp.getBackgroundWriter().setWatermarks(1.0, 1.0);
+        bp.getReadAhead().setEnabled(false);
+        InstrumentedHeapFile table = createTable(20);
+        TransactionId tid = new TransactionId();
+        Page[] held = new Page[20];
+        byte[][] before = new byte[20][];
+        for (int i = 0; i < 20; i++) {
+            // every frame is dirty, so every read evicts a dirty page
+            held[i] = bp.getPage(tid, new HeapPageId(table.getId(), i), Permissions.READ_WRITE);
+            held[i].markDirty(true, tid);
+            before[i] = held[i].getPageData();
+        }
+        assertEquals(12, table.pagesWritten);
+        for (int i = 0; i < 20; i++)
+            assertTrue(java.util.Arrays.equals(before[i], held[i].getPageData()));
+        bp.flushAllPages();
+        for (int i = 0; i < 20; i++) {
+            Page onDisk = table.readPage(new HeapPageId(table.getId(), i));
+            assertTrue(java.util.Arrays.equals(before[i], onDisk.getPageData()));
+        }
+        bp.transactionComplete(tid);
+        assertEquals(992 * 20, scan(table));
+    }
+
+    /** A commit writes the pages the transaction dirtied, in every pool. */
+    @Test public void commitWritesOnlyItsOwnPages() throws Exception {
+        BufferPool bp = Database.resetBufferPool(16);
+        bp.getReadAhead().setEnabled(false);
+        bp.getBackgroundWriter().setWatermarks(1.0, 1.0);
+        BufferPool hotPool = bp.createPool("hot", 4, ReplacementPolicyType.LRU);
+        hotPool.getBackgroundWriter().setWatermarks(1.0, 1.0);
+        InstrumentedHeapFile table = createTable(8);
+        InstrumentedHeapFile hot = createTable(2);
+        Database.getCatalog().setBufferPool(hot.getId(), "hot");
+        TransactionId other = dirty(bp, table, 0, 1, 2, 3);
+        TransactionId tid = dirty(bp, table, 5);
+        Page p = bp.getPage(tid, new HeapPageId(hot.getId(), 1), Permissions.READ_WRITE);
+        p.markDirty(true, tid);
+        bp.getPage(tid, new HeapPageId(table.getId(), 6), Permissions.READ_ONLY);
+        bp.transactionComplete(tid);
+        assertEquals(1, table.pagesWritten);
+        assertEquals(1, hot.pagesWritten);
+        assertNull(p.isDirty());
+        assertEquals(4, bp.getDirtyPages(other).size());
+        bp.transactionComplete(other, false);
+    }
+
+    /** A page is dirty by the time the file that changed it lets go of its pin. */
+    @Test public void changedPagesAreDirtyWhenUnpinned() throws Exception {
+        BufferPool bp = Database.resetBufferPool(50);
+        InstrumentedHeapFile table = createTable(2);
+        TransactionId tid = new TransactionId();
+        Page inserted = table.insertTuple(tid, Utility.getHeapTuple(1, 1)).get(0);
+        assertEquals(tid, inserted.isDirty());
+        assertEquals(0, bp.getPinCount(inserted.getId()));
+
+        DbFileIterator it = table.iterator(tid);
+        it.open();
+        Tuple victim = it.next();
+        it.close();
+        Page deleted = table.deleteTuple(tid, victim);
+        assertEquals(tid, deleted.isDirty());
+        assertEquals(0, bp.getPinCount(deleted.getId()));
+        bp.transactionComplete(tid);
+        assertEquals(992 * 2, scan(table));
+    }
+
+    /** An abort undoes changes the background writer already put on disk. */
+    @Test public void abortUndoesWrittenPages() throws Exception {
+        BufferPool bp = Database.resetBufferPool(50);
+        InstrumentedHeapFile table = createTable(2);
+        TransactionId tid = new TransactionId();
+        bp.insertTuple(tid, table.getId(), Utility.getHeapTuple(1, 1));
+        DbFileIterator it = table.iterator(tid);
+        it.open();
+        bp.deleteTuple(tid, it.next());
+        bp.deleteTuple(tid, it.next());
+        it.close();
+        assertEquals(992 * 2 - 1, scan(table, tid));
+        BackgroundWriter writer = bp.getBackgroundWriter();
+        writer.setWatermarks(0.0, 0.0);
+        writer.clean();
+        assertEquals(0, bp.getDirtyPages(null).size());
+        assertEquals(2, table.pagesWritten);
+
+        bp.transactionComplete(tid, false);
+        assertEquals(992 * 2, scan(table));
+        Database.resetBufferPool(50);
+        assertEquals(992 * 2, scan(table));
+    }
+
+    /** An off-heap pool holds pages of different sizes side by side. */
+    @Test public void offHeapPoolMixesPageSizes() throws Exception {
+        Database.setOffHeap(true);
+        BufferPool bp = Database.resetBufferPool(8);
+        bp.getReadAhead().setEnabled(false);
+        long before = bp.getOffHeapBytes();
+        InstrumentedHeapFile table = createTable(4);
+        int pageSize = 16 * 1024;
+        File f = File.createTempFile("widepages", ".dat");
+        f.deleteOnExit();
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        for (int i = 0; i < 10000; i++)
+            tuples.add(new ArrayList<Integer>(java.util.Arrays.asList(i)));
+        HeapFileEncoder.convert(tuples, f, pageSize, 1);
+        HeapFile wide = new HeapFile(f, Utility.getTupleDesc(1), false, false, pageSize);
+        Database.getCatalog().addTable(wide, SystemTestUtil.getUUID());
+        assertEquals(3, wide.numPages());
+
+        TransactionId tid = new TransactionId();
+        for (int i = 0; i < 3; i++) {
+            HeapPage small = (HeapPage) bp.getPage(tid, new HeapPageId(table.getId(), i),
+                    Permissions.READ_ONLY);
+            HeapPageId pid = new HeapPageId(wide.getId(), i);
+            HeapPage large = (HeapPage) bp.getPage(tid, pid, Permissions.READ_ONLY);
+            assertTrue(small.isView());
+            assertTrue(large.isView());
+            assertEquals(pageSize, large.getPageSize());
+            assertTrue(java.util.Arrays.equals(wide.readPageData(pid), large.getPageData()));
+        }
+        assertTrue(bp.getOffHeapBytes() >= before + 3 * pageSize);
+        bp.transactionComplete(tid);
+        assertEquals(10000, scan(wide));
+
+        // the arena of the wide pages goes away with the last of them
+        for (int i = 0; i < 3; i++)
+            bp.discardPage(new HeapPageId(wide.getId(), i));
+        assertEquals(before, bp.getOffHeapBytes());
+        assertEquals(992 * 4, scan(table));
+    }
+
+    @Test public void resizeKeepsCachedPages() throws Exception {
+        BufferPool bp = Database.resetBufferPool(16);
+        bp.getReadAhead().setEnabled(false);
+        bp.getBackgroundWriter().setWatermarks(1.0, 1.0);
+        InstrumentedHeapFile table = createTable(40);
+        TransactionId tid = new TransactionId();
+        for (int i = 0; i < 16; i++) {
+            Page p = bp.getPage(tid, new HeapPageId(table.getId(), i), Permissions.READ_WRITE);
+            if (i % 2 == 0)
+                p.markDirty(true, tid);
+        }
+
+        // grow: 16 more pages fit without evicting any
+        bp.resize(32);
+        assertEquals(32, bp.getNumPages());
+        for (int i = 16; i < 32; i++)
+            bp.getPage(tid, new HeapPageId(table.getId(), i), Permissions.READ_ONLY);
+        assertEquals(32, bp.getNumResidentPages());
+        assertEquals(0, table.pagesWritten);
+        table.readCount = 0;
+        for (int i = 0; i < 32; i++)
+            bp.getPage(tid, new HeapPageId(table.getId(), i), Permissions.READ_ONLY);
+        assertEquals(0, table.readCount);
+
+        // shrink: surplus pages are evicted, dirty ones written first
+        bp.resize(8);
+        bp.awaitResize();
+        assertEquals(8, bp.getNumPages());
+        assertEquals(8, bp.getNumResidentPages());
+        assertTrue(table.pagesWritten > 0);
+        assertEquals(8, table.pagesWritten + bp.getDirtyPages(null).size());
+    }
+
+    @Test public void shrinkWaitsForPinnedPages() throws Exception {
+        Database.setOffHeap(true);
+        BufferPool bp = Database.resetBufferPool(16);
+        bp.getReadAhead().setEnabled(false);
+        long before = bp.getOffHeapBytes();
+        InstrumentedHeapFile table = createTable(16);
+        TransactionId tid = new TransactionId();
+        Page[] pinned = new Page[16];
+        for (int i = 0; i < 16; i++)
+            pinned[i] = bp.pinPage(tid, new HeapPageId(table.getId(), i), Permissions.READ_ONLY, null);
+        bp.resize(4);
+        Thread.sleep(50);
+        assertEquals(16, bp.getNumResidentPages());
+        for (int i = 0; i < 16; i++)
+            bp.unpinPage(pinned[i]);
+        bp.awaitResize();
+        assertEquals(4, bp.getNumResidentPages());
+        assertEquals(992 * 16, scan(table));
+        bp.resize(600);
+        assertTrue(bp.getOffHeapBytes() > before);
+    }
+
+    @Test public void memoryBudgetBoundsHeapBytes() throws Exception {
+        BufferPool bp = Database.resetBufferPool(50);
+        bp.getReadAhead().setEnabled(false);
+        InstrumentedHeapFile table = createTable(10);
+        TransactionId tid = new TransactionId();
+        HeapPage first = (HeapPage) bp.getPage(tid, new HeapPageId(table.getId(), 0),
+                Permissions.READ_ONLY);
+        // decoded tuples and the before image outweigh the page on disk
+        long pageBytes = first.getMemoryFootprint();
+        assertTrue(pageBytes > 2 * BufferPool.PAGE_SIZE);
+        assertEquals(pageBytes, bp.getMemoryUsed());
+
+        bp.setMemoryBudget(3 * pageBytes + pageBytes / 2);
+        for (int i = 0; i < 10; i++)
+            bp.getPage(tid, new HeapPageId(table.getId(), i), Permissions.READ_ONLY);
+        assertEquals(3, bp.getNumResidentPages());
+        assertTrue(bp.getMemoryUsed() <= bp.getMemoryBudget());
+
+        // lowering the budget evicts pages right away
+        bp.getPage(tid, new HeapPageId(table.getId(), 9), Permissions.READ_WRITE)
+            .markDirty(true, tid);
+        bp.setMemoryBudget(pageBytes);
+        assertEquals(1, bp.getNumResidentPages());
+        bp.setMemoryBudget(0);
+        bp.flushAllPages();
+        assertEquals(1, table.pagesWritten);
+    }
+
+    @Test public void memoryBudgetFitsMoreOffHeapPages() throws Exception {
+        Database.setOffHeap(true);
+        BufferPool bp = Database.resetBufferPool(50);
+        bp.getReadAhead().setEnabled(false);
+        InstrumentedHeapFile table = createTable(10);
+        TransactionId tid = new TransactionId();
+        bp.setMemoryBudget(2 * BufferPool.PAGE_SIZE);
+        for (int i = 0; i < 10; i++)
+            bp.getPage(tid, new HeapPageId(table.getId(), i), Permissions.READ_ONLY);
+        assertEquals(10, bp.getNumResidentPages());
+        assertTrue(bp.getMemoryUsed() <= bp.getMemoryBudget());
+    }
+
+    @Test public void warmRestartReloadsHottestPages() throws Exception {
+        BufferPool bp = Database.resetBufferPool(50);
+        bp.getReadAhead().setEnabled(false);
+        InstrumentedHeapFile table = createTable(20);
+        TransactionId tid = new TransactionId();
+        for (int pgNo : new int[] {11, 3, 7})
+            bp.getPage(tid, new HeapPageId(table.getId(), pgNo), Permissions.READ_ONLY);
+        File saved = File.createTempFile("pool", ".warm");
+        saved.deleteOnExit();
+        bp.saveResidentPages(saved);
+
+        // only the two most recently used pages fit
+        bp = Database.resetBufferPool(2);
+        BufferPoolWarmer warmer = bp.warmUp(saved);
+        warmer.join();
+        assertEquals(2, warmer.getLoadedCount());
+        assertEquals(1, warmer.getSkippedCount());
+        table.readCount = 0;
+        bp.getPage(tid, new HeapPageId(table.getId(), 3), Permissions.READ_ONLY);
+        bp.getPage(tid, new HeapPageId(table.getId(), 7), Permissions.READ_ONLY);
+        assertEquals(0, table.readCount);
+    }
+
+    /** Pages of tables bound to a named pool are saved and go back to it. */
+    @Test public void warmRestartRestoresNamedPools() throws Exception {
+        BufferPool bp = Database.resetBufferPool(4);
+        bp.getReadAhead().setEnabled(false);
+        bp.createPool("hot", 4, ReplacementPolicyType.LRU).getReadAhead().setEnabled(false);
+        InstrumentedHeapFile hot = createTable(3);
+        InstrumentedHeapFile big = createTable(10);
+        Database.getCatalog().setBufferPool(hot.getId(), "hot");
+        TransactionId tid = new TransactionId();
+        for (int i = 0; i < 3; i++)
+            bp.getPage(tid, new HeapPageId(hot.getId(), i), Permissions.READ_ONLY);
+        for (int i = 0; i < 10; i++)
+            bp.getPage(tid, new HeapPageId(big.getId(), i), Permissions.READ_ONLY);
+        File saved = File.createTempFile("pool", ".warm");
+        saved.deleteOnExit();
+        bp.saveResidentPages(saved);
+
+        bp = Database.resetBufferPool(4);
+        BufferPool hotPool = bp.createPool("hot", 4, ReplacementPolicyType.LRU);
+        BufferPoolWarmer warmer = bp.warmUp(saved);
+        warmer.join();
+        assertEquals(7, warmer.getLoadedCount());
+        assertEquals(0, warmer.getSkippedCount());
+        assertEquals(3, hotPool.getNumResidentPages());
+        assertEquals(4, bp.getNumResidentPages());
+        for (int i = 0; i < 3; i++)
+            assertTrue(hotPool.isResident(new HeapPageId(hot.getId(), i)));
+    }
+
+    @Test public void statsPerTable() throws Exception {
+        BufferPool bp = Database.resetBufferPool(8);
+        bp.getReadAhead().setEnabled(false);
+        bp.getBackgroundWriter().setWatermarks(1.0, 1.0);
+        InstrumentedHeapFile small = createTable(2);
+        InstrumentedHeapFile big = createTable(12);
+        TransactionId tid = new TransactionId();
+        for (int i = 0; i < 3; i++) {
+            bp.getPage(tid, new HeapPageId(small.getId(), 0), Permissions.READ_ONLY);
+            bp.getPage(tid, new HeapPageId(small.getId(), 1), Permissions.READ_ONLY);
+        }
+        dirty(bp, big, 0);
+        for (int i = 1; i < 12; i++)
+            bp.getPage(tid, new HeapPageId(big.getId(), i), Permissions.READ_ONLY);
+        bp.flushAllPages();
+
+        BufferPoolStats.TableStats s = bp.getStats().getTable(small.getId());
+        assertEquals(4, s.getHits());
+        assertEquals(2, s.getMisses());
+        assertEquals(2, s.getReadLatency().getCount());
+        BufferPoolStats.TableStats b = bp.getStats().getTable(big.getId());
+        assertEquals(12, b.getMisses());
+        assertEquals(1, b.getDirtyWrites());
+        assertEquals(1, b.getWriteLatency().getCount());
+        BufferPoolStats.TableStats total = bp.getStats().getTotal();
+        assertEquals(6, total.getEvictions());
+        assertEquals(14, total.getMisses());
+        assertTrue(bp.getStats().toString().contains("TOTAL"));
+    }
+
+    @Test public void latencyHistogramBuckets() {
+        LatencyHistogram h = new LatencyHistogram();
+        assertEquals(0, LatencyHistogram.bucketOf(1));
+        assertEquals(1, LatencyHistogram.bucketOf(2));
+        assertEquals(1, LatencyHistogram.bucketOf(3));
+        assertEquals(10, LatencyHistogram.bucketOf(1024));
+        for (int i = 0; i < 99; i++)
+            h.record(3000);
+        h.record(5000000);
+        assertEquals(100, h.getCount());
+        assertEquals(4, h.getPercentileMicros(0.5));
+        assertEquals(4, h.getPercentileMicros(0.99));
+        assertEquals(8192, h.getPercentileMicros(1.0));
+    }
+
+    @Test public void namedPoolIsolatesBoundTable() throws Exception {
+        BufferPool bp = Database.resetBufferPool(8);
+        bp.getReadAhead().setEnabled(false);
+        BufferPool hotPool = bp.createPool("hot", 4, ReplacementPolicyType.LRU);
+        hotPool.getReadAhead().setEnabled(false);
+        assertTrue(hotPool == bp.getPool("hot"));
+        InstrumentedHeapFile hot = createTable(3);
+        InstrumentedHeapFile big = createTable(20);
+        Database.getCatalog().setBufferPool(hot.getId(), "hot");
+        assertTrue(hotPool == bp.getPoolForTable(hot.getId()));
+        assertTrue(bp == bp.getPoolForTable(big.getId()));
+
+        TransactionId tid = new TransactionId();
+        for (int i = 0; i < 3; i++)
+            bp.getPage(tid, new HeapPageId(hot.getId(), i), Permissions.READ_ONLY);
+        for (int i = 0; i < 20; i++)
+            bp.getPage(tid, new HeapPageId(big.getId(), i), Permissions.READ_ONLY);
+        assertEquals(3, hotPool.getNumResidentPages());
+        assertEquals(8, bp.getNumResidentPages());
+        assertEquals(3, hotPool.getStats().getTable(hot.getId()).getMisses());
+        hot.readCount = 0;
+        assertEquals(992 * 3, scan(hot));
+        assertEquals(0, hot.readCount);
+
+        bp.dropPool("hot");
+        assertNull(bp.getPool("hot"));
+        assertTrue(bp == bp.getPoolForTable(hot.getId()));
+        assertEquals(992 * 3, scan(hot));
+        assertEquals(3, hot.readCount);
+    }
+
+    /**
+     * Reads the pages into the pool and marks them dirty.
+     *
+     * @return the transaction that holds the pages locked
+     */
+    static TransactionId dirty(BufferPool bp, HeapFile table, int... pages) throws Exception {
+        TransactionId tid = new TransactionId();
+        for (int pgNo : pages) {
+            Page p = bp.getPage(tid, new HeapPageId(table.getId(), pgNo), Permissions.READ_WRITE);
+            p.markDirty(true, tid);
+        }
+        return tid;
+    }
+
+    @Test public void flushAllPagesMergesAdjacentPages() throws Exception {
+        BufferPool bp = Database.resetBufferPool(64);
+        bp.getBackgroundWriter().setWatermarks(1.0, 1.0);
+        InstrumentedHeapFile table = createTable(10);
+        TransactionId tid = dirty(bp, table, 0, 1, 2, 3, 4, 5, 8);
+        bp.flushAllPages();
+        assertEquals(7, table.pagesWritten);
+        assertEquals(2, table.writeCalls);
+        assertEquals(0, bp.getDirtyPages(null).size());
+        bp.transactionComplete(tid);
+        // the pages on disk are still intact
+        assertEquals(992 * 10, scan(table));
+    }
+
+    @Test public void evictionWritesDirtyVictim() throws Exception {
+        BufferPool bp = Database.resetBufferPool(16);
+        bp.getBackgroundWriter().setWatermarks(1.0, 1.0);
+        bp.getReadAhead().setEnabled(false);
+        InstrumentedHeapFile table = createTable(20);
+        dirty(bp, table, 0, 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12, 13, 14, 15);
+        TransactionId tid = new TransactionId();
+        bp.getPage(tid, new HeapPageId(table.getId(), 19), Permissions.READ_ONLY);
+        assertEquals(1, table.pagesWritten);
+        assertEquals(15, bp.getDirtyPages(null).size());
+    }
+
+    /** The dirty ratio is taken over the resident pages of a partly filled pool. */
+    @Test public void backgroundWriterCleansAboveHighWatermark() throws Exception {
+        BufferPool bp = Database.resetBufferPool(200);
+        BackgroundWriter writer = bp.getBackgroundWriter();
+        writer.setInterval(10);
+        writer.setWatermarks(1.0, 1.0);
+        InstrumentedHeapFile table = createTable(30);
+        int[] pages = new int[30];
+        for (int i = 0; i < pages.length; i++)
+            pages[i] = i;
+        dirty(bp, table, pages);
+        assertEquals(0, writer.getPagesWritten());
+        writer.setWatermarks(BackgroundWriter.DEFAULT_LOW_WATERMARK,
+                BackgroundWriter.DEFAULT_HIGH_WATERMARK);
+        writer.wakeup();
+        long deadline = System.currentTimeMillis() + 10000;
+        while (writer.getPagesWritten() < 29 && System.currentTimeMillis() < deadline)
+            Thread.sleep(10);
+        assertEquals(30, bp.getNumResidentPages());
+        assertEquals(29, writer.getPagesWritten());
+        assertEquals(1, bp.getDirtyPages(null).size());
+        assertTrue(writer.getWriteCalls() < writer.getPagesWritten());
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(BufferPoolTest.class);
+    }
+}
@@ -2,6 +2,8 @@ package simpledb;
 
 import static org.junit.Assert.assertEquals;
 
+import java.io.File;
+import java.io.FileWriter;
 import java.util.NoSuchElementException;
 
 import junit.framework.Assert;
@@ -68,6 +70,21 @@ public class CatalogTest extends SimpleDbTestBase {
         assertEquals(-1, f.getId());
     }
 
+    /** The page size of a table is part of its catalog entry. */
+    @Test public void pageSizeOption() throws Exception {
+        assertEquals(BufferPool.PAGE_SIZE, Database.getCatalog().getPageSize(-1));
+        File schema = File.createTempFile("catalog", ".txt");
+        schema.deleteOnExit();
+        FileWriter w = new FileWriter(schema);
+        w.write("wide (a int, b int) pagesize 32768\n");
+        w.write("narrow (a int)\n");
+        w.close();
+        Database.getCatalog().loadSchema(schema.getPath());
+        Catalog c = Database.getCatalog();
+        assertEquals(32768, c.getPageSize(c.getTableId("wide")));
+        assertEquals(BufferPool.PAGE_SIZE, c.getPageSize(c.getTableId("narrow")));
+    }
+
     /**
      * JUnit suite target
      */
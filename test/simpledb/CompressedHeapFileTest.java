@@ -0,0 +1,138 @@
+package simpledb;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import junit.framework.JUnit4TestAdapter;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.jcraft.jzlib.JZlib;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class CompressedHeapFileTest extends SimpleDbTestBase {
+
+    private HeapFile plain;
+    private ArrayList<ArrayList<Integer>> tuples;
+    private File file;
+
+    @Before public void createTable() throws Exception {
+        tuples = new ArrayList<ArrayList<Integer>>();
+        // small values compress well, as in most real tables
+        plain = SystemTestUtil.createRandomHeapFile(2, 3000, 100, null, tuples);
+        file = File.createTempFile("compressed", ".dat");
+        file.deleteOnExit();
+        new File(file.getPath() + ".dir").deleteOnExit();
+    }
+
+    private CompressedHeapFile compress() throws Exception {
+        CompressedHeapFile f = CompressedHeapFile.compress(plain, file, JZlib.Z_DEFAULT_COMPRESSION);
+        Database.getCatalog().addTable(f, "compressed");
+        return f;
+    }
+
+    /** @return the tuples of f in the order of a scan through the BufferPool */
+    private static List<ArrayList<Integer>> scan(DbFile f) throws Exception {
+        TransactionId tid = new TransactionId();
+        DbFileIterator it = f.iterator(tid);
+        ArrayList<ArrayList<Integer>> scanned = new ArrayList<ArrayList<Integer>>();
+        it.open();
+        while (it.hasNext())
+            scanned.add(SystemTestUtil.tupleToList(it.next()));
+        it.close();
+        Database.getBufferPool().transactionComplete(tid);
+        return scanned;
+    }
+
+    @Test public void pagesRoundTrip() throws Exception {
+        CompressedHeapFile f = compress();
+        assertEquals(plain.numPages(), f.numPages());
+        for (int i = 0; i < f.numPages(); i++) {
+            assertArrayEquals(plain.readPage(new HeapPageId(plain.getId(), i)).getPageData(),
+                    f.readPage(new HeapPageId(f.getId(), i)).getPageData());
+        }
+        assertTrue(f.getCompressedSize() < plain.getFile().length() / 2);
+        assertEquals(scan(plain), scan(f));
+        assertEquals(tuples.size(), scan(f).size());
+    }
+
+    @Test public void readPagesMatchesReadPage() throws Exception {
+        CompressedHeapFile f = compress();
+        List<Page> run = f.readPages(new HeapPageId(f.getId(), 1), f.numPages() - 1);
+        for (int i = 0; i < run.size(); i++) {
+            assertEquals(new HeapPageId(f.getId(), i + 1), run.get(i).getId());
+            assertArrayEquals(f.readPage(new HeapPageId(f.getId(), i + 1)).getPageData(),
+                    run.get(i).getPageData());
+        }
+    }
+
+    /** Rewritten pages are appended and found again after reopening. */
+    @Test public void rewritesAreAppended() throws Exception {
+        CompressedHeapFile f = compress();
+        HeapPageId pid = new HeapPageId(f.getId(), 0);
+        HeapPage page = (HeapPage) f.readPage(pid);
+        page.deleteTuple(page.iterator().next());
+        long before = f.getCompressedSize();
+        f.writePage(page);
+        assertTrue(f.getCompressedSize() > before);
+        f.close();
+
+        CompressedHeapFile reopened = new CompressedHeapFile(file, plain.getTupleDesc());
+        assertArrayEquals(page.getPageData(), reopened.readPage(pid).getPageData());
+        reopened.compact();
+        assertTrue(reopened.getCompressedSize() < before + 100);
+        assertArrayEquals(page.getPageData(), reopened.readPage(pid).getPageData());
+        reopened.close();
+    }
+
+    /** Without a directory, it is rebuilt and a torn last record ignored. */
+    @Test public void directoryIsRebuilt() throws Exception {
+        CompressedHeapFile f = compress();
+        int n = f.numPages();
+        byte[] last = f.readPage(new HeapPageId(f.getId(), n - 1)).getPageData();
+        f.close();
+        assertTrue(new File(file.getPath() + ".dir").delete());
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        raf.seek(raf.length());
+        raf.writeInt(0);
+        raf.writeInt(1000);
+        raf.write(new byte[10]);
+        raf.close();
+
+        CompressedHeapFile reopened = new CompressedHeapFile(file, plain.getTupleDesc());
+        assertEquals(n, reopened.numPages());
+        assertArrayEquals(last, reopened.readPage(new HeapPageId(f.getId(), n - 1)).getPageData());
+        reopened.close();
+    }
+
+    @Test public void insertThroughBufferPool() throws Exception {
+        CompressedHeapFile f = new CompressedHeapFile(file, plain.getTupleDesc());
+        Database.getCatalog().addTable(f, "compressed");
+        TransactionId tid = new TransactionId();
+        ArrayList<ArrayList<Integer>> inserted = new ArrayList<ArrayList<Integer>>();
+        for (int i = 0; i < 1200; i++) {
+            Tuple t = Utility.getHeapTuple(new int[] { i, -i });
+            Database.getBufferPool().insertTuple(tid, f.getId(), t);
+            inserted.add(SystemTestUtil.tupleToList(t));
+        }
+        Database.getBufferPool().transactionComplete(tid);
+        assertEquals(3, f.numPages());
+        assertEquals(inserted, scan(f));
+
+        Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        f.close();
+        assertEquals(inserted, scan(f));
+    }
+
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(CompressedHeapFileTest.class);
+    }
+}
@@ -0,0 +1,109 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import junit.framework.JUnit4TestAdapter;
+
+import java.io.File;
+
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class FreeSpaceMapTest extends SimpleDbTestBase {
+
+    @Test public void levels() {
+        FreeSpaceMap map = new FreeSpaceMap(992);
+        assertEquals(0, map.levelOf(0));
+        assertEquals(1, map.levelOf(1));
+        assertEquals(FreeSpaceMap.LEVELS - 1, map.levelOf(992));
+        map.update(5, 992);
+        map.update(6, 0);
+        assertEquals(7, map.getNumPages());
+        assertEquals(FreeSpaceMap.LEVELS - 1, map.getLevel(5));
+        assertEquals(0, map.getLevel(6));
+        assertEquals(0, map.getLevel(4));
+    }
+
+    @Test public void findPageSkipsFullPages() {
+        FreeSpaceMap map = new FreeSpaceMap(992);
+        assertEquals(-1, map.findPage());
+        for (int i = 0; i < 100; i++)
+            map.update(i, 0);
+        assertEquals(-1, map.findPage());
+        map.update(77, 3);
+        assertEquals(77, map.findPage());
+        map.update(77, 0);
+        map.update(12, 1);
+        assertEquals(12, map.findPage());
+        map.truncate(10);
+        assertEquals(-1, map.findPage());
+    }
+
+    @Test public void saveAndLoad() throws Exception {
+        FreeSpaceMap map = new FreeSpaceMap(992);
+        for (int i = 0; i < 131; i++)
+            map.update(i, i * 7);
+        File f = File.createTempFile("table", ".fsm");
+        f.deleteOnExit();
+        map.save(f);
+        FreeSpaceMap loaded = FreeSpaceMap.load(f, 992);
+        assertEquals(131, loaded.getNumPages());
+        for (int i = 0; i < 131; i++)
+            assertEquals(map.getLevel(i), loaded.getLevel(i));
+        // a map of pages with another number of slots is not used
+        assertEquals(null, FreeSpaceMap.load(f, 504));
+    }
+
+    /** Inserting into a table of full pages appends a page without reading the others. */
+    @Test public void insertGoesToPageWithRoom() throws Exception {
+        BufferPool bp = Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        bp.getReadAhead().setEnabled(false);
+        BufferPoolTest.InstrumentedHeapFile table = BufferPoolTest.createTable(3);
+        TransactionId tid = new TransactionId();
+        bp.insertTuple(tid, table.getId(), Utility.getHeapTuple(1, 1));
+        assertEquals(4, table.numPages());
+        assertEquals(1, table.readCount);
+        assertTrue(table.getFreeSpaceMap().getLevel(3) > 0);
+
+        // a delete makes room that the map records
+        Tuple victim = null;
+        DbFileIterator it = table.iterator(tid);
+        it.open();
+        for (int i = 0; i < 1500; i++)
+            victim = it.next();
+        it.close();
+        int pgNo = victim.getRecordId().getPageId().pageNumber();
+        assertEquals(0, table.getFreeSpaceMap().getLevel(pgNo));
+        bp.deleteTuple(tid, victim);
+        assertEquals(1, table.getFreeSpaceMap().getLevel(pgNo));
+        bp.transactionComplete(tid);
+
+        // the map is saved on close and loaded by the next HeapFile
+        table.close();
+        HeapFile reopened = new HeapFile(table.getFile(), table.getTupleDesc());
+        assertEquals(1, reopened.getFreeSpaceMap().getLevel(pgNo));
+        assertEquals(0, reopened.getFreeSpaceMap().getLevel(0));
+        new File(table.getFile().getPath() + ".fsm").delete();
+    }
+
+    /** A full page the map wrongly offers keeps a lock the transaction held before. */
+    @Test public void staleEntryKeepsHeldLock() throws Exception {
+        BufferPool bp = Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        BufferPoolTest.InstrumentedHeapFile table = BufferPoolTest.createTable(3);
+        TransactionId tid = new TransactionId();
+        HeapPageId full = new HeapPageId(table.getId(), 1);
+        bp.getPage(tid, full, Permissions.READ_WRITE);
+        table.getFreeSpaceMap().update(1, 5);
+        bp.insertTuple(tid, table.getId(), Utility.getHeapTuple(1, 1));
+        assertEquals(4, table.numPages());
+        assertEquals(0, table.getFreeSpaceMap().getLevel(1));
+        assertTrue(bp.holdsLock(tid, full));
+        bp.transactionComplete(tid);
+        new File(table.getFile().getPath() + ".fsm").delete();
+    }
+
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(FreeSpaceMapTest.class);
+    }
+}
@@ -3,6 +3,11 @@ package simpledb;
 import simpledb.systemtest.SimpleDbTestBase;
 import simpledb.systemtest.SystemTestUtil;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
 import java.util.*;
 import org.junit.After;
 import org.junit.Before;
@@ -120,6 +125,229 @@ public class HeapFileReadTest extends SimpleDbTestBase {
         it.close();
     }
 
+    /** Threads reading pages at the same time each get their own page. */
+    @Test
+    public void concurrentReads() throws Exception {
+        final HeapFile big = SystemTestUtil.createRandomHeapFile(2, 484 * 8, null, null);
+        final byte[][] expected = new byte[big.numPages()][];
+        for (int i = 0; i < expected.length; i++)
+            expected[i] = big.readPageData(new HeapPageId(big.getId(), i));
+        final List<String> errors = Collections.synchronizedList(new ArrayList<String>());
+        Thread[] readers = new Thread[4];
+        for (int t = 0; t < readers.length; t++) {
+            final int offset = t;
+            readers[t] = new Thread() {
+                public void run() {
+                    for (int n = 0; n < 200; n++) {
+                        int pgNo = (n + offset) % expected.length;
+                        byte[] data = big.readPageData(new HeapPageId(big.getId(), pgNo));
+                        if (!Arrays.equals(expected[pgNo], data))
+                            errors.add("page " + pgNo);
+                    }
+                }
+            };
+            readers[t].start();
+        }
+        for (Thread t : readers)
+            t.join();
+        assertEquals(Collections.emptyList(), errors);
+    }
+
+    @Test
+    public void writeThenReadAfterClose() throws Exception {
+        HeapPageId pid = new HeapPageId(hf.getId(), 0);
+        HeapPage page = (HeapPage) hf.readPage(pid);
+        page.deleteTuple(page.iterator().next());
+        hf.writePage(page);
+        hf.close();
+        // the file is opened again on demand
+        assertTrue(Arrays.equals(page.getPageData(), hf.readPageData(pid)));
+    }
+
+    @Test
+    public void missingPageIsReported() throws Exception {
+        try {
+            hf.readPage(new HeapPageId(hf.getId(), 1));
+            fail("expected exception");
+        } catch (NoSuchElementException e) {
+            assertTrue(e.getMessage().contains("page 1"));
+        }
+    }
+
+    @Test
+    public void readPagesMatchesReadPage() throws Exception {
+        HeapFile big = SystemTestUtil.createRandomHeapFile(2, 484 * 8, null, null);
+        HeapFile mapped = new HeapFile(big.getFile(), td, true);
+        for (HeapFile f : new HeapFile[] { big, mapped }) {
+            List<Page> pages = f.readPages(new HeapPageId(big.getId(), 2), 5);
+            assertEquals(5, pages.size());
+            for (int i = 0; i < 5; i++) {
+                HeapPageId pid = new HeapPageId(big.getId(), 2 + i);
+                assertEquals(pid, pages.get(i).getId());
+                assertTrue(Arrays.equals(big.readPageData(pid), pages.get(i).getPageData()));
+            }
+        }
+        mapped.close();
+        try {
+            big.readPages(new HeapPageId(big.getId(), 6), 3);
+            fail("expected exception");
+        } catch (NoSuchElementException e) {
+            assertTrue(e.getMessage().contains("page 8"));
+        }
+    }
+
+    @Test
+    public void mappedReadsMatchChannelReads() throws Exception {
+        HeapFile big = SystemTestUtil.createRandomHeapFile(2, 484 * 8, null, null);
+        HeapFile mapped = new HeapFile(big.getFile(), td, true);
+        assertTrue(mapped.isMemoryMapped());
+        for (int i = 0; i < big.numPages(); i++) {
+            HeapPageId pid = new HeapPageId(big.getId(), i);
+            byte[] expected = big.readPageData(pid);
+            assertTrue(Arrays.equals(expected, mapped.readPageData(pid)));
+            assertTrue(Arrays.equals(expected, mapped.readPage(pid).getPageData()));
+        }
+        mapped.close();
+    }
+
+    /** Pages appended after the file was mapped can be read. */
+    @Test
+    public void mappedFileGrows() throws Exception {
+        HeapFile mapped = new HeapFile(hf.getFile(), td, true);
+        HeapPage first = (HeapPage) mapped.readPage(new HeapPageId(hf.getId(), 0));
+        HeapPageId pid = new HeapPageId(hf.getId(), 1);
+        HeapPage appended = new HeapPage(pid, first.getPageData());
+        appended.deleteTuple(appended.iterator().next());
+        mapped.writePage(appended);
+        assertEquals(2, mapped.numPages());
+        assertTrue(Arrays.equals(appended.getPageData(), mapped.readPage(pid).getPageData()));
+        mapped.close();
+    }
+
+    /** A mapped page is copied when modified and leaves the file unchanged. */
+    @Test
+    public void modifyingMappedPageCopiesIt() throws Exception {
+        HeapFile mapped = new HeapFile(hf.getFile(), td, true);
+        HeapPageId pid = new HeapPageId(hf.getId(), 0);
+        byte[] before = hf.readPageData(pid);
+        HeapPage page = (HeapPage) mapped.readPage(pid);
+        page.deleteTuple(page.iterator().next());
+        assertFalse(Arrays.equals(before, page.getPageData()));
+        assertTrue(Arrays.equals(before, page.getBeforeImage().getPageData()));
+        assertTrue(Arrays.equals(before, mapped.readPageData(pid)));
+        mapped.close();
+    }
+
+    /** The file grows by whole extents, cut back to its pages on close. */
+    @Test
+    public void appendPageAllocatesExtents() throws Exception {
+        assertEquals(1, hf.numPages());
+        assertEquals(1, hf.appendPage());
+        assertEquals(2, hf.numPages());
+        assertEquals(1, hf.getExtentCount());
+        assertEquals((1 + HeapFile.MIN_EXTENT_PAGES) * BufferPool.PAGE_SIZE, hf.getFile().length());
+        for (int i = 2; i <= HeapFile.MIN_EXTENT_PAGES; i++)
+            assertEquals(i, hf.appendPage());
+        assertEquals(1, hf.getExtentCount());
+        assertEquals(HeapFile.MIN_EXTENT_PAGES + 1, hf.appendPage());
+        assertEquals(2, hf.getExtentCount());
+
+        HeapPage page = (HeapPage) hf.readPage(new HeapPageId(hf.getId(), 5));
+        assertFalse(page.iterator().hasNext());
+        hf.close();
+        assertEquals(hf.numPages() * BufferPool.PAGE_SIZE, hf.getFile().length());
+    }
+
+    /** The free-space map is read from the pages without holding the file's monitor. */
+    @Test
+    public void freeSpaceMapIsBuiltOutsideTheMonitor() throws Exception {
+        final int[] reads = new int[2];
+        HeapFile f = new HeapFile(hf.getFile(), td) {
+            public byte[] readPagesData(PageId first, int count) {
+                reads[0]++;
+                if (Thread.holdsLock(this))
+                    reads[1]++;
+                return super.readPagesData(first, count);
+            }
+        };
+        assertEquals(1, f.getFreeSpaceMap().getNumPages());
+        assertEquals(1, reads[0]);
+        assertEquals(0, reads[1]);
+        assertEquals(1, f.appendPage());
+        assertEquals(1, reads[0]);
+        f.close();
+        new File(hf.getFile().getPath() + ".fsm").delete();
+    }
+
+    /** A deserialized file counts and maps its pages afresh. */
+    @Test
+    public void deserializedFileReadsPages() throws Exception {
+        HeapFile mapped = new HeapFile(hf.getFile(), td, true);
+        assertEquals(1, mapped.numPages());
+        mapped.readPage(new HeapPageId(hf.getId(), 0));
+        for (HeapFile f : new HeapFile[] { hf, mapped }) {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            ObjectOutputStream out = new ObjectOutputStream(bytes);
+            out.writeObject(f);
+            out.close();
+            HeapFile copy = (HeapFile) new ObjectInputStream(
+                    new ByteArrayInputStream(bytes.toByteArray())).readObject();
+            assertEquals(1, copy.numPages());
+            HeapPage page = (HeapPage) copy.readPage(new HeapPageId(hf.getId(), 0));
+            assertEquals(484, page.getNumEmptySlots());
+            copy.close();
+        }
+        mapped.close();
+    }
+
+    /** Writing a page past the end grows the cached page count. */
+    @Test
+    public void writePastEndGrowsFile() throws Exception {
+        HeapPage page = (HeapPage) hf.readPage(new HeapPageId(hf.getId(), 0));
+        hf.writePage(new HeapPage(new HeapPageId(hf.getId(), 3), page.getPageData()));
+        assertEquals(4, hf.numPages());
+        assertEquals(4, hf.appendPage());
+    }
+
+    /** A file of 64 KB pages is read, scanned and grown in whole pages. */
+    @Test
+    public void largePages() throws Exception {
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        for (int i = 0; i < 20000; i++)
+            tuples.add(new ArrayList<Integer>(Arrays.asList(i, -i)));
+        File f = File.createTempFile("largepages", ".dat");
+        f.deleteOnExit();
+        HeapFileEncoder.convert(tuples, f, BufferPool.MAX_PAGE_SIZE, 2);
+        HeapFile large = new HeapFile(f, td, false, false, BufferPool.MAX_PAGE_SIZE);
+        Database.getCatalog().addTable(large, SystemTestUtil.getUUID());
+        // 8065 tuples fit on a page instead of 504
+        assertEquals(3, large.numPages());
+        HeapPage page = (HeapPage) large.readPage(new HeapPageId(large.getId(), 0));
+        assertEquals(BufferPool.MAX_PAGE_SIZE, page.getPageSize());
+        assertEquals(0, page.getNumEmptySlots());
+        assertEquals(BufferPool.MAX_PAGE_SIZE, page.getPageData().length);
+
+        DbFileIterator it = large.iterator(tid);
+        it.open();
+        int count = 0;
+        while (it.hasNext()) {
+            assertEquals(new IntField(count), it.next().getField(0));
+            count++;
+        }
+        it.close();
+        assertEquals(20000, count);
+
+        assertEquals(3, large.appendPage());
+        assertEquals((3 + HeapFile.MIN_EXTENT_PAGES) * (long) BufferPool.MAX_PAGE_SIZE, f.length());
+        large.close();
+
+        try {
+            new HeapFile(f, td, false, false, 5000);
+            fail("expected exception");
+        } catch (IllegalArgumentException e) {
+        }
+    }
+
     /**
      * JUnit suite target
      */
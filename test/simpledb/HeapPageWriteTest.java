@@ -0,0 +1,110 @@
+package simpledb;
+
+import simpledb.TestUtil.SkeletonFile;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+import java.nio.ByteBuffer;
+import java.util.*;
+
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class HeapPageWriteTest extends SimpleDbTestBase {
+    private HeapPageId pid;
+
+    @Before public void addTable() throws Exception {
+        this.pid = new HeapPageId(-1, -1);
+        Database.getCatalog().addTable(new SkeletonFile(-1, Utility.getTupleDesc(2)), SystemTestUtil.getUUID());
+    }
+
+    private static List<HeapPage> pages(HeapPageId pid, byte[] data) throws Exception {
+        return Arrays.asList(new HeapPage(pid, data.clone()),
+                new HeapPage(pid, ByteBuffer.wrap(data.clone())));
+    }
+
+    @Test public void insertUntilFull() throws Exception {
+        for (HeapPage page : pages(pid, HeapPageReadTest.EXAMPLE_DATA)) {
+            int free = page.getNumEmptySlots();
+            assertEquals(484, free);
+            for (int i = 0; i < free; i++) {
+                Tuple t = Utility.getHeapTuple(i, 2);
+                page.insertTuple(t);
+                assertEquals(pid, t.getRecordId().getPageId());
+            }
+            assertEquals(0, page.getNumEmptySlots());
+            try {
+                page.insertTuple(Utility.getHeapTuple(0, 2));
+                fail("expected exception");
+            } catch (DbException e) {
+            }
+            // the inserted tuples survive serialization
+            HeapPage copy = new HeapPage(pid, page.getPageData());
+            assertEquals(0, copy.getNumEmptySlots());
+        }
+    }
+
+    @Test public void insertRejectsOtherTupleDesc() throws Exception {
+        HeapPage page = new HeapPage(pid, HeapPageReadTest.EXAMPLE_DATA);
+        try {
+            page.insertTuple(Utility.getHeapTuple(1, 3));
+            fail("expected exception");
+        } catch (DbException e) {
+        }
+    }
+
+    /** Deleting a slot leaves the other slots of its header byte alone. */
+    @Test public void deleteClearsOnlyItsSlot() throws Exception {
+        for (HeapPage page : pages(pid, HeapPageReadTest.EXAMPLE_DATA)) {
+            Tuple t = page.iterator().next();
+            int slot = t.getRecordId().tupleno();
+            page.deleteTuple(t);
+            assertNull(t.getRecordId());
+            assertFalse(page.isSlotUsed(slot));
+            for (int i = 0; i < HeapPageReadTest.EXAMPLE_VALUES.length; i++)
+                assertEquals(i != slot, page.isSlotUsed(i));
+            assertEquals(485, page.getNumEmptySlots());
+            // the freed slot is used again
+            Tuple u = Utility.getHeapTuple(7, 2);
+            page.insertTuple(u);
+            assertEquals(slot, u.getRecordId().tupleno());
+        }
+    }
+
+    @Test public void deleteUnknownTupleFails() throws Exception {
+        HeapPage page = new HeapPage(pid, HeapPageReadTest.EXAMPLE_DATA);
+        Tuple stored = page.iterator().next();
+        page.deleteTuple(stored);
+        Tuple[] bad = { Utility.getHeapTuple(1, 2), stored };
+        for (Tuple t : bad) {
+            try {
+                page.deleteTuple(t);
+                fail("expected exception");
+            } catch (DbException e) {
+            }
+        }
+        assertEquals(485, page.getNumEmptySlots());
+    }
+
+    /** With three ints a page has 337 slots and a header of 43 bytes. */
+    @Test public void headerRoundsUp() throws Exception {
+        HeapPageId pid3 = new HeapPageId(-2, 0);
+        Database.getCatalog().addTable(new SkeletonFile(-2, Utility.getTupleDesc(3)), SystemTestUtil.getUUID());
+        HeapPage page = new HeapPage(pid3, HeapPage.createEmptyPageData());
+        assertEquals(337, page.getNumEmptySlots());
+        for (int i = 0; i < 337; i++)
+            page.insertTuple(Utility.getHeapTuple(i, 3));
+        HeapPage copy = new HeapPage(pid3, page.getPageData());
+        assertEquals(0, copy.getNumEmptySlots());
+        int i = 0;
+        for (Iterator<Tuple> it = copy.iterator(); it.hasNext(); i++)
+            assertEquals(new IntField(i), it.next().getField(2));
+        assertEquals(337, i);
+    }
+
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(HeapPageWriteTest.class);
+    }
+}
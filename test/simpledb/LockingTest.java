@@ -0,0 +1,159 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class LockingTest extends SimpleDbTestBase {
+
+    /** Time given to a LockGrabber to acquire its lock, in ms. */
+    private static final int TIMEOUT = 100;
+
+    private PageId p0, p1;
+    private TransactionId tid1, tid2, tid3;
+    private BufferPool bp;
+
+    @Before public void setUp() throws Exception {
+        bp = Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        BufferPoolTest.InstrumentedHeapFile table = BufferPoolTest.createTable(3);
+        p0 = new HeapPageId(table.getId(), 0);
+        p1 = new HeapPageId(table.getId(), 1);
+        tid1 = new TransactionId();
+        tid2 = new TransactionId();
+        tid3 = new TransactionId();
+    }
+
+    /** Starts a thread requesting the lock and returns it after TIMEOUT. */
+    private TestUtil.LockGrabber grab(TransactionId tid, PageId pid, Permissions perm)
+        throws Exception {
+        TestUtil.LockGrabber t = new TestUtil.LockGrabber(tid, pid, perm);
+        t.setDaemon(true);
+        t.start();
+        Thread.sleep(TIMEOUT);
+        return t;
+    }
+
+    @Test public void sharedLocksAreCompatible() throws Exception {
+        bp.getPage(tid1, p0, Permissions.READ_ONLY);
+        assertTrue(grab(tid2, p0, Permissions.READ_ONLY).acquired());
+        assertTrue(bp.holdsLock(tid1, p0));
+        assertTrue(bp.holdsLock(tid2, p0));
+    }
+
+    @Test public void exclusiveWaitsUntilCommit() throws Exception {
+        bp.getPage(tid1, p0, Permissions.READ_ONLY);
+        TestUtil.LockGrabber writer = grab(tid2, p0, Permissions.READ_WRITE);
+        assertFalse(writer.acquired());
+        // other pages are not affected
+        assertTrue(grab(tid3, p1, Permissions.READ_WRITE).acquired());
+        bp.transactionComplete(tid1);
+        writer.join(TIMEOUT * 10);
+        assertTrue(writer.acquired());
+        assertFalse(bp.holdsLock(tid1, p0));
+        assertTrue(bp.getLockManager().holdsExclusive(tid2, p0));
+    }
+
+    @Test public void soleReaderUpgrades() throws Exception {
+        bp.getPage(tid1, p0, Permissions.READ_ONLY);
+        bp.getPage(tid1, p0, Permissions.READ_WRITE);
+        assertTrue(bp.getLockManager().holdsExclusive(tid1, p0));
+        // an exclusive lock covers reads
+        bp.getPage(tid1, p0, Permissions.READ_ONLY);
+        assertTrue(bp.getLockManager().holdsExclusive(tid1, p0));
+        assertFalse(grab(tid2, p0, Permissions.READ_ONLY).acquired());
+    }
+
+    @Test public void upgradeWaitsForOtherReaders() throws Exception {
+        bp.getPage(tid1, p0, Permissions.READ_ONLY);
+        bp.getPage(tid2, p0, Permissions.READ_ONLY);
+        TestUtil.LockGrabber upgrade = grab(tid1, p0, Permissions.READ_WRITE);
+        assertFalse(upgrade.acquired());
+        bp.releasePage(tid2, p0);
+        upgrade.join(TIMEOUT * 10);
+        assertTrue(upgrade.acquired());
+    }
+
+    /** A queued writer is not overtaken by readers arriving later. */
+    @Test public void readersQueueBehindWriter() throws Exception {
+        bp.getPage(tid1, p0, Permissions.READ_ONLY);
+        TestUtil.LockGrabber writer = grab(tid2, p0, Permissions.READ_WRITE);
+        TestUtil.LockGrabber reader = grab(tid3, p0, Permissions.READ_ONLY);
+        assertFalse(writer.acquired());
+        assertFalse(reader.acquired());
+        assertEquals(2, bp.getLockManager().getWaitCount());
+
+        bp.transactionComplete(tid1);
+        writer.join(TIMEOUT * 10);
+        assertTrue(writer.acquired());
+        Thread.sleep(TIMEOUT);
+        assertFalse(reader.acquired());
+        bp.transactionComplete(tid2);
+        reader.join(TIMEOUT * 10);
+        assertTrue(reader.acquired());
+    }
+
+    @Test public void abortDiscardsDirtyPages() throws Exception {
+        HeapPage page = (HeapPage) bp.getPage(tid1, p0, Permissions.READ_WRITE);
+        byte[] before = page.getPageData();
+        page.deleteTuple(page.iterator().next());
+        page.markDirty(true, tid1);
+        bp.transactionComplete(tid1, false);
+        assertFalse(bp.holdsLock(tid1, p0));
+        HeapPage reread = (HeapPage) bp.getPage(tid2, p0, Permissions.READ_ONLY);
+        assertTrue(reread != page);
+        assertTrue(java.util.Arrays.equals(before, reread.getPageData()));
+    }
+
+    /** Of two transactions waiting for each other, one is aborted. */
+    @Test public void deadlockAbortsOneTransaction() throws Exception {
+        bp.getPage(tid1, p0, Permissions.READ_ONLY);
+        bp.getPage(tid2, p1, Permissions.READ_ONLY);
+        // tid1 holds more locks, so tid2 is the cheaper victim
+        bp.getPage(tid1, new HeapPageId(p0.getTableId(), 2), Permissions.READ_ONLY);
+        TestUtil.LockGrabber t1 = grab(tid1, p1, Permissions.READ_WRITE);
+        TestUtil.LockGrabber t2 = grab(tid2, p0, Permissions.READ_WRITE);
+        t1.join(TIMEOUT * 10);
+        t2.join(TIMEOUT * 10);
+        assertTrue(t1.acquired());
+        assertFalse(t2.acquired());
+        assertTrue(t2.getError() instanceof TransactionAbortedException);
+        assertFalse(bp.holdsLock(tid2, p1));
+        assertEquals(1, bp.getLockManager().getDeadlockCount());
+    }
+
+    /** Two readers upgrading the same page deadlock. */
+    @Test public void upgradeDeadlock() throws Exception {
+        bp.getPage(tid1, p0, Permissions.READ_ONLY);
+        bp.getPage(tid2, p0, Permissions.READ_ONLY);
+        TestUtil.LockGrabber t1 = grab(tid1, p0, Permissions.READ_WRITE);
+        TestUtil.LockGrabber t2 = grab(tid2, p0, Permissions.READ_WRITE);
+        t1.join(TIMEOUT * 10);
+        t2.join(TIMEOUT * 10);
+        // both hold one lock, the younger one is aborted
+        assertTrue(t1.acquired());
+        assertTrue(t2.getError() instanceof TransactionAbortedException);
+    }
+
+    /** A long wait without a cycle is not mistaken for a deadlock. */
+    @Test public void longWaitIsNoDeadlock() throws Exception {
+        bp.getPage(tid1, p0, Permissions.READ_WRITE);
+        TestUtil.LockGrabber t2 = grab(tid2, p0, Permissions.READ_ONLY);
+        Thread.sleep(TIMEOUT * 3);
+        assertFalse(t2.acquired());
+        assertEquals(null, t2.getError());
+        bp.transactionComplete(tid1);
+        t2.join(TIMEOUT * 10);
+        assertTrue(t2.acquired());
+        assertEquals(0, bp.getLockManager().getDeadlockCount());
+    }
+
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(LockingTest.class);
+    }
+}
@@ -0,0 +1,94 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import junit.framework.JUnit4TestAdapter;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class LogFileTest extends SimpleDbTestBase {
+
+    @After public void restoreGroupCommit() {
+        Database.getLogFile().setGroupCommit(0, LogFile.MAX_GROUP_SIZE_COUNTED);
+    }
+
+    @Test public void singleCommitIsAGroupOfOne() throws Exception {
+        LogFile log = Database.getLogFile();
+        log.resetGroupStats();
+        Database.getBufferPool().transactionComplete(new TransactionId());
+        assertEquals(1, log.getGroupCount());
+        assertEquals(1, log.getGroupSizeCount(1));
+    }
+
+    /** Concurrent commits share log forces. */
+    @Test public void concurrentCommitsShareForces() throws Exception {
+        final LogFile log = Database.getLogFile();
+        final int threads = 8;
+        final int commits = 20;
+        log.setGroupCommit(5000, threads);
+        log.resetGroupStats();
+        final List<Exception> errors = new ArrayList<Exception>();
+        Thread[] committers = new Thread[threads];
+        for (int i = 0; i < threads; i++) {
+            committers[i] = new Thread() {
+                public void run() {
+                    try {
+                        for (int j = 0; j < commits; j++)
+                            Database.getBufferPool().transactionComplete(new TransactionId());
+                    } catch (Exception e) {
+                        synchronized (errors) {
+                            errors.add(e);
+                        }
+                    }
+                }
+            };
+            committers[i].start();
+        }
+        for (Thread t : committers)
+            t.join();
+        assertTrue(errors.isEmpty());
+        long groups = log.getGroupCount();
+        assertTrue(groups < threads * commits);
+        assertTrue(log.getMeanGroupSize() > 1.0);
+        assertEquals(threads * commits, Math.round(log.getMeanGroupSize() * groups));
+        assertTrue(log.getGroupSizeReport().startsWith("group commit: " + groups + " forces"));
+    }
+
+    /** After a crash, written pages of unfinished transactions are undone. */
+    @Test public void recoverUndoesUnfinishedTransactions() throws Exception {
+        BufferPool bp = Database.getBufferPool();
+        HeapFile table = BufferPoolTest.createTable(2);
+        TransactionId winner = new TransactionId();
+        DbFileIterator it = table.iterator(winner);
+        it.open();
+        bp.deleteTuple(winner, it.next());
+        it.close();
+        bp.transactionComplete(winner);
+        TransactionId loser = new TransactionId();
+        bp.insertTuple(loser, table.getId(), Utility.getHeapTuple(1, 1));
+        it = table.iterator(loser);
+        it.open();
+        bp.deleteTuple(loser, it.next());
+        bp.deleteTuple(loser, it.next());
+        it.close();
+        bp.flushAllPages();
+
+        // restart: an empty pool and the log read from the file
+        Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        new LogFile(new File("log")).recover();
+        // and again, as after a crash during recovery
+        new LogFile(new File("log")).recover();
+        assertEquals(992 * 2 - 1, BufferPoolTest.scan(table));
+    }
+
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(LogFileTest.class);
+    }
+}
@@ -0,0 +1,117 @@
+package simpledb;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.util.Arrays;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class PageScrubberTest extends SimpleDbTestBase {
+
+    private HeapFile table;
+
+    /** Creates a table with checksums of four full pages. */
+    @Before public void createTable() throws Exception {
+        File f = File.createTempFile("checksummed", ".dat");
+        f.deleteOnExit();
+        table = new HeapFile(f, Utility.getTupleDesc(2), false, true);
+        Database.getCatalog().addTable(table, SystemTestUtil.getUUID());
+        for (int i = 0; i < 4; i++) {
+            HeapPage page = new HeapPage(new HeapPageId(table.getId(), table.appendPage()),
+                    HeapPage.createEmptyPageData());
+            // the checksum takes room from the tuples
+            assertEquals(503, page.getNumEmptySlots());
+            for (int j = 0; j < 503; j++)
+                page.insertTuple(Utility.getHeapTuple(new int[] { i, j }));
+            table.writePage(page);
+        }
+    }
+
+    /** Flips a bit of a page on disk. */
+    private void damage(int pgNo) throws Exception {
+        RandomAccessFile raf = new RandomAccessFile(table.getFile(), "rw");
+        long pos = (long) pgNo * BufferPool.PAGE_SIZE + 100;
+        raf.seek(pos);
+        int b = raf.read();
+        raf.seek(pos);
+        raf.write(b ^ 0x10);
+        raf.close();
+    }
+
+    @Test public void intactPagesAreRead() throws Exception {
+        for (int i = 0; i < 4; i++) {
+            HeapPageId pid = new HeapPageId(table.getId(), i);
+            assertTrue(table.verifyPage(i));
+            assertEquals(0, ((HeapPage) table.readPage(pid)).getNumEmptySlots());
+        }
+        // a page appended but never written is valid
+        int fresh = table.appendPage();
+        assertTrue(table.verifyPage(fresh));
+        assertEquals(503, ((HeapPage) table.readPage(new HeapPageId(table.getId(), fresh)))
+                .getNumEmptySlots());
+    }
+
+    @Test public void damagedPageIsRejected() throws Exception {
+        damage(2);
+        assertFalse(table.verifyPage(2));
+        assertTrue(table.verifyPage(1));
+        try {
+            table.readPage(new HeapPageId(table.getId(), 2));
+            fail("expected exception");
+        } catch (UncheckedIOException e) {
+            assertTrue(e.getMessage().contains("checksum mismatch on page 2"));
+        }
+        try {
+            Database.getBufferPool().getPage(null, new HeapPageId(table.getId(), 2),
+                    Permissions.READ_ONLY);
+            fail("expected exception");
+        } catch (DbException e) {
+        }
+        // the same bytes in another place are caught as well
+        byte[] image = table.readPageData(new HeapPageId(table.getId(), 0));
+        RandomAccessFile raf = new RandomAccessFile(table.getFile(), "rw");
+        raf.seek(BufferPool.PAGE_SIZE);
+        raf.write(image);
+        raf.close();
+        assertFalse(table.verifyPage(1));
+    }
+
+    @Test public void scrubberFindsDamagedColdPages() throws Exception {
+        BufferPool bp = Database.getBufferPool();
+        bp.getReadAhead().setEnabled(false);
+        bp.getPage(null, new HeapPageId(table.getId(), 0), Permissions.READ_ONLY);
+        damage(3);
+        PageScrubber scrubber = new PageScrubber();
+        assertEquals(1, scrubber.scrubAll());
+        assertEquals(Arrays.asList(new HeapPageId(table.getId(), 3)), scrubber.getDamagedPages());
+        assertEquals(1, scrubber.getSkippedCount());
+        assertEquals(3, scrubber.getVerifiedCount());
+        // a damaged page is reported once
+        assertEquals(0, scrubber.scrubAll());
+    }
+
+    @Test public void scrubberKeepsToItsRate() throws Exception {
+        PageScrubber scrubber = new PageScrubber();
+        scrubber.setRate(20);
+        scrubber.start();
+        Thread.sleep(500);
+        scrubber.shutdown();
+        // about ten pages in half a second, far fewer than it could read
+        long n = scrubber.getVerifiedCount();
+        assertTrue("" + n, n >= 4 && n <= 14);
+        assertTrue(scrubber.getRounds() >= 1);
+        assertTrue(scrubber.getDamagedPages().isEmpty());
+    }
+
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(PageScrubberTest.class);
+    }
+}
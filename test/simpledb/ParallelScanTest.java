@@ -0,0 +1,206 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import junit.framework.JUnit4TestAdapter;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class ParallelScanTest extends SimpleDbTestBase {
+
+    private HeapFile table;
+    private ArrayList<ArrayList<Integer>> tuples;
+
+    @Before public void createTable() throws Exception {
+        tuples = new ArrayList<ArrayList<Integer>>();
+        // 504 tuples fit on a page: 40 pages
+        table = SystemTestUtil.createRandomHeapFile(2, 504 * 40, 1000, null, tuples);
+    }
+
+    private static void sort(List<ArrayList<Integer>> tuples) {
+        Collections.sort(tuples, new Comparator<ArrayList<Integer>>() {
+            public int compare(ArrayList<Integer> a, ArrayList<Integer> b) {
+                for (int i = 0; i < a.size(); i++) {
+                    int c = a.get(i).compareTo(b.get(i));
+                    if (c != 0)
+                        return c;
+                }
+                return 0;
+            }
+        });
+    }
+
+    private static void drain(DbIterator it, List<ArrayList<Integer>> out) throws Exception {
+        while (it.hasNext())
+            out.add(SystemTestUtil.tupleToList(it.next()));
+    }
+
+    @Test public void mergedScanReturnsAllTuples() throws Exception {
+        TransactionId tid = new TransactionId();
+        ParallelScan scan = new ParallelScan(tid, table.getId(), "t", 4);
+        scan.setMorselSize(3);
+        assertEquals("t." + table.getTupleDesc().getFieldName(0),
+                scan.getTupleDesc().getFieldName(0));
+        scan.open();
+        ArrayList<ArrayList<Integer>> scanned = new ArrayList<ArrayList<Integer>>();
+        drain(scan, scanned);
+        assertFalse(scan.hasNext());
+        sort(scanned);
+        sort(tuples);
+        assertEquals(tuples, scanned);
+
+        // the pages are locked for the transaction until it completes
+        BufferPool bp = Database.getBufferPool();
+        for (int i = 0; i < table.numPages(); i++)
+            assertTrue(bp.holdsLock(tid, new HeapPageId(table.getId(), i)));
+
+        scan.rewind();
+        scanned.clear();
+        drain(scan, scanned);
+        assertEquals(tuples.size(), scanned.size());
+        scan.close();
+        bp.transactionComplete(tid);
+        assertEquals(0, bp.getPinCount(new HeapPageId(table.getId(), 0)));
+    }
+
+    /** The streams are consumed on threads of their own and cover the table. */
+    @Test public void streamsCoverTheTable() throws Exception {
+        TransactionId tid = new TransactionId();
+        ParallelScan scan = new ParallelScan(tid, table.getId(), "t", 3);
+        scan.setMorselSize(2);
+        final List<DbIterator> streams = scan.openStreams();
+        assertEquals(3, streams.size());
+        final List<ArrayList<Integer>> scanned =
+            Collections.synchronizedList(new ArrayList<ArrayList<Integer>>());
+        final List<Exception> errors = new ArrayList<Exception>();
+        Thread[] consumers = new Thread[streams.size()];
+        for (int i = 0; i < consumers.length; i++) {
+            final DbIterator stream = streams.get(i);
+            consumers[i] = new Thread() {
+                public void run() {
+                    try {
+                        stream.open();
+                        drain(stream, scanned);
+                        stream.close();
+                    } catch (Exception e) {
+                        synchronized (errors) {
+                            errors.add(e);
+                        }
+                    }
+                }
+            };
+            consumers[i].start();
+        }
+        for (Thread t : consumers)
+            t.join();
+        assertTrue(errors.isEmpty());
+        scan.close();
+        Database.getBufferPool().transactionComplete(tid);
+        ArrayList<ArrayList<Integer>> all = new ArrayList<ArrayList<Integer>>(scanned);
+        sort(all);
+        sort(tuples);
+        assertEquals(tuples, all);
+    }
+
+    /** Closing early stops the workers and leaves no page pinned. */
+    @Test public void closeMidScan() throws Exception {
+        BufferPool bp = Database.resetBufferPool(16);
+        TransactionId tid = new TransactionId();
+        ParallelScan scan = new ParallelScan(tid, table.getId(), "t", 4);
+        scan.setMorselSize(1);
+        scan.open();
+        for (int i = 0; i < 10; i++)
+            scan.next();
+        scan.close();
+        for (int i = 0; i < table.numPages(); i++)
+            assertEquals(0, bp.getPinCount(new HeapPageId(table.getId(), i)));
+        try {
+            scan.hasNext();
+            fail("closed scan returned tuples");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+        bp.transactionComplete(tid);
+    }
+
+    /** A worker that cannot read its page fails the scan. */
+    @Test public void failuresArePassedOn() throws Exception {
+        TransactionId tid = new TransactionId();
+        HeapFile broken = new HeapFile(table.getFile(), table.getTupleDesc()) {
+            public Page readPage(PageId pid) {
+                if (pid.pageNumber() == 7)
+                    throw new IllegalArgumentException("page 7 is unreadable");
+                return super.readPage(pid);
+            }
+
+            public List<Page> readPages(PageId first, int count) {
+                throw new IllegalArgumentException("no run reads");
+            }
+        };
+        Database.getCatalog().addTable(broken, SystemTestUtil.getUUID());
+        ParallelScan scan = new ParallelScan(tid, broken.getId(), "t", 2);
+        scan.setMorselSize(4);
+        scan.open();
+        try {
+            while (scan.hasNext())
+                scan.next();
+            fail("scan did not fail");
+        } catch (IllegalArgumentException e) {
+            // as a sequential scan, the worker's exception is passed on
+            assertTrue(e.getMessage().contains("page 7"));
+        }
+        scan.close();
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /** Workers waiting for locks do not keep other scans from running. */
+    @Test(timeout = 30000) public void lockWaitsDoNotStarveOtherScans() throws Exception {
+        BufferPool bp = Database.getBufferPool();
+        HeapFile other = SystemTestUtil.createRandomHeapFile(2, 504 * 4, 1000, null, null);
+        TransactionId writer = new TransactionId();
+        bp.getPage(writer, new HeapPageId(table.getId(), 0), Permissions.READ_WRITE);
+
+        int blockedScans = 2 * Runtime.getRuntime().availableProcessors() + 2;
+        List<ParallelScan> blocked = new ArrayList<ParallelScan>();
+        List<TransactionId> readers = new ArrayList<TransactionId>();
+        for (int i = 0; i < blockedScans; i++) {
+            TransactionId reader = new TransactionId();
+            ParallelScan scan = new ParallelScan(reader, table.getId(), "t", 1);
+            scan.setMorselSize(1);
+            scan.open();
+            blocked.add(scan);
+            readers.add(reader);
+        }
+
+        ParallelScan scan = new ParallelScan(writer, other.getId(), "o", 2);
+        scan.open();
+        ArrayList<ArrayList<Integer>> scanned = new ArrayList<ArrayList<Integer>>();
+        drain(scan, scanned);
+        scan.close();
+        assertEquals(504 * 4, scanned.size());
+
+        bp.transactionComplete(writer);
+        for (int i = 0; i < blockedScans; i++) {
+            scanned.clear();
+            drain(blocked.get(i), scanned);
+            assertEquals(tuples.size(), scanned.size());
+            blocked.get(i).close();
+            bp.transactionComplete(readers.get(i));
+        }
+    }
+
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(ParallelScanTest.class);
+    }
+}
@@ -0,0 +1,183 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import junit.framework.JUnit4TestAdapter;
+
+import java.util.ArrayList;
+import java.util.Random;
+
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class ReplacementPolicyTest extends SimpleDbTestBase {
+
+    private static final ReplacementPolicy.FrameFilter ANY =
+        new ReplacementPolicy.FrameFilter() {
+            public boolean isEvictable(int frame) {
+                return true;
+            }
+        };
+
+    private static PageId pid(int pgNo) {
+        return new HeapPageId(1, pgNo);
+    }
+
+    /** Loads pages 0..n-1 into frames 0..n-1. */
+    private static void fill(ReplacementPolicy p, int n) {
+        for (int i = 0; i < n; i++)
+            p.pageLoaded(i, pid(i));
+    }
+
+    @Test public void clockGivesSecondChance() {
+        ReplacementPolicy p = new ClockPolicy(3);
+        fill(p, 3);
+        // every frame is referenced, so the first sweep clears all bits
+        assertEquals(0, p.chooseVictim(ANY));
+        p.pageRemoved(0, pid(0));
+        p.pageLoaded(0, pid(3));
+        p.pageAccessed(1);
+        // frame 1 was referenced again, frame 2 was not
+        assertEquals(2, p.chooseVictim(ANY));
+    }
+
+    @Test public void lruEvictsLeastRecentlyUsed() {
+        ReplacementPolicy p = new LruPolicy(3);
+        fill(p, 3);
+        p.pageAccessed(0);
+        assertEquals(1, p.chooseVictim(ANY));
+        p.pageAccessed(1);
+        assertEquals(2, p.chooseVictim(ANY));
+    }
+
+    @Test public void lruKPrefersPagesWithFewReferences() {
+        ReplacementPolicy p = new LruKPolicy(3, 2);
+        fill(p, 3);
+        p.pageAccessed(0);
+        p.pageAccessed(1);
+        // frame 2 has a single reference: infinite backward 2-distance
+        assertEquals(2, p.chooseVictim(ANY));
+        p.pageAccessed(2);
+        // now the oldest second-to-last reference belongs to frame 0
+        assertEquals(0, p.chooseVictim(ANY));
+    }
+
+    /** The ordered victims of LRU-K agree with a scan over all frames. */
+    @Test public void lruKVictimsMatchFullScan() {
+        int frames = 16;
+        ReplacementPolicy p = new LruKPolicy(frames, 2);
+        fill(p, frames);
+        // the last two reference times of every frame, kept by the test
+        long[][] refs = new long[frames][2];
+        long clock = 0;
+        for (int i = 0; i < frames; i++)
+            refs[i][0] = ++clock;
+        Random rnd = new Random(42);
+        int nextPage = frames;
+        for (int step = 0; step < 2000; step++) {
+            int frame = rnd.nextInt(frames);
+            if (rnd.nextInt(4) == 0) {
+                int expected = 0;
+                for (int f = 1; f < frames; f++) {
+                    if (refs[f][1] < refs[expected][1]
+                            || (refs[f][1] == refs[expected][1] && refs[f][0] < refs[expected][0]))
+                        expected = f;
+                }
+                assertEquals(expected, p.chooseVictim(ANY));
+                p.pageRemoved(expected, pid(expected));
+                p.pageLoaded(expected, pid(nextPage++));
+                refs[expected][1] = 0;
+                refs[expected][0] = ++clock;
+            } else {
+                p.pageAccessed(frame);
+                refs[frame][1] = refs[frame][0];
+                refs[frame][0] = ++clock;
+            }
+        }
+    }
+
+    @Test public void twoQKeepsRereferencedPages() {
+        ReplacementPolicy p = new TwoQPolicy(4, 1, 4);
+        fill(p, 4);
+        // A1in is over its share, so the oldest page goes first
+        assertEquals(0, p.chooseVictim(ANY));
+        p.pageRemoved(0, pid(0));
+        // page 0 comes back while remembered in A1out: it is now hot
+        p.pageLoaded(0, pid(0));
+        p.pageAccessed(0);
+        // the once-seen pages are given up first while A1in is too large
+        for (int i = 1; i <= 2; i++) {
+            assertEquals(i, p.chooseVictim(ANY));
+            p.pageRemoved(i, pid(i));
+        }
+        assertEquals(0, p.chooseVictim(ANY));
+    }
+
+    @Test public void victimsRespectFilter() {
+        ReplacementPolicy.FrameFilter notZero = new ReplacementPolicy.FrameFilter() {
+            public boolean isEvictable(int frame) {
+                return frame != 0;
+            }
+        };
+        ReplacementPolicy.FrameFilter none = new ReplacementPolicy.FrameFilter() {
+            public boolean isEvictable(int frame) {
+                return false;
+            }
+        };
+        for (ReplacementPolicyType type : ReplacementPolicyType.values()) {
+            ReplacementPolicy p = type.create(2);
+            fill(p, 2);
+            assertEquals(type.toString(), 1, p.chooseVictim(notZero));
+            assertEquals(type.toString(), -1, p.chooseVictim(none));
+        }
+    }
+
+    /** Hits and misses are counted by the pool, whatever the policy. */
+    @Test public void hitRate() throws Exception {
+        for (ReplacementPolicyType type : ReplacementPolicyType.values()) {
+            Database.setReplacementPolicy(type);
+            BufferPool bp = Database.resetBufferPool(2);
+            bp.getReadAhead().setEnabled(false);
+            HeapFile f = SystemTestUtil.createRandomHeapFile(1, 992 * 2, null,
+                    new ArrayList<ArrayList<Integer>>());
+            TransactionId tid = new TransactionId();
+            for (int i = 0; i < 4; i++)
+                bp.getPage(tid, new HeapPageId(f.getId(), i % 2), Permissions.READ_ONLY);
+            assertEquals(type.toString(), 2, bp.getHits());
+            assertEquals(type.toString(), 2, bp.getMisses());
+            assertEquals(type.toString(), 0.5, bp.getHitRate(), 1e-9);
+        }
+    }
+
+    /** A table larger than the pool can be scanned with every policy. */
+    @Test public void scanLargerThanPool() throws Exception {
+        for (ReplacementPolicyType type : ReplacementPolicyType.values()) {
+            Database.setReplacementPolicy(type);
+            Database.resetBufferPool(5);
+            HeapFile f = SystemTestUtil.createRandomHeapFile(1, 992 * 12, null,
+                    new ArrayList<ArrayList<Integer>>());
+            TransactionId tid = new TransactionId();
+            DbFileIterator it = f.iterator(tid);
+            it.open();
+            int count = 0;
+            while (it.hasNext()) {
+                it.next();
+                count++;
+            }
+            it.close();
+            assertEquals(type.toString(), 992 * 12, count);
+            BufferPool bp = Database.getBufferPool();
+            // every page was loaded exactly once, on request or ahead of it
+            assertEquals(type.toString(), 12,
+                    bp.getMisses() + bp.getReadAhead().getPrefetchedCount());
+        }
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(ReplacementPolicyTest.class);
+    }
+}
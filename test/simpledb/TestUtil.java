@@ -206,10 +206,18 @@ public class TestUtil {
             throw new RuntimeException("not implemented");
         }
 
+        public List<Page> readPages(PageId first, int count) {
+            throw new RuntimeException("not implemented");
+        }
+
         public int numPages() {
             throw new RuntimeException("not implemented");
         }
 
+        public int getPageSize() {
+            return BufferPool.PAGE_SIZE;
+        }
+
         public void writePage(Page p) throws IOException {
             throw new RuntimeException("not implemented");
         }